@@ -0,0 +1,64 @@
+package com.bianzx.neo4j.elasticsearch.benchmark;
+
+import com.bianzx.neo4j.elasticsearch.BulkItem;
+import com.bianzx.neo4j.elasticsearch.ElasticSearchEventListener;
+import com.bianzx.neo4j.elasticsearch.benchmark.SyntheticGraph.Shape;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import org.neo4j.graphdb.event.TransactionData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * @ClassName: BeforeCommitBenchmark
+ * @Description: 测量beforeCommit在不同事务形态下收集变更并序列化的吞吐和分配, 不发送请求
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BeforeCommitBenchmark {
+
+  @Param({"SMALL_CREATES", "WIDE_UPDATES", "MASS_DELETES", "RELATIONSHIPS"})
+  public Shape shape;
+
+  // Entities touched by one transaction
+  @Param({"10", "1000"})
+  public int entities;
+
+  @Param({"false", "true"})
+  public boolean partialUpdates;
+
+  private ElasticSearchEventListener listener;
+
+  private TransactionData data;
+
+  @Setup
+  public void setup() {
+    // no jest client and no dispatcher, only the work done on the committing thread is measured
+    listener = new ElasticSearchEventListener.Builder().indexName("benchmark").syncNodes(true)
+        .syncRelationships(true).executeAsync(true).partialUpdates(partialUpdates).build();
+    int properties = shape == Shape.WIDE_UPDATES ? 64 : 8;
+    data = SyntheticGraph.transaction(shape, entities, properties);
+  }
+
+  @Benchmark
+  public Collection<BulkItem> beforeCommit() throws Exception {
+    return listener.beforeCommit(data, null, null);
+  }
+}
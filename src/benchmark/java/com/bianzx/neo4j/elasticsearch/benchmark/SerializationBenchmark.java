@@ -0,0 +1,102 @@
+package com.bianzx.neo4j.elasticsearch.benchmark;
+
+import com.bianzx.neo4j.elasticsearch.BulkItem;
+import com.bianzx.neo4j.elasticsearch.BulkRequest;
+import com.bianzx.neo4j.elasticsearch.DocumentFactory;
+import com.bianzx.neo4j.elasticsearch.JestHttpClientFactory;
+import io.searchbox.client.JestClient;
+import io.searchbox.core.BulkResult;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * @ClassName: SerializationBenchmark
+ * @Description: 测量文档序列化, bulk请求体构建, 以及向本地空实现发送bulk请求的吞吐和分配
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+  @Param({"8", "64"})
+  public int properties;
+
+  // Actions in one bulk request
+  @Param({"1000"})
+  public int actions;
+
+  private DocumentFactory documents;
+
+  private Node node;
+
+  private Relationship relationship;
+
+  private List<BulkItem> items;
+
+  private FakeElasticSearch sink;
+
+  private JestClient jestClient;
+
+  @Setup
+  public void setup() throws Throwable {
+    documents = new DocumentFactory("benchmark");
+    node = SyntheticGraph.node(42, SyntheticGraph.properties(42, properties));
+    relationship = SyntheticGraph.relationship(42, 1, 2, SyntheticGraph.properties(42, properties));
+    items = new ArrayList<>(actions);
+    for (long id = 0; id < actions; id++) {
+      Node each = SyntheticGraph.node(id, SyntheticGraph.properties(id, properties));
+      items.add(documents.index(documents.id(each), each));
+    }
+    sink = new FakeElasticSearch.Builder().build();
+    jestClient = JestHttpClientFactory.getClient(sink.url(), false, 2);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    jestClient.close();
+    sink.close();
+  }
+
+  @Benchmark
+  public BulkItem indexNode() {
+    return documents.index(documents.id(node), node);
+  }
+
+  @Benchmark
+  public BulkItem indexRelationship() {
+    return documents.index(documents.id(relationship), relationship);
+  }
+
+  @Benchmark
+  public String bulkBody() {
+    return new BulkRequest(items).getData(null);
+  }
+
+  @Benchmark
+  public BulkResult bulkRequest() throws IOException {
+    return jestClient.execute(new BulkRequest(items));
+  }
+}
@@ -0,0 +1,224 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * @ClassName: Bootstrap
+ * @Description: 在后台准备ElasticSearch的index, 不阻塞数据库启动. 先在数据库可用后生成mapping,
+ *               再不断重试创建index直到成功, 期间的变更先进入积压, 准备好之后才开始发送
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public class Bootstrap implements Runnable {
+
+  private final static Logger logger = Logger.getLogger(Bootstrap.class.getName());
+
+  public enum State {
+    // the mapping is generated once the database can be read
+    GENERATING_MAPPING,
+    // creating the indices, retried until ElasticSearch answers
+    CREATING_INDICES,
+    // changes are sent
+    READY,
+    // shut down before it was ready
+    STOPPED
+  }
+
+  /**
+   * One step of the bootstrap
+   */
+  public interface Step {
+
+    void run() throws Exception;
+  }
+
+  // Builds the mapping from the graph, null if no mapping is generated
+  private final Step mapping;
+
+  // Creates the indices, run until it succeeds
+  private final Step indices;
+
+  // Run once the indices are ready, starts dispatching
+  private final Runnable onReady;
+
+  private final long retryBackoffMillis;
+
+  private final long maxRetryBackoffMillis;
+
+  private volatile State state;
+
+  private volatile int attempts;
+
+  private volatile String lastError;
+
+  private final long startedAt = System.currentTimeMillis();
+
+  private volatile long readyAt;
+
+  private Thread worker;
+
+  private Bootstrap(Builder builder) {
+    this.mapping = builder.mapping;
+    this.indices = builder.indices;
+    this.onReady = builder.onReady;
+    this.retryBackoffMillis = Math.max(1, builder.retryBackoffMillis);
+    this.maxRetryBackoffMillis = Math.max(this.retryBackoffMillis, builder.maxRetryBackoffMillis);
+    this.state = mapping != null ? State.GENERATING_MAPPING : State.CREATING_INDICES;
+  }
+
+  /**
+   * start the background bootstrap thread
+   */
+  public void start() {
+    worker = new Thread(this, "neo4j-elasticsearch-bootstrap");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  @Override
+  public void run() {
+    try {
+      if (mapping != null) {
+        try {
+          mapping.run();
+        } catch (InterruptedException e) {
+          throw e;
+        } catch (Exception e) {
+          // the indices are still created, without the generated mapping
+          logger.log(Level.SEVERE, "can not generate the mapping", e);
+          lastError = String.valueOf(e.getMessage());
+        }
+      }
+      if (Thread.currentThread().isInterrupted()) {
+        state = State.STOPPED;
+        return;
+      }
+      state = State.CREATING_INDICES;
+      long backoff = retryBackoffMillis;
+      while (true) {
+        attempts++;
+        try {
+          indices.run();
+          break;
+        } catch (Exception e) {
+          lastError = String.valueOf(e.getMessage());
+          logger.warning("can not create the indices, attempt " + attempts + ", retrying in " + backoff
+              + "ms: " + lastError);
+        }
+        Thread.sleep(backoff);
+        backoff = Math.min(backoff * 2, maxRetryBackoffMillis);
+      }
+      lastError = null;
+      readyAt = System.currentTimeMillis();
+      state = State.READY;
+      logger.info("ElasticSearch indices are ready after " + attempts + " attempts");
+      if (onReady != null) {
+        onReady.run();
+      }
+    } catch (InterruptedException e) {
+      state = State.STOPPED;
+    }
+  }
+
+  public boolean isReady() {
+    return state == State.READY;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  /**
+   * stop retrying, changes stay in the backlog for the next start
+   */
+  public void close() {
+    if (worker != null) {
+      worker.interrupt();
+    }
+    if (state != State.READY) {
+      state = State.STOPPED;
+    }
+  }
+
+  public Status status() {
+    long readySeconds = readyAt > 0 ? (readyAt - startedAt) / 1000 : (System.currentTimeMillis() - startedAt) / 1000;
+    return new Status(state.name(), attempts, lastError, readySeconds);
+  }
+
+  /**
+   * The readiness of the sync, returned by elasticsearch.status()
+   */
+  public static class Status {
+
+    public final String state;
+
+    public final long attempts;
+
+    public final String lastError;
+
+    // seconds it took to get ready, or since the start while not ready
+    public final long elapsedSeconds;
+
+    public Status(String state, long attempts, String lastError, long elapsedSeconds) {
+      this.state = state;
+      this.attempts = attempts;
+      this.lastError = lastError;
+      this.elapsedSeconds = elapsedSeconds;
+    }
+  }
+
+  /**
+   *
+   * @ClassName: Builder
+   * @Description: Builder for Bootstrap
+   * @author: bianzexin
+   * @date: Feb 1, 2021
+   *
+   */
+  public static class Builder {
+
+    private Step mapping;
+
+    private Step indices;
+
+    private Runnable onReady;
+
+    private long retryBackoffMillis;
+
+    private long maxRetryBackoffMillis;
+
+    public Builder() {}
+
+    public Builder mapping(Step mapping) {
+      this.mapping = mapping;
+      return this;
+    }
+
+    public Builder indices(Step indices) {
+      this.indices = indices;
+      return this;
+    }
+
+    public Builder onReady(Runnable onReady) {
+      this.onReady = onReady;
+      return this;
+    }
+
+    public Builder retryBackoffMillis(long retryBackoffMillis) {
+      this.retryBackoffMillis = retryBackoffMillis;
+      return this;
+    }
+
+    public Builder maxRetryBackoffMillis(long maxRetryBackoffMillis) {
+      this.maxRetryBackoffMillis = maxRetryBackoffMillis;
+      return this;
+    }
+
+    public Bootstrap build() {
+      return new Bootstrap(this);
+    }
+  }
+}
@@ -0,0 +1,200 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * @ClassName: BulkController
+ * @Description: 根据ElasticSearch的响应调整bulk大小和并发请求数(AIMD), 延迟低且没有429时加性增长,
+ *               出现拒绝或延迟超过目标时减半, 不开启时始终使用配置的上限
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public class BulkController {
+
+  private final static Logger logger = Logger.getLogger(BulkController.class.getName());
+
+  private final boolean adaptive;
+
+  private final int minActions;
+
+  private final int maxActions;
+
+  private final long maxBytes;
+
+  private final int maxConcurrency;
+
+  // Requests slower than this count as overload
+  private final long targetLatencyNanos;
+
+  // Actions in one bulk request, the byte limit follows it
+  private volatile int actions;
+
+  // Bulk requests waiting for a response at the same time
+  private volatile int concurrency;
+
+  // Guarded by this, fast responses of full batches since the last change
+  private int goodResponses;
+
+  // Guarded by this, responses of requests sent before this were already accounted for
+  private long decreasedAt;
+
+  private BulkController(Builder builder) {
+    this.adaptive = builder.adaptive;
+    this.maxActions = Math.max(1, builder.maxActions);
+    this.minActions = Math.max(1, Math.min(builder.minActions, maxActions));
+    this.maxBytes = Math.max(1, builder.maxBytes);
+    this.maxConcurrency = Math.max(1, builder.maxConcurrency);
+    this.targetLatencyNanos = builder.targetLatencyMillis * 1_000_000L;
+    // start low and grow, like a slow start
+    this.actions = adaptive ? minActions : maxActions;
+    this.concurrency = adaptive ? 1 : maxConcurrency;
+    this.decreasedAt = System.nanoTime();
+  }
+
+  /**
+   * the current maximum number of actions in one bulk request
+   * @return
+   */
+  public int actions() {
+    return actions;
+  }
+
+  /**
+   * the current maximum payload of one bulk request, in proportion to the action limit
+   * @return
+   */
+  public long bytes() {
+    return Math.max(1, maxBytes * actions / maxActions);
+  }
+
+  /**
+   * the current maximum number of bulk requests in flight
+   * @return
+   */
+  public int concurrency() {
+    return concurrency;
+  }
+
+  /**
+   * ElasticSearch answered a request
+   * @param sentAt System.nanoTime() when the request was sent
+   * @param full whether the batch was sent because it reached a limit, more was waiting
+   * @param rejected whether the request or any of its items was rejected with a 429 or a 5xx
+   */
+  public synchronized void completed(long sentAt, boolean full, boolean rejected) {
+    if (!adaptive) {
+      return;
+    }
+    long latency = System.nanoTime() - sentAt;
+    if (rejected || latency > targetLatencyNanos) {
+      decrease(sentAt, rejected ? "rejections" : "latency " + latency / 1_000_000 + "ms");
+      return;
+    }
+    if (!full) {
+      // growing does not help when there is not enough to send
+      return;
+    }
+    // one round trip per request in flight, then grow by one step
+    if (++goodResponses < concurrency) {
+      return;
+    }
+    goodResponses = 0;
+    if (actions < maxActions || concurrency < maxConcurrency) {
+      actions = Math.min(maxActions, actions + minActions);
+      concurrency = Math.min(maxConcurrency, concurrency + 1);
+      if (logger.isLoggable(Level.FINE)) {
+        logger.fine("bulk limits raised to " + actions + " actions and " + concurrency + " requests");
+      }
+    }
+  }
+
+  /**
+   * a request failed without a response
+   * @param sentAt
+   */
+  public synchronized void failed(long sentAt) {
+    if (adaptive) {
+      decrease(sentAt, "failure");
+    }
+  }
+
+  /**
+   * halve both limits, once for all requests that were in flight at the time
+   * @param sentAt
+   * @param reason
+   */
+  private void decrease(long sentAt, String reason) {
+    goodResponses = 0;
+    if (sentAt - decreasedAt < 0) {
+      return;
+    }
+    decreasedAt = System.nanoTime();
+    actions = Math.max(minActions, actions / 2);
+    concurrency = Math.max(1, concurrency / 2);
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("bulk limits lowered to " + actions + " actions and " + concurrency + " requests after " + reason);
+    }
+  }
+
+  /**
+   *
+   * @ClassName: Builder
+   * @Description: Builder for BulkController
+   * @author: bianzexin
+   * @date: Feb 1, 2021
+   *
+   */
+  public static class Builder {
+
+    private boolean adaptive;
+
+    private int minActions;
+
+    private int maxActions;
+
+    private long maxBytes;
+
+    private int maxConcurrency;
+
+    private long targetLatencyMillis;
+
+    public Builder() {}
+
+    public Builder adaptive(boolean adaptive) {
+      this.adaptive = adaptive;
+      return this;
+    }
+
+    public Builder minActions(int minActions) {
+      this.minActions = minActions;
+      return this;
+    }
+
+    public Builder maxActions(int maxActions) {
+      this.maxActions = maxActions;
+      return this;
+    }
+
+    public Builder maxBytes(long maxBytes) {
+      this.maxBytes = maxBytes;
+      return this;
+    }
+
+    public Builder maxConcurrency(int maxConcurrency) {
+      this.maxConcurrency = maxConcurrency;
+      return this;
+    }
+
+    public Builder targetLatencyMillis(long targetLatencyMillis) {
+      this.targetLatencyMillis = targetLatencyMillis;
+      return this;
+    }
+
+    public BulkController build() {
+      return new BulkController(this);
+    }
+  }
+}
@@ -0,0 +1,1255 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.core.BulkResult;
+import io.searchbox.core.BulkResult.BulkResultItem;
+
+/**
+ *
+ * @ClassName: BulkDispatcher
+ * @Description: 后台批量发送线程, 将多个事务的变更合并为一个bulk请求发送到ElasticSearch
+ * @author: bianzexin
+ * @date: Dec 7, 2020
+ *
+ */
+public class BulkDispatcher implements Runnable {
+
+  private final static Logger logger = Logger.getLogger(BulkDispatcher.class.getName());
+
+  // Item error type of a rejection by a full ElasticSearch write thread pool
+  private static final String REJECTED_EXECUTION = "es_rejected_execution_exception";
+
+  // The client for ElasticSearch
+  private final JestClient jestClient;
+
+  // Durable source of queued actions, null keeps them in memory only
+  private final Outbox outbox;
+
+  // Takes actions that do not fit in memory with the SPILL overflow policy
+  private final Outbox spill;
+
+  // Where permanently failing actions go, null only logs them
+  private final DeadLetterStore deadLetters;
+
+  private final SyncMetrics metrics;
+
+  // Told when the actions of a batch are done with, null when nobody waits for them
+  private final Watermark watermark;
+
+  // Holds requests back while ElasticSearch is down, null to always send
+  private final CircuitBreaker breaker;
+
+  // Applied to each action as it is sent, e.g. to filter documents built before the mapping was
+  // known, null to send them as they are
+  private final UnaryOperator<BulkItem> filter;
+
+  // Flush when as many actions or bytes are queued as the controller allows in one request, and
+  // bounds the requests in flight
+  private final BulkController controller;
+
+  // Flush when the oldest queued action has waited this long
+  private final long lingerNanos;
+
+  // How often a failed action is retried before it goes to the dead letters
+  private final int maxRetries;
+
+  // Delay before the first retry, doubled for every further attempt
+  private final long retryBackoffMillis;
+
+  // Upper bound of the retry delay
+  private final long maxRetryBackoffMillis;
+
+  // Upper bound of queued and in-flight payload held in the heap
+  private final long maxBufferedBytes;
+
+  // What add() does when maxBufferedBytes is reached
+  private final OverflowPolicy overflowPolicy;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final Condition notEmpty = lock.newCondition();
+
+  private final Condition idle = lock.newCondition();
+
+  private final Condition notFull = lock.newCondition();
+
+  // Guarded by lock, queued actions when there is no outbox
+  private final ArrayDeque<BulkItem> queue = new ArrayDeque<>();
+
+  // Guarded by lock, batches sent from the outbox and not yet acknowledged, in read order
+  private final ArrayDeque<Batch> unacknowledged = new ArrayDeque<>();
+
+  // Guarded by lock, failed actions waiting for their next attempt, earliest first
+  private final PriorityQueue<Entry> retries = new PriorityQueue<>(Comparator.comparingLong(e -> e.dueAt));
+
+  // Guarded by lock, the waiting retry of each document, dropped when a newer action is sent
+  private final Map<String, Entry> retrying = new HashMap<>();
+
+  // Guarded by lock
+  private int queuedActions;
+
+  // Guarded by lock
+  private long queuedBytes;
+
+  // Guarded by lock, payload of the actions queued in memory
+  private long memoryBytes;
+
+  // Guarded by lock, payload of the requests waiting for a response
+  private long inFlightBytes;
+
+  // Guarded by lock, new actions go to the spill until it is read completely, to keep their order
+  private boolean spilling;
+
+  // Guarded by lock, enqueue time of the oldest queued action
+  private long firstEnqueuedAt;
+
+  // Guarded by lock, outbox records are waiting to be replayed and should be sent right away
+  private boolean backlog;
+
+  // Guarded by lock, a request failed and the outbox is re-read from the checkpoint at rewindAt
+  private boolean rewind;
+
+  private long rewindAt;
+
+  private int rewindAttempts;
+
+  // Guarded by lock, bumped on rewind so results of older batches are ignored
+  private int epoch;
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  // Actions dropped by the DROP overflow policy
+  private final AtomicLong droppedActions = new AtomicLong();
+
+  private volatile boolean running;
+
+  // Set by close, the overflow policy already applies before start while the indices are prepared
+  private volatile boolean closed;
+
+  private Thread worker;
+
+  /**
+   * Construct for BulkDispatcher
+   * @param builder
+   */
+  private BulkDispatcher(Builder builder) {
+    this.jestClient = builder.jestClient;
+    this.outbox = builder.outbox;
+    this.spill = builder.spill;
+    this.deadLetters = builder.deadLetters;
+    this.metrics = builder.metrics != null ? builder.metrics : new SyncMetrics();
+    this.watermark = builder.watermark;
+    this.breaker = builder.breaker;
+    this.filter = builder.filter;
+    this.controller = builder.controller != null ? builder.controller
+        : new BulkController.Builder().maxActions(builder.maxActions).maxBytes(builder.maxBytes)
+            .maxConcurrency(builder.maxInFlightRequests).build();
+    this.lingerNanos = builder.lingerMillis * 1_000_000L;
+    this.maxRetries = builder.maxRetries;
+    this.retryBackoffMillis = builder.retryBackoffMillis;
+    this.maxRetryBackoffMillis = builder.maxRetryBackoffMillis;
+    this.maxBufferedBytes = builder.maxBufferedBytes;
+    this.overflowPolicy = spill == null && builder.overflowPolicy == OverflowPolicy.SPILL
+        ? OverflowPolicy.BLOCK : builder.overflowPolicy;
+    // anything left in the outbox or the spill by the last run is replayed first
+    this.spilling = spill != null && spill.hasUnread();
+    this.backlog = (outbox != null && outbox.hasUnread()) || spilling;
+  }
+
+  /**
+   * start the background dispatch thread
+   */
+  public void start() {
+    if (closed) {
+      return;
+    }
+    running = true;
+    worker = new Thread(this, "neo4j-elasticsearch-dispatcher");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * queue actions of one committed transaction
+   * @param items
+   */
+  public void add(Collection<BulkItem> items) {
+    if (outbox != null) {
+      try {
+        outbox.append(items);
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "can not append " + items.size() + " actions to the outbox", e);
+        if (watermark != null) {
+          watermark.resolved(items);
+        }
+        return;
+      }
+    }
+    lock.lock();
+    try {
+      boolean toMemory = outbox == null;
+      if (toMemory && !admit(items)) {
+        if (watermark != null) {
+          watermark.resolved(items);
+        }
+        return;
+      }
+      if (toMemory && spilling) {
+        try {
+          spill.append(items);
+          toMemory = false;
+        } catch (IOException e) {
+          logger.log(Level.SEVERE, "can not spill " + items.size() + " actions, keeping them in memory", e);
+        }
+      }
+      boolean wasEmpty = queuedActions == 0;
+      if (wasEmpty) {
+        firstEnqueuedAt = System.nanoTime();
+      }
+      for (BulkItem item : items) {
+        if (toMemory) {
+          queue.add(item);
+          memoryBytes += item.getBytes();
+        }
+        queuedActions++;
+        queuedBytes += item.getBytes();
+      }
+      // wake the worker to start the linger timer, or to flush a full batch right away
+      if (wasEmpty || isFull()) {
+        notEmpty.signal();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * apply the overflow policy when the actions do not fit into maxBufferedBytes, guarded by lock
+   * @param items
+   * @return false if the actions were dropped
+   */
+  private boolean admit(Collection<BulkItem> items) {
+    if (spilling) {
+      return true;
+    }
+    long bytes = 0;
+    for (BulkItem item : items) {
+      bytes += item.getBytes();
+    }
+    // a transaction larger than the whole buffer is still let through when the buffer is empty
+    while (!closed && memoryBytes + inFlightBytes > 0 && memoryBytes + inFlightBytes + bytes > maxBufferedBytes) {
+      switch (overflowPolicy) {
+        case DROP:
+          if (droppedActions.getAndAdd(items.size()) == 0) {
+            logger.warning("ElasticSearch can not keep up, dropping actions");
+          }
+          return false;
+        case SPILL:
+          spilling = true;
+          return true;
+        default:
+          try {
+            notFull.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+          }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * number of actions dropped by the DROP overflow policy
+   * @return
+   */
+  public long getDroppedActions() {
+    return droppedActions.get();
+  }
+
+  /**
+   * number of actions waiting to be sent, including those waiting for a retry
+   * @return
+   */
+  public long getQueuedActions() {
+    lock.lock();
+    try {
+      return queuedActions + retries.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * whether every added action was delivered or given up, and the outbox has nothing left
+   * @return
+   */
+  public boolean isDrained() {
+    lock.lock();
+    try {
+      return drained();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * send everything queued right away and wait until it is delivered
+   * @param timeoutMillis
+   * @return whether the dispatcher drained in time
+   */
+  public boolean awaitDrained(long timeoutMillis) {
+    long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    lock.lock();
+    try {
+      while (!drained()) {
+        if (remaining <= 0) {
+          return false;
+        }
+        // skip the linger time
+        backlog = true;
+        notEmpty.signal();
+        remaining = idle.awaitNanos(remaining);
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * guarded by lock
+   * @return
+   */
+  private boolean drained() {
+    return queuedActions == 0 && retries.isEmpty() && inFlight.get() == 0 && !rewind && !backlog
+        && (outbox == null || (!outbox.hasUnread() && unacknowledged.isEmpty()));
+  }
+
+  /**
+   * number of bulk requests waiting for a response
+   * @return
+   */
+  public int getInFlightRequests() {
+    return inFlight.get();
+  }
+
+  /**
+   * stop the dispatch thread, flush all queued actions and wait for in-flight requests
+   * @param timeoutMillis
+   */
+  public void close(long timeoutMillis) {
+    close(timeoutMillis, true);
+  }
+
+  /**
+   * stop the dispatch thread and wait for in-flight requests
+   * @param timeoutMillis
+   * @param deliver whether to flush the queued actions, otherwise the outbox keeps them for the next
+   *        start, or they are dead-lettered without one
+   */
+  public void close(long timeoutMillis, boolean deliver) {
+    running = false;
+    closed = true;
+    lock.lock();
+    try {
+      notEmpty.signal();
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    if (worker != null) {
+      try {
+        worker.join(timeoutMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    awaitInFlight(timeoutMillis);
+
+    // the worker is gone, send whatever is left from this thread, waiting retries included
+    lock.lock();
+    try {
+      if (rewind) {
+        rewind();
+      }
+      for (Entry entry : retries) {
+        entry.dueAt = 0;
+      }
+    } finally {
+      lock.unlock();
+    }
+    Batch batch;
+    boolean delivering = deliver;
+    while (!(batch = nextBatch()).entries.isEmpty()) {
+      resolveSuperseded(batch);
+      if (delivering) {
+        delivering = execute(batch);
+      }
+      if (!delivering) {
+        if (outbox != null) {
+          // the outbox keeps the rest for the next start
+          break;
+        }
+        for (Entry entry : batch.entries) {
+          deadLetter(entry.item, 0, "ElasticSearch unavailable on shutdown");
+        }
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      Batch batch;
+      lock.lock();
+      try {
+        long waitNanos;
+        while (running && (waitNanos = waitNanos()) > 0) {
+          if (waitNanos == Long.MAX_VALUE) {
+            notEmpty.await();
+          } else {
+            notEmpty.awaitNanos(waitNanos);
+          }
+        }
+        if (!running) {
+          return;
+        }
+        if (rewind) {
+          rewind();
+        }
+        batch = nextBatch();
+        if (batch.entries.isEmpty()) {
+          backlog = false;
+          continue;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } finally {
+        lock.unlock();
+      }
+      resolveSuperseded(batch);
+      send(batch);
+    }
+  }
+
+  /**
+   * how long the worker should wait before the next batch, Long.MAX_VALUE until signalled
+   * @return
+   */
+  private long waitNanos() {
+    long now = System.nanoTime();
+    if (rewind) {
+      return Math.max(0, rewindAt - now);
+    }
+    // ElasticSearch is down, wait for the breaker, then probe with one request at a time
+    if (breaker != null) {
+      long delay = breaker.delayNanos();
+      if (delay > 0) {
+        return delay;
+      }
+      if (!breaker.isClosed() && inFlight.get() > 0) {
+        return Long.MAX_VALUE;
+      }
+    }
+    // backpressure: ElasticSearch has to answer before more is sent, or read from disk
+    if (inFlight.get() >= controller.concurrency()
+        || ((outbox != null || spilling) && inFlightBytes >= maxBufferedBytes)) {
+      return Long.MAX_VALUE;
+    }
+    if (backlog || isFull()) {
+      return 0;
+    }
+    long wait = Long.MAX_VALUE;
+    if (queuedActions > 0) {
+      wait = Math.max(0, firstEnqueuedAt + lingerNanos - now);
+    }
+    if (!retries.isEmpty()) {
+      wait = Math.min(wait, Math.max(0, retries.peek().dueAt - now));
+    }
+    return wait;
+  }
+
+  /**
+   * take the next batch: due retries first, then the head of the queue or the outbox, bounded by
+   * the current limits of the controller. The retries it made obsolete are resolved by the caller
+   * with resolveSuperseded once the lock is released.
+   * @return
+   */
+  private Batch nextBatch() {
+    int maxActions = controller.actions();
+    long maxBytes = controller.bytes();
+    lock.lock();
+    try {
+      Batch batch = new Batch(epoch);
+      long now = System.nanoTime();
+      while (!retries.isEmpty() && retries.peek().dueAt <= now && batch.entries.size() < maxActions) {
+        Entry entry = retries.poll();
+        retrying.remove(key(entry.item), entry);
+        batch.entries.add(entry);
+      }
+
+      List<BulkItem> items = new ArrayList<>(Math.min(Math.max(queuedActions, 1), maxActions));
+      int room = maxActions - batch.entries.size();
+      if (room > 0) {
+        if (outbox != null) {
+          batch.position = outbox.read(items, room, maxBytes);
+        } else {
+          long bytes = 0;
+          while (!queue.isEmpty() && items.size() < room
+              && (items.isEmpty() || bytes + queue.peek().getBytes() <= maxBytes)) {
+            BulkItem item = queue.poll();
+            bytes += item.getBytes();
+            items.add(item);
+          }
+          memoryBytes -= bytes;
+          // spilled actions are newer than everything in memory
+          if (queue.isEmpty() && spilling && items.size() < room) {
+            readSpill(items, room, maxBytes - bytes);
+          }
+        }
+      }
+      for (BulkItem item : items) {
+        queuedBytes -= item.getBytes();
+        if (!retrying.isEmpty()) {
+          // a newer action for the same document makes its waiting retry obsolete
+          Entry superseded = retrying.remove(key(item));
+          if (superseded != null) {
+            retries.remove(superseded);
+            batch.superseded.add(superseded);
+          }
+        }
+        batch.entries.add(new Entry(item, batch));
+      }
+      for (Entry entry : batch.entries) {
+        batch.bytes += entry.item.getBytes();
+      }
+      batch.pending = items.size();
+      batch.owned = items;
+      if (outbox != null && !items.isEmpty()) {
+        unacknowledged.add(batch);
+      }
+      // the outbox may hand out records before add() counted them, never let counts go stale
+      queuedActions = items.isEmpty() ? 0 : Math.max(0, queuedActions - items.size());
+      queuedBytes = queuedActions == 0 ? 0 : Math.max(0, queuedBytes);
+      // more is waiting, a larger request would have taken it
+      batch.full = queuedActions > 0 || backlog || batch.entries.size() >= maxActions;
+      return batch;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * resolve the retries a batch made obsolete, without holding the lock
+   * @param batch
+   */
+  private void resolveSuperseded(Batch batch) {
+    for (Entry superseded : batch.superseded) {
+      resolve(superseded);
+    }
+    batch.superseded.clear();
+  }
+
+  /**
+   * read spilled actions, guarded by lock. They are in memory from now on, so the spill does not
+   * keep them.
+   * @param items
+   * @param room
+   * @param bytes
+   */
+  private void readSpill(List<BulkItem> items, int room, long bytes) {
+    List<BulkItem> spilled = new ArrayList<>();
+    long position = spill.read(spilled, room - items.size(), Math.max(bytes, 1));
+    items.addAll(spilled);
+    try {
+      spill.checkpoint(position);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "can not write spill checkpoint", e);
+    }
+    if (!spill.hasUnread()) {
+      spilling = false;
+    }
+  }
+
+  /**
+   * send one batch asynchronously
+   * @param batch
+   */
+  private void send(Batch batch) {
+    inFlight.incrementAndGet();
+    lock.lock();
+    try {
+      inFlightBytes += batch.bytes;
+    } finally {
+      lock.unlock();
+    }
+    batch.sentAt = System.nanoTime();
+    try {
+      jestClient.executeAsync(bulk(batch), new BatchHandler(batch));
+    } catch (Exception e) {
+      new BatchHandler(batch).failed(e);
+    }
+  }
+
+  /**
+   * a request got its response, make room for the next one
+   * @param batch
+   */
+  private void release(Batch batch) {
+    int remaining = inFlight.decrementAndGet();
+    lock.lock();
+    try {
+      inFlightBytes -= batch.bytes;
+      notEmpty.signal();
+      notFull.signalAll();
+      if (remaining == 0) {
+        idle.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * send one batch synchronously, used when flushing on shutdown. Failed items are not retried.
+   * @param batch
+   * @return whether ElasticSearch accepted the request
+   */
+  private boolean execute(Batch batch) {
+    try {
+      BulkResult result = jestClient.execute(bulk(batch));
+      if (isRetriable(result.getResponseCode())) {
+        logger.severe("data transfer error on shutdown: " + result.getErrorMessage());
+        return false;
+      }
+      List<BulkResultItem> items = result.getItems();
+      for (int i = 0; i < batch.entries.size(); i++) {
+        BulkResultItem item = i < items.size() ? items.get(i) : null;
+        if (item == null ? !result.isSucceeded() : !isSuccess(batch.entries.get(i).item, item)) {
+          deadLetter(batch.entries.get(i).item, item == null ? result.getResponseCode() : item.status,
+              item == null ? result.getErrorMessage() : item.error);
+        }
+      }
+      if (outbox != null && batch.position != 0) {
+        outbox.checkpoint(batch.position);
+      }
+      return true;
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "data transfer execution error on shutdown", e);
+      return false;
+    }
+  }
+
+  private BulkRequest bulk(Batch batch) {
+    List<BulkItem> items = new ArrayList<>(batch.entries.size());
+    for (Entry entry : batch.entries) {
+      items.add(filter == null ? entry.item : filter.apply(entry.item));
+    }
+    return new BulkRequest(items);
+  }
+
+  /**
+   * the response of each item of a bulk request, in request order
+   * @param batch
+   * @param result
+   */
+  private void handleItems(Batch batch, BulkResult result) {
+    List<BulkResultItem> items = result.getItems();
+    if (items.size() != batch.entries.size()) {
+      if (result.isSucceeded()) {
+        batch.entries.forEach(this::resolve);
+      } else {
+        logger.severe("unexpected bulk response for " + batch.entries.size() + " actions: " + result.getJsonString());
+        requestFailed(batch, result.getResponseCode(), result.getErrorMessage());
+      }
+      return;
+    }
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < items.size(); i++) {
+      Entry entry = batch.entries.get(i);
+      BulkResultItem item = items.get(i);
+      if (isSuccess(entry.item, item)) {
+        if (item.status == 409) {
+          // a newer action for the document arrived first
+          metrics.staleAction();
+        }
+        metrics.acknowledged(entry.item, now);
+        resolve(entry);
+        continue;
+      }
+      metrics.itemFailed();
+      if (isTransient(item)) {
+        retry(entry, item.status, item.error);
+      } else {
+        deadLetter(entry.item, item.status, item.error);
+        resolve(entry);
+      }
+    }
+  }
+
+  /**
+   * whether ElasticSearch turned down any item because it was overloaded
+   * @param result
+   * @return
+   */
+  private boolean hasRejectedItems(BulkResult result) {
+    if (!result.isSucceeded() || result.getJsonObject() == null || !result.getJsonObject().has("errors")
+        || !result.getJsonObject().get("errors").getAsBoolean()) {
+      return false;
+    }
+    for (BulkResultItem item : result.getItems()) {
+      if (isRetriable(item.status) || REJECTED_EXECUTION.equals(item.errorType)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * a delete of a missing document leaves the document as intended, and so does the version conflict
+   * of a versioned action, the document already has the version of a later transaction, or of a
+   * create action, the document was already written. The conflict of an update only means the
+   * document changed under it.
+   * @param action
+   * @param item
+   * @return
+   */
+  static boolean isSuccess(BulkItem action, BulkResultItem item) {
+    return (item.status >= 200 && item.status < 300)
+        || (item.status == 404 && BulkItem.DELETE.equals(action.getMethod()))
+        || (item.status == 409 && (action.isVersioned() || BulkItem.CREATE.equals(action.getMethod())));
+  }
+
+  /**
+   * whether a failed action may succeed when it is sent again, ElasticSearch was overloaded or
+   * unavailable. An update that still conflicted after retry_on_conflict is applied again on top of
+   * the newer document.
+   * @param item
+   * @return
+   */
+  static boolean isTransient(BulkResultItem item) {
+    return isRetriable(item.status) || item.status == 409 || REJECTED_EXECUTION.equals(item.errorType);
+  }
+
+  /**
+   * whether a status means ElasticSearch was overloaded or unavailable rather than the action
+   * being invalid
+   * @param status
+   * @return
+   */
+  private static boolean isRetriable(int status) {
+    return status == 429 || status >= 500 || status == 0;
+  }
+
+  /**
+   * the request as a whole failed. An outbox is re-read from the checkpoint, otherwise every
+   * action of the batch is retried on its own.
+   * @param batch
+   * @param status
+   * @param error
+   */
+  private void requestFailed(Batch batch, int status, String error) {
+    if (outbox != null) {
+      rewindLater(batch);
+    } else {
+      for (Entry entry : batch.entries) {
+        retry(entry, status, error);
+      }
+    }
+  }
+
+  /**
+   * schedule another attempt of a failed action with exponential backoff and jitter. Dead letters
+   * are written and actions resolved after the lock is released, the dispatch thread and
+   * committing threads waiting for room must not wait for that IO.
+   * @param entry
+   * @param status
+   * @param error
+   */
+  private void retry(Entry entry, int status, String error) {
+    boolean exhausted = false;
+    Entry previous = null;
+    lock.lock();
+    try {
+      if (entry.owner.epoch != epoch) {
+        // the outbox was rewound, the action is read again anyway
+        return;
+      }
+      if (++entry.attempts > maxRetries) {
+        exhausted = true;
+      } else {
+        entry.dueAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis(entry.attempts));
+        previous = retrying.put(key(entry.item), entry);
+        if (previous != null) {
+          retries.remove(previous);
+        }
+        retries.add(entry);
+        metrics.retried();
+        notEmpty.signal();
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (exhausted) {
+      deadLetter(entry.item, status, error);
+      resolve(entry);
+    }
+    if (previous != null) {
+      resolve(previous);
+    }
+  }
+
+  /**
+   * exponential backoff with jitter, the delay is drawn from the upper half of the window
+   * @param attempts
+   * @return
+   */
+  private long backoffMillis(int attempts) {
+    long window = Math.min(maxRetryBackoffMillis, retryBackoffMillis << Math.min(attempts - 1, 20));
+    return window / 2 + ThreadLocalRandom.current().nextLong(window / 2 + 1);
+  }
+
+  /**
+   * give up an action, it is logged and written to the dead letter store
+   * @param item
+   * @param status
+   * @param error
+   */
+  void deadLetter(BulkItem item, int status, String error) {
+    logger.severe("data transfer failed permanently for " + item.getIndex() + "/" + item.getId()
+        + ", status " + status + ": " + error);
+    metrics.deadLettered();
+    if (deadLetters != null) {
+      deadLetters.add(item, status, error);
+    }
+  }
+
+  /**
+   * an action is done with, delivered or given up. Its batch is acknowledged once all its actions
+   * are done.
+   * @param entry
+   */
+  private void resolve(Entry entry) {
+    Batch owner = entry.owner;
+    lock.lock();
+    try {
+      if (owner.epoch != epoch || --owner.pending > 0) {
+        return;
+      }
+    } finally {
+      lock.unlock();
+    }
+    acknowledge(owner);
+  }
+
+  /**
+   * mark a batch as delivered and move the outbox checkpoint past all leading delivered batches
+   * @param batch
+   */
+  private void acknowledge(Batch batch) {
+    if (outbox == null) {
+      if (watermark != null) {
+        watermark.resolved(batch.owned);
+      }
+      return;
+    }
+    long position = -1;
+    List<Batch> done = new ArrayList<>();
+    lock.lock();
+    try {
+      if (batch.epoch != epoch) {
+        return;
+      }
+      batch.acknowledged = true;
+      while (!unacknowledged.isEmpty() && unacknowledged.peek().acknowledged) {
+        Batch acknowledged = unacknowledged.poll();
+        position = acknowledged.position;
+        done.add(acknowledged);
+      }
+      rewindAttempts = 0;
+    } finally {
+      lock.unlock();
+    }
+    // behind the checkpoint, a rewind does not send them again
+    if (watermark != null) {
+      for (Batch acknowledged : done) {
+        watermark.resolved(acknowledged.owned);
+      }
+    }
+    if (position >= 0) {
+      try {
+        outbox.checkpoint(position);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "can not write outbox checkpoint", e);
+      }
+    }
+  }
+
+  /**
+   * schedule re-reading the outbox from the checkpoint after a failed batch. Batches sent after it
+   * are sent again, so the newest state of every entity still arrives last.
+   * @param batch
+   */
+  private void rewindLater(Batch batch) {
+    lock.lock();
+    try {
+      if (batch.epoch != epoch || rewind) {
+        return;
+      }
+      long backoffMillis = backoffMillis(++rewindAttempts);
+      rewind = true;
+      rewindAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis);
+      logger.warning("re-sending outbox from checkpoint in " + backoffMillis + "ms");
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * move the outbox read position back to the checkpoint, guarded by lock
+   */
+  private void rewind() {
+    rewind = false;
+    epoch++;
+    unacknowledged.clear();
+    retries.clear();
+    retrying.clear();
+    outbox.seek(outbox.checkpoint());
+    backlog = true;
+  }
+
+  private boolean isFull() {
+    return queuedActions >= controller.actions() || queuedBytes >= controller.bytes();
+  }
+
+  private static String key(BulkItem item) {
+    return item.getIndex() + '/' + item.getId();
+  }
+
+  private void awaitInFlight(long timeoutMillis) {
+    long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    lock.lock();
+    try {
+      while (inFlight.get() > 0 && remaining > 0) {
+        remaining = idle.awaitNanos(remaining);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      lock.unlock();
+    }
+    if (inFlight.get() > 0) {
+      logger.warning(inFlight.get() + " bulk requests still in flight after shutdown timeout");
+    }
+  }
+
+  /**
+   * What to do with new actions when the buffered payload reaches maxBufferedBytes.
+   */
+  public enum OverflowPolicy {
+    // block the committing thread until ElasticSearch catches up
+    BLOCK,
+    // write the actions to a spill file and read them back later
+    SPILL,
+    // drop the actions and count them
+    DROP
+  }
+
+  /**
+   * The actions of one bulk request. A batch owns the actions it read from the queue or the
+   * outbox, retried actions keep their first batch as owner. For outbox batches, position is the
+   * outbox read position after the last action the batch owns.
+   */
+  private static class Batch {
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    // Waiting retries of other batches that the actions of this one made obsolete
+    private final List<Entry> superseded = new ArrayList<>(0);
+
+    // The actions read from the queue or the outbox, without the retries of other batches
+    private List<BulkItem> owned = Collections.emptyList();
+
+    private final int epoch;
+
+    private long position;
+
+    // Payload of all actions of the request
+    private long bytes;
+
+    // When the request was sent, for its round trip time
+    private long sentAt;
+
+    // Owned actions that are neither delivered nor given up
+    private int pending;
+
+    // Whether the batch was limited by the controller rather than by what was queued
+    private boolean full;
+
+    private boolean acknowledged;
+
+    Batch(int epoch) {
+      this.epoch = epoch;
+    }
+  }
+
+  /**
+   * One action of a batch and its retry state.
+   */
+  private static class Entry {
+
+    private final BulkItem item;
+
+    private final Batch owner;
+
+    private int attempts;
+
+    private long dueAt;
+
+    Entry(BulkItem item, Batch owner) {
+      this.item = item;
+      this.owner = owner;
+    }
+  }
+
+  /**
+   * Handles the response of one batch.
+   */
+  private class BatchHandler implements JestResultHandler<BulkResult> {
+
+    private final Batch batch;
+
+    BatchHandler(Batch batch) {
+      this.batch = batch;
+    }
+
+    /**
+     * ####################################################
+     * # Implements methods for {@link JestResultHandler} #
+     * ####################################################
+     */
+    @Override
+    public void completed(BulkResult result) {
+      try {
+        int status = result.getResponseCode();
+        metrics.request(batch.entries.size(), batch.bytes, System.nanoTime() - batch.sentAt,
+            status >= 200 && status < 300);
+        controller.completed(batch.sentAt, batch.full, isRetriable(status) || hasRejectedItems(result));
+        if (breaker != null) {
+          if (isRetriable(status)) {
+            breaker.failed();
+          } else {
+            breaker.succeeded();
+          }
+        }
+        if (status >= 200 && status < 300) {
+          if (logger.isLoggable(Level.FINEST)) {
+            logger.finest("data transfer completed,jsonData:" + result.getJsonString());
+          }
+          handleItems(batch, result);
+        } else if (isRetriable(status)) {
+          logger.warning("data transfer rejected: " + result.getErrorMessage());
+          requestFailed(batch, status, result.getErrorMessage());
+        } else {
+          logger.severe("data transfer error: " + result.getErrorMessage() + ",jsonData:" + result.getJsonString());
+          for (Entry entry : batch.entries) {
+            deadLetter(entry.item, status, result.getErrorMessage());
+            resolve(entry);
+          }
+        }
+      } finally {
+        release(batch);
+      }
+    }
+
+    @Override
+    public void failed(Exception ex) {
+      try {
+        metrics.request(batch.entries.size(), batch.bytes, System.nanoTime() - batch.sentAt, false);
+        controller.failed(batch.sentAt);
+        if (breaker != null) {
+          breaker.failed();
+        }
+        logger.log(Level.WARNING, "data transfer failed", ex);
+        requestFailed(batch, 0, String.valueOf(ex));
+      } finally {
+        release(batch);
+      }
+    }
+  }
+
+  /**
+   *
+   * @ClassName: Builder
+   * @Description: build BulkDispatcher
+   * @author: bianzexin
+   * @date: Dec 7, 2020
+   *
+   */
+  public static class Builder {
+
+    private JestClient jestClient;
+
+    private Outbox outbox;
+
+    private Outbox spill;
+
+    private DeadLetterStore deadLetters;
+
+    private SyncMetrics metrics;
+
+    private Watermark watermark;
+
+    private UnaryOperator<BulkItem> filter;
+
+    private int maxActions;
+
+    private long maxBytes;
+
+    private long lingerMillis;
+
+    private int maxRetries;
+
+    private long retryBackoffMillis;
+
+    private long maxRetryBackoffMillis;
+
+    private int maxInFlightRequests;
+
+    private long maxBufferedBytes;
+
+    private BulkController controller;
+
+    private CircuitBreaker breaker;
+
+    private OverflowPolicy overflowPolicy;
+
+    public Builder() {}
+
+    public Builder jestClient(JestClient jestClient) {
+      this.jestClient = jestClient;
+      return this;
+    }
+
+    public Builder outbox(Outbox outbox) {
+      this.outbox = outbox;
+      return this;
+    }
+
+    public Builder spill(Outbox spill) {
+      this.spill = spill;
+      return this;
+    }
+
+    public Builder metrics(SyncMetrics metrics) {
+      this.metrics = metrics;
+      return this;
+    }
+
+    public Builder watermark(Watermark watermark) {
+      this.watermark = watermark;
+      return this;
+    }
+
+    public Builder filter(UnaryOperator<BulkItem> filter) {
+      this.filter = filter;
+      return this;
+    }
+
+    public Builder deadLetters(DeadLetterStore deadLetters) {
+      this.deadLetters = deadLetters;
+      return this;
+    }
+
+    public Builder maxActions(int maxActions) {
+      this.maxActions = maxActions;
+      return this;
+    }
+
+    public Builder maxBytes(long maxBytes) {
+      this.maxBytes = maxBytes;
+      return this;
+    }
+
+    public Builder lingerMillis(long lingerMillis) {
+      this.lingerMillis = lingerMillis;
+      return this;
+    }
+
+    public Builder maxRetries(int maxRetries) {
+      this.maxRetries = maxRetries;
+      return this;
+    }
+
+    public Builder retryBackoffMillis(long retryBackoffMillis) {
+      this.retryBackoffMillis = retryBackoffMillis;
+      return this;
+    }
+
+    public Builder maxRetryBackoffMillis(long maxRetryBackoffMillis) {
+      this.maxRetryBackoffMillis = maxRetryBackoffMillis;
+      return this;
+    }
+
+    public Builder maxInFlightRequests(int maxInFlightRequests) {
+      this.maxInFlightRequests = maxInFlightRequests;
+      return this;
+    }
+
+    /**
+     * adjusts batch size and concurrency, maxActions, maxBytes and maxInFlightRequests are fixed
+     * limits without one
+     * @param controller
+     * @return
+     */
+    public Builder controller(BulkController controller) {
+      this.controller = controller;
+      return this;
+    }
+
+    public Builder breaker(CircuitBreaker breaker) {
+      this.breaker = breaker;
+      return this;
+    }
+
+    public Builder maxBufferedBytes(long maxBufferedBytes) {
+      this.maxBufferedBytes = maxBufferedBytes;
+      return this;
+    }
+
+    public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+      this.overflowPolicy = overflowPolicy;
+      return this;
+    }
+
+    public BulkDispatcher build() {
+      return new BulkDispatcher(this);
+    }
+  }
+}
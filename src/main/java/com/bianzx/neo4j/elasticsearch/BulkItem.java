@@ -0,0 +1,144 @@
+package com.bianzx.neo4j.elasticsearch;
+
+/**
+ *
+ * @ClassName: BulkItem
+ * @Description: 一条待同步到ElasticSearch的bulk操作
+ * @author: bianzexin
+ * @date: Dec 7, 2020
+ *
+ */
+public class BulkItem {
+
+  // Bulk method name of index action
+  public static final String INDEX = "index";
+
+  // Bulk method name of delete action
+  public static final String DELETE = "delete";
+
+  // Bulk method name of update action
+  public static final String UPDATE = "update";
+
+  // Bulk method name of an index action that leaves an existing document alone
+  public static final String CREATE = "create";
+
+  // Approximate size of the bulk metadata line, without index, type and id
+  private static final int METADATA_OVERHEAD = 48;
+
+  private final String method;
+
+  private final String index;
+
+  private final String type;
+
+  private final String id;
+
+  // The serialized document, null for delete actions and deferred index actions
+  private final String source;
+
+  private final int bytes;
+
+  // When the action was built, the end to end lag is measured from here
+  private final long createdAt;
+
+  // The committing transaction, set after commit, 0 if unknown
+  private long transactionId;
+
+  // The external version ElasticSearch keeps the document at, 0 to send it unversioned
+  private long version;
+
+  public BulkItem(String method, String index, String type, String id, String source) {
+    this(method, index, type, id, source, System.currentTimeMillis());
+  }
+
+  /**
+   * @param createdAt when the change was committed, kept when a deferred action is materialized
+   */
+  public BulkItem(String method, String index, String type, String id, String source, long createdAt) {
+    this.method = method;
+    this.index = index;
+    this.type = type;
+    this.id = id;
+    this.source = source;
+    this.bytes = METADATA_OVERHEAD + index.length() + type.length() + id.length()
+        + (source == null ? 0 : source.length());
+    this.createdAt = createdAt;
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+  public String getIndex() {
+    return index;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getSource() {
+    return source;
+  }
+
+  /**
+   * whether this is an index action whose document is read from the committed state later
+   * @return
+   */
+  public boolean isDeferred() {
+    return source == null && !DELETE.equals(method);
+  }
+
+  /**
+   * approximate payload size of this item in a bulk request body
+   * @return
+   */
+  public int getBytes() {
+    return bytes;
+  }
+
+  /**
+   * when the action was built on commit, or read back from the outbox
+   * @return
+   */
+  public long getCreatedAt() {
+    return createdAt;
+  }
+
+  public long getTransactionId() {
+    return transactionId;
+  }
+
+  /**
+   * tag the action with its transaction once it is committed, before it is handed over
+   * @param transactionId
+   */
+  public void setTransactionId(long transactionId) {
+    this.transactionId = transactionId;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * send the action with an external version, ElasticSearch rejects it with a conflict if the
+   * document already has this or a newer version. Only index and delete actions are versioned.
+   * @param version
+   */
+  public void setVersion(long version) {
+    this.version = version;
+  }
+
+  /**
+   * whether the action is sent with its external version
+   * @return
+   */
+  public boolean isVersioned() {
+    return version > 0 && (INDEX.equals(method) || DELETE.equals(method));
+  }
+}
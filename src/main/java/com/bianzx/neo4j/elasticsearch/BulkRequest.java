@@ -0,0 +1,88 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import java.util.Collection;
+import com.google.gson.Gson;
+import io.searchbox.action.AbstractAction;
+import io.searchbox.client.config.ElasticsearchVersion;
+import io.searchbox.core.BulkResult;
+
+/**
+ *
+ * @ClassName: BulkRequest
+ * @Description: 由BulkItem直接拼接请求体的bulk请求, 不再经过jest为每个action构建map并用gson序列化
+ * @author: bianzexin
+ * @date: Jan 11, 2021
+ *
+ */
+public class BulkRequest extends AbstractAction<BulkResult> {
+
+  // Extra room for escaping in the metadata lines
+  private static final int SLACK = 64;
+
+  // How often ElasticSearch re-applies an update whose document changed under it, e.g. by a bulk
+  // request in flight at the same time
+  private static final int RETRY_ON_CONFLICT = 3;
+
+  private final String body;
+
+  public BulkRequest(Collection<BulkItem> items) {
+    long size = SLACK;
+    for (BulkItem item : items) {
+      size += item.getBytes();
+    }
+    StringBuilder builder = new StringBuilder((int) Math.min(Integer.MAX_VALUE - 8, size));
+    for (BulkItem item : items) {
+      // metadata line, index, type and id never need escaping beyond quotes and backslashes
+      builder.append("{\"").append(item.getMethod()).append("\":{\"_index\":");
+      quote(builder, item.getIndex());
+      builder.append(",\"_type\":");
+      quote(builder, item.getType());
+      builder.append(",\"_id\":");
+      quote(builder, item.getId());
+      if (item.isVersioned()) {
+        // stale actions of a bulk that arrives late are turned down instead of overwriting newer ones
+        builder.append(",\"version\":").append(item.getVersion()).append(",\"version_type\":\"external\"");
+      } else if (BulkItem.UPDATE.equals(item.getMethod())) {
+        builder.append(",\"retry_on_conflict\":").append(RETRY_ON_CONFLICT);
+      }
+      builder.append("}}\n");
+      if (item.getSource() != null) {
+        builder.append(item.getSource()).append('\n');
+      }
+    }
+    this.body = builder.toString();
+  }
+
+  @Override
+  public String getData(Gson gson) {
+    return body;
+  }
+
+  @Override
+  public String getRestMethodName() {
+    return "POST";
+  }
+
+  @Override
+  protected String buildURI(ElasticsearchVersion elasticsearchVersion) {
+    return super.buildURI(elasticsearchVersion) + "/_bulk";
+  }
+
+  @Override
+  public BulkResult createNewElasticSearchResult(String responseBody, int statusCode,
+      String reasonPhrase, Gson gson) {
+    return createNewElasticSearchResult(new BulkResult(gson), responseBody, statusCode, reasonPhrase, gson);
+  }
+
+  private static void quote(StringBuilder builder, String value) {
+    builder.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        builder.append('\\');
+      }
+      builder.append(c);
+    }
+    builder.append('"');
+  }
+}
@@ -0,0 +1,96 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ *
+ * @ClassName: CircuitBreaker
+ * @Description: ElasticSearch连续失败后断开, 同步模式的提交不再等待请求超时, 变更转入本地积压,
+ *               断开一段时间后由积压的请求逐个试探, 成功后恢复
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public class CircuitBreaker {
+
+  private final static Logger logger = Logger.getLogger(CircuitBreaker.class.getName());
+
+  public enum State {
+    // requests go through
+    CLOSED,
+    // ElasticSearch is considered down, nothing is sent
+    OPEN,
+    // one request at a time probes whether ElasticSearch is back
+    HALF_OPEN
+  }
+
+  // Consecutive failures that open the breaker
+  private final int failureThreshold;
+
+  // How long the breaker stays open before probing
+  private final long openNanos;
+
+  private volatile State state = State.CLOSED;
+
+  // Guarded by this
+  private int failures;
+
+  // Guarded by this
+  private long openedAt;
+
+  public CircuitBreaker(int failureThreshold, long openMillis) {
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public boolean isClosed() {
+    return state == State.CLOSED;
+  }
+
+  /**
+   * how long to wait before the next request, 0 when a request may be sent. An open breaker turns
+   * half-open once it has been open long enough.
+   * @return
+   */
+  public synchronized long delayNanos() {
+    if (state != State.OPEN) {
+      return 0;
+    }
+    long remaining = openedAt + openNanos - System.nanoTime();
+    if (remaining > 0) {
+      return remaining;
+    }
+    state = State.HALF_OPEN;
+    logger.info("probing ElasticSearch");
+    return 0;
+  }
+
+  /**
+   * ElasticSearch answered a request
+   */
+  public synchronized void succeeded() {
+    failures = 0;
+    if (state != State.CLOSED) {
+      state = State.CLOSED;
+      logger.info("ElasticSearch is back, circuit breaker closed");
+    }
+  }
+
+  /**
+   * a request failed or ElasticSearch answered that it is unavailable
+   */
+  public synchronized void failed() {
+    if (state == State.HALF_OPEN || (state == State.CLOSED && ++failures >= failureThreshold)) {
+      if (state == State.CLOSED) {
+        logger.warning("ElasticSearch failed " + failures + " times in a row, circuit breaker opened");
+      }
+      state = State.OPEN;
+      openedAt = System.nanoTime();
+    }
+  }
+}
@@ -0,0 +1,380 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * @ClassName: Coalescer
+ * @Description: 发送前按文档暂存变更一个短窗口, 同一文档较新的完整状态(index或delete)按transaction id替换较旧的,
+ *               窗口结束时只把最终状态交给后续阶段, 频繁修改的热点entity在窗口内只写一次
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public class Coalescer {
+
+  private final static Logger logger = Logger.getLogger(Coalescer.class.getName());
+
+  // The flusher looks for expired documents at most this often
+  private static final long MIN_TICK_MILLIS = 5L;
+
+  // And at least this often
+  private static final long MAX_TICK_MILLIS = 100L;
+
+  // Where the actions go once their window ends, the dispatcher
+  private final Consumer<Collection<BulkItem>> sink;
+
+  // Told about actions that are replaced, null when nobody waits for them
+  private final Watermark watermark;
+
+  private final SyncMetrics metrics;
+
+  private final long windowMillis;
+
+  private final long windowNanos;
+
+  // Beyond this payload the oldest documents are passed on before their window ends
+  private final long maxBytes;
+
+  // Guarded by this, the held actions by document, in the order the documents first changed
+  private final LinkedHashMap<String, Held> held = new LinkedHashMap<>();
+
+  // Guarded by this
+  private long heldBytes;
+
+  // Guarded by this
+  private long heldActions;
+
+  // Guarded by this
+  private boolean running;
+
+  private Thread flusher;
+
+  private Coalescer(Builder builder) {
+    this.sink = builder.sink;
+    this.watermark = builder.watermark;
+    this.metrics = builder.metrics;
+    this.windowMillis = Math.max(1, builder.windowMillis);
+    this.windowNanos = windowMillis * 1_000_000L;
+    this.maxBytes = builder.maxBytes > 0 ? builder.maxBytes : Long.MAX_VALUE;
+  }
+
+  /**
+   * start the flusher thread
+   */
+  public synchronized void start() {
+    running = true;
+    flusher = new Thread(this::flush, "neo4j-elasticsearch-coalescer");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * hold the actions of one committed transaction until the window of their documents ends
+   * @param items actions tagged with their transaction id
+   */
+  public void add(Collection<BulkItem> items) {
+    List<BulkItem> ready = null;
+    long now = System.nanoTime();
+    synchronized (this) {
+      if (!running) {
+        // closed, the listener is already unregistered, pass everything on after what is held for it
+        ready = new ArrayList<>(items.size());
+        for (BulkItem item : items) {
+          Held document = held.remove(key(item));
+          if (document != null) {
+            release(document, ready);
+          }
+          ready.add(item);
+        }
+      } else {
+        for (BulkItem item : items) {
+          String key = key(item);
+          Held document = held.get(key);
+          if (document == null) {
+            held.put(key, new Held(item, now));
+            heldBytes += item.getBytes();
+            heldActions++;
+          } else {
+            merge(document, item);
+          }
+        }
+        // over the limit, the documents that changed first go first
+        Iterator<Held> oldest = held.values().iterator();
+        while (heldBytes > maxBytes && oldest.hasNext()) {
+          if (ready == null) {
+            ready = new ArrayList<>();
+          }
+          Held document = oldest.next();
+          oldest.remove();
+          release(document, ready);
+        }
+      }
+    }
+    if (ready != null && !ready.isEmpty()) {
+      pass(ready);
+    }
+  }
+
+  /**
+   * number of actions held back
+   * @return
+   */
+  public synchronized long getHeldActions() {
+    return heldActions;
+  }
+
+  /**
+   * stop the flusher and pass on everything still held
+   * @param timeoutMillis
+   */
+  public void close(long timeoutMillis) {
+    synchronized (this) {
+      running = false;
+      notifyAll();
+    }
+    if (flusher != null) {
+      try {
+        flusher.join(timeoutMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    List<BulkItem> rest = new ArrayList<>();
+    synchronized (this) {
+      for (Held document : held.values()) {
+        release(document, rest);
+      }
+      held.clear();
+    }
+    if (!rest.isEmpty()) {
+      pass(rest);
+    }
+  }
+
+  private static String key(BulkItem item) {
+    return item.getIndex() + '/' + item.getId();
+  }
+
+  /**
+   * a full state replaces everything held for its document, an older one is covered by it
+   * @param document
+   * @param item
+   */
+  private void merge(Held document, BulkItem item) {
+    long transactionId = item.getTransactionId();
+    if (transactionId > 0 && document.stateTransactionId > transactionId) {
+      // committed before the held state but arrived after it, e.g. from a concurrent commit
+      supersede(document.actions, Collections.singletonList(item));
+      return;
+    }
+    if (isFullState(item)) {
+      List<BulkItem> replaced = document.actions;
+      document.actions = new ArrayList<>(1);
+      document.actions.add(item);
+      document.stateTransactionId = transactionId;
+      long bytes = 0;
+      for (BulkItem action : replaced) {
+        bytes += action.getBytes();
+      }
+      heldBytes += item.getBytes() - bytes;
+      heldActions += 1 - replaced.size();
+      supersede(document.actions, replaced);
+      return;
+    }
+    // a partial update only makes sense on top of what is held, keep both in order
+    document.actions.add(item);
+    heldBytes += item.getBytes();
+    heldActions++;
+  }
+
+  private static boolean isFullState(BulkItem item) {
+    return BulkItem.INDEX.equals(item.getMethod()) || BulkItem.DELETE.equals(item.getMethod());
+  }
+
+  /**
+   * drop the replaced actions. Their transactions are indexed only once the state that replaced them
+   * is, so the kept action with the oldest transaction takes over the oldest dropped transaction.
+   * @param kept
+   * @param dropped
+   */
+  private void supersede(List<BulkItem> kept, List<BulkItem> dropped) {
+    for (int i = 0; i < dropped.size(); i++) {
+      metrics.coalescedAction();
+    }
+    if (watermark == null) {
+      return;
+    }
+    BulkItem oldestDropped = oldest(dropped);
+    BulkItem oldestKept = oldest(kept);
+    List<BulkItem> resolved = new ArrayList<>(dropped.size() + 1);
+    for (BulkItem item : dropped) {
+      if (item != oldestDropped) {
+        resolved.add(item);
+      }
+    }
+    if (oldestDropped != null) {
+      if (oldestKept == null) {
+        // nothing kept is tracked, the kept state carries the dropped transaction from now on
+        oldestKept = kept.get(0);
+        oldestKept.setTransactionId(oldestDropped.getTransactionId());
+      } else if (oldestKept.getTransactionId() > oldestDropped.getTransactionId()) {
+        watermark.resolved(oldestKept);
+        oldestKept.setTransactionId(oldestDropped.getTransactionId());
+      } else {
+        resolved.add(oldestDropped);
+      }
+    }
+    if (!resolved.isEmpty()) {
+      watermark.resolved(resolved);
+    }
+  }
+
+  /**
+   * the action of the oldest transaction the watermark tracks
+   * @param items
+   * @return null if none is tracked
+   */
+  private static BulkItem oldest(List<BulkItem> items) {
+    BulkItem oldest = null;
+    for (BulkItem item : items) {
+      if (item.getTransactionId() > 0 && (oldest == null || item.getTransactionId() < oldest.getTransactionId())) {
+        oldest = item;
+      }
+    }
+    return oldest;
+  }
+
+  private void release(Held document, List<BulkItem> ready) {
+    ready.addAll(document.actions);
+    for (BulkItem action : document.actions) {
+      heldBytes -= action.getBytes();
+    }
+    heldActions -= document.actions.size();
+  }
+
+  private void pass(List<BulkItem> items) {
+    try {
+      sink.accept(items);
+    } catch (RuntimeException e) {
+      logger.log(Level.SEVERE, "can not pass on " + items.size() + " coalesced actions", e);
+      if (watermark != null) {
+        watermark.resolved(items);
+      }
+    }
+  }
+
+  /**
+   * pass on the documents whose window ended until closed
+   */
+  private void flush() {
+    long tick = Math.min(MAX_TICK_MILLIS, Math.max(MIN_TICK_MILLIS, windowMillis / 4));
+    while (true) {
+      List<BulkItem> ready = new ArrayList<>();
+      synchronized (this) {
+        if (!running) {
+          return;
+        }
+        long now = System.nanoTime();
+        Iterator<Held> oldest = held.values().iterator();
+        while (oldest.hasNext()) {
+          Held document = oldest.next();
+          if (now - document.firstChangedAt < windowNanos) {
+            break;
+          }
+          oldest.remove();
+          release(document, ready);
+        }
+        if (ready.isEmpty()) {
+          try {
+            wait(tick);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+          continue;
+        }
+      }
+      pass(ready);
+    }
+  }
+
+  private static class Held {
+
+    // The first change starts the window, later ones do not extend it
+    private final long firstChangedAt;
+
+    // A full state first if there is one, then partial updates in commit order
+    private List<BulkItem> actions;
+
+    // The transaction of the held full state, 0 without one
+    private long stateTransactionId;
+
+    Held(BulkItem item, long firstChangedAt) {
+      this.firstChangedAt = firstChangedAt;
+      this.actions = new ArrayList<>(1);
+      this.actions.add(item);
+      this.stateTransactionId = isFullState(item) ? item.getTransactionId() : 0;
+    }
+  }
+
+  /**
+   *
+   * @ClassName: Builder
+   * @Description: Builder for Coalescer
+   * @author: bianzexin
+   * @date: Feb 1, 2021
+   *
+   */
+  public static class Builder {
+
+    private Consumer<Collection<BulkItem>> sink;
+
+    private Watermark watermark;
+
+    private SyncMetrics metrics;
+
+    private long windowMillis;
+
+    private long maxBytes;
+
+    public Builder() {}
+
+    public Builder sink(Consumer<Collection<BulkItem>> sink) {
+      this.sink = sink;
+      return this;
+    }
+
+    public Builder watermark(Watermark watermark) {
+      this.watermark = watermark;
+      return this;
+    }
+
+    public Builder metrics(SyncMetrics metrics) {
+      this.metrics = metrics;
+      return this;
+    }
+
+    public Builder windowMillis(long windowMillis) {
+      this.windowMillis = windowMillis;
+      return this;
+    }
+
+    public Builder maxBytes(long maxBytes) {
+      this.maxBytes = maxBytes;
+      return this;
+    }
+
+    public Coalescer build() {
+      return new Coalescer(this);
+    }
+  }
+}
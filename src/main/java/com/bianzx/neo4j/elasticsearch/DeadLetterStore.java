@@ -0,0 +1,71 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+/**
+ *
+ * @ClassName: DeadLetterStore
+ * @Description: 保存永久失败的bulk操作, 每行一个json, 便于排查后重新导入
+ * @author: bianzexin
+ * @date: Dec 21, 2020
+ *
+ */
+public class DeadLetterStore {
+
+  private final static Logger logger = Logger.getLogger(DeadLetterStore.class.getName());
+
+  private static final Gson GSON = new Gson();
+
+  private final File file;
+
+  private BufferedWriter writer;
+
+  public DeadLetterStore(File file) {
+    this.file = file;
+  }
+
+  /**
+   * record an action that ElasticSearch refused permanently or that ran out of retries
+   * @param item
+   * @param status
+   * @param error
+   */
+  public synchronized void add(BulkItem item, int status, String error) {
+    JsonObject line = new JsonObject();
+    line.addProperty("time", System.currentTimeMillis());
+    line.addProperty("method", item.getMethod());
+    line.addProperty("index", item.getIndex());
+    line.addProperty("type", item.getType());
+    line.addProperty("id", item.getId());
+    line.addProperty("status", status);
+    line.addProperty("error", error);
+    line.addProperty("source", item.getSource());
+    try {
+      if (writer == null) {
+        writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      }
+      writer.write(GSON.toJson(line));
+      writer.newLine();
+      writer.flush();
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "can not write dead letter for " + item.getIndex() + "/" + item.getId(), e);
+    }
+  }
+
+  public synchronized void close() throws IOException {
+    if (writer != null) {
+      writer.close();
+      writer = null;
+    }
+  }
+}
@@ -0,0 +1,703 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import org.neo4j.graphdb.Entity;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ *
+ * @ClassName: DocumentFactory
+ * @Description: 将Neo4j的node和relationship转换为ElasticSearch的bulk操作, 事务同步和全量reindex共用
+ * @author: bianzexin
+ * @date: Dec 28, 2020
+ *
+ */
+public class DocumentFactory {
+
+  private final static Logger logger = Logger.getLogger(DocumentFactory.class.getName());
+
+  //The key of neo4j entity id that stores in elasticsearch.
+  private static final String ID = "id";
+
+  // The key of neo4j node labels that stores in elasticsearch.
+  private static final String LABELS = "labels";
+
+  // The key of neo4j relationship type that stores in elasticsearch.
+  private static final String TYPE = "type";
+
+  // The key of neo4j relationship startNodeId that stores in elasticsearch.
+  private static final String START_NODE_ID = "startNodeId";
+
+  // The key of neo4j relationship endNodeId that stores in elasticsearch.
+  private static final String END_NODE_ID = "endNodeId";
+
+  // The key of neo4j entity properties that stores in elasticsearch.
+  private static final String PROPERTIES = "properties";
+
+  // The key of the content digest of a document, compared by the reconciliation
+  private static final String HASH = "hash";
+
+  // The fields of every document besides its properties
+  private static final String[] METADATA_FIELDS = {ID, LABELS, TYPE, START_NODE_ID, END_NODE_ID, HASH};
+
+  // Relationship document ids start with this, node 42 and relationship 42 are different documents
+  private static final String RELATIONSHIP_ID_PREFIX = "r";
+
+  // Since ElasticSearch 6.x, there was not support multiple types for one index
+  public static final String INDEX_TYPE = "Neo4jIndex";
+
+  // The key of the partial document in an update action
+  private static final String DOC = "doc";
+
+  // FNV-1a 64 bit, the digest of one string
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  // Unmapped properties logged by name, later ones are only counted
+  private static final int MAX_REPORTED_PROPERTIES = 1000;
+
+  // Routes documents by label and relationship type
+  private final IndexLayout layout;
+
+  private final String indexType;
+
+  // Counts properties the mapping of their index does not know, may be null
+  private final SyncMetrics metrics;
+
+  // Index and property names already logged as unmapped
+  private final Set<String> reported = ConcurrentHashMap.newKeySet();
+
+  public DocumentFactory(String indexName) {
+    this(IndexLayout.single(indexName, 0, 0));
+  }
+
+  public DocumentFactory(IndexLayout layout) {
+    this(layout, null);
+  }
+
+  public DocumentFactory(IndexLayout layout, SyncMetrics metrics) {
+    this.layout = layout;
+    this.indexType = INDEX_TYPE;
+    this.metrics = metrics;
+  }
+
+  /**
+   * the fallback index, which receives everything when there is no layout file
+   * @return
+   */
+  public String getIndexName() {
+    return layout.getFallback().getName();
+  }
+
+  public IndexLayout getLayout() {
+    return layout;
+  }
+
+  public String getIndexType() {
+    return indexType;
+  }
+
+  /**
+   * get the document id of Entity. Node ids are used as they are, relationship ids are prefixed
+   * since both id spaces start at 0
+   * @param entity
+   * @return
+   */
+  public String id(Entity entity) {
+    return id(entity.getId(), entity instanceof Relationship);
+  }
+
+  /**
+   * get the document id of a node or relationship id
+   * @param id
+   * @param relationship
+   * @return
+   */
+  public String id(long id, boolean relationship) {
+    return relationship ? RELATIONSHIP_ID_PREFIX + id : String.valueOf(id);
+  }
+
+  /**
+   * whether a document id is the one of a relationship
+   * @param id
+   * @return
+   */
+  public boolean isRelationship(String id) {
+    return id.startsWith(RELATIONSHIP_ID_PREFIX);
+  }
+
+  /**
+   * the node or relationship id of a document id
+   * @param id
+   * @return
+   * @throws NumberFormatException if the document was not written by this plugin
+   */
+  public long entityId(String id) {
+    return Long.parseLong(isRelationship(id) ? id.substring(RELATIONSHIP_ID_PREFIX.length()) : id);
+  }
+
+  /**
+   * the index a document of the entity belongs to now
+   * @param entity
+   * @return
+   */
+  public String indexOf(Entity entity) {
+    if (entity instanceof Relationship) {
+      return layout.routesTypes() ? layout.relationshipIndex(((Relationship) entity).getType().name())
+          : layout.getFallback().getName();
+    }
+    if (!layout.routesLabels()) {
+      return layout.getFallback().getName();
+    }
+    return layout.nodeIndex(labels(((Node) entity).getLabels()));
+  }
+
+  /**
+   * the index of a node with these labels, e.g. the labels it had before a transaction
+   * @param labels
+   * @return
+   */
+  public String nodeIndex(Iterable<String> labels) {
+    return layout.nodeIndex(labels);
+  }
+
+  /**
+   * the properties of the entity that are part of its document
+   * @param entity
+   * @return
+   */
+  public PropertyProjection projection(Entity entity) {
+    if (!layout.projectsProperties()) {
+      return PropertyProjection.ALL;
+    }
+    if (entity instanceof Relationship) {
+      return layout.relationshipProjection(((Relationship) entity).getType().name());
+    }
+    return layout.nodeProjection(labels(((Node) entity).getLabels()));
+  }
+
+  /**
+   * construct indexRequest with the full document of the entity
+   * @param id the document id
+   * @param entity
+   * @return
+   */
+  public BulkItem index(String id, Entity entity) {
+    String index = indexOf(entity);
+    return new BulkItem(BulkItem.INDEX, index, indexType, id, source(entity, index));
+  }
+
+  /**
+   * construct an index request that fails with a conflict if the document exists, so a scan
+   * does not overwrite a document that a later transaction already wrote
+   * @param id
+   * @param entity
+   * @return
+   */
+  public BulkItem create(String id, Entity entity) {
+    String index = indexOf(entity);
+    return new BulkItem(BulkItem.CREATE, index, indexType, id, source(entity, index));
+  }
+
+  /**
+   * construct an index request without its document, which is read from the committed state by
+   * {@link #materialize(BulkItem, Entity)} after the transaction. The index is the one of the
+   * entity at commit, a later move to another index comes with its own delete.
+   * @param id
+   * @param entity
+   * @return
+   */
+  public BulkItem deferred(String id, Entity entity) {
+    return new BulkItem(BulkItem.INDEX, indexOf(entity), indexType, id, null);
+  }
+
+  /**
+   * complete a deferred index request with the current document of the entity
+   * @param deferred
+   * @param entity
+   * @return
+   */
+  public BulkItem materialize(BulkItem deferred, Entity entity) {
+    BulkItem item = new BulkItem(BulkItem.INDEX, deferred.getIndex(), deferred.getType(), deferred.getId(),
+        source(entity, deferred.getIndex()), deferred.getCreatedAt());
+    item.setTransactionId(deferred.getTransactionId());
+    item.setVersion(deferred.getVersion());
+    return item;
+  }
+
+  /**
+   * filter a document built before the mapping of its index was replaced, e.g. while the mapping was
+   * generated, by the mapping the index has now
+   * @param item
+   * @return the item itself if it was built with the current mapping or nothing had to be left out
+   */
+  public BulkItem filter(BulkItem item) {
+    IndexLayout.Index target = item.getSource() == null ? null : layout.getIndex(item.getIndex());
+    if (target == null || item.getCreatedAt() > target.getMappedAt() || target.getMappedProperties() == null) {
+      return item;
+    }
+    JsonObject source = new JsonParser().parse(item.getSource()).getAsJsonObject();
+    JsonObject document = BulkItem.UPDATE.equals(item.getMethod()) ? source.getAsJsonObject(DOC) : source;
+    JsonObject properties = document == null ? null : document.getAsJsonObject(PROPERTIES);
+    if (properties == null) {
+      return item;
+    }
+    Map<String, Object> names = new LinkedHashMap<>();
+    for (Map.Entry<String, JsonElement> property : properties.entrySet()) {
+      names.put(property.getKey(), null);
+    }
+    Map<String, Object> kept = mapped(item.getIndex(), names);
+    if (kept.size() == names.size()) {
+      return item;
+    }
+    for (String name : names.keySet()) {
+      if (!kept.containsKey(name)) {
+        properties.remove(name);
+      }
+    }
+    // the digest covered what was left out, the reconciliation resends the document
+    if (mapsHash(item.getIndex())) {
+      document.addProperty(HASH, hash(0));
+    }
+    BulkItem filtered = new BulkItem(item.getMethod(), item.getIndex(), item.getType(), item.getId(),
+        source.toString(), item.getCreatedAt());
+    filtered.setTransactionId(item.getTransactionId());
+    filtered.setVersion(item.getVersion());
+    return filtered;
+  }
+
+  /**
+   * the entity of a document id
+   * @param tx
+   * @param id
+   * @return null if the entity was deleted since
+   */
+  public Entity entity(Transaction tx, String id) {
+    try {
+      if (isRelationship(id)) {
+        return tx.getRelationshipById(entityId(id));
+      }
+      return tx.getNodeById(entityId(id));
+    } catch (NotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * construct deleteRequest
+   * @param id
+   * @param index the index the document was in
+   * @return
+   */
+  public BulkItem delete(String id, String index) {
+    return new BulkItem(BulkItem.DELETE, index, indexType, id, null);
+  }
+
+  /**
+   * construct updateRequest with a partial document
+   * @param id
+   * @param entity
+   * @param properties changed property values, null values are removed properties, null if none
+   * @param labels the full label list, null if the labels did not change
+   * @return
+   */
+  public BulkItem update(String id, Entity entity, Map<String, Object> properties, List<String> labels) {
+    String index = indexOf(entity);
+    DocumentWriter writer = DocumentWriter.get();
+    writer.beginObject().name(DOC).beginObject();
+    if (properties != null) {
+      // a removed property is cleared by setting it to null
+      writer.name(PROPERTIES).properties(mapped(index, properties));
+    }
+    if (labels != null) {
+      // arrays are replaced as a whole by a partial update
+      writer.name(LABELS).beginArray();
+      for (String label : labels) {
+        writer.value(label);
+      }
+      writer.endArray();
+    }
+    if (mapsHash(index)) {
+      // the digest covers the whole document, the properties that did not change are read for it
+      writer.name(HASH).value(hash(digest(entity)));
+    }
+    writer.endObject().endObject();
+    return new BulkItem(BulkItem.UPDATE, index, indexType, id, writer.finish());
+  }
+
+  /**
+   * serialize the document of an Entity, written straight from the entity without building
+   * intermediate maps and lists
+   * @param entity
+   * @param index the index the document goes to
+   * @return
+   */
+  private String source(Entity entity, String index) {
+    DocumentWriter writer = DocumentWriter.get();
+    writer.beginObject();
+    // the entity id, without the prefix of the document id
+    writer.name(ID).value(String.valueOf(entity.getId()));
+    Map<String, Object> properties = mapped(index, projection(entity).read(entity));
+    writer.name(PROPERTIES).properties(properties);
+    if (entity instanceof Node) {
+      // node labels
+      writer.name(LABELS).beginArray();
+      for (Label label : ((Node) entity).getLabels()) {
+        writer.value(label.name());
+      }
+      writer.endArray();
+    } else if (entity instanceof Relationship) {
+      Relationship relationship = (Relationship) entity;
+      // relationship type
+      writer.name(TYPE).value(relationship.getType().name());
+      // relationship startNodeId
+      writer.name(START_NODE_ID).value(String.valueOf(relationship.getStartNodeId()));
+      // relationship endNodeId
+      writer.name(END_NODE_ID).value(String.valueOf(relationship.getEndNodeId()));
+    }
+    if (mapsHash(index)) {
+      writer.name(HASH).value(hash(digest(entity, properties)));
+    }
+    return writer.endObject().finish();
+  }
+
+  /**
+   * the digest of the document the entity has now, equal to the hash field of its document in
+   * ElasticSearch as long as the two are in sync
+   * @param entity
+   * @return
+   */
+  public long digest(Entity entity) {
+    return digest(entity, mapped(indexOf(entity), projection(entity).read(entity), false));
+  }
+
+  /**
+   * the digest stored in a document source
+   * @param source the source of a document, at least its hash field
+   * @return 0 if the document has none, e.g. it was written before documents had one
+   */
+  public static long digest(JsonObject source) {
+    JsonElement hash = source == null ? null : source.get(HASH);
+    if (hash == null || !hash.isJsonPrimitive()) {
+      return 0;
+    }
+    try {
+      return Long.parseUnsignedLong(hash.getAsString(), 16);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * the field the digest is stored in, to read nothing else of the documents
+   * @return
+   */
+  public static String digestField() {
+    return HASH;
+  }
+
+  /**
+   * a 64 bit digest of the document content. Properties and labels are summed up, so the order in
+   * which Neo4j returns them does not matter.
+   * @param entity
+   * @param properties the properties in the document
+   * @return
+   */
+  private static long digest(Entity entity, Map<String, Object> properties) {
+    long digest = mix(append(FNV_OFFSET, entity.getId()));
+    long sum = 0;
+    for (Map.Entry<String, Object> property : properties.entrySet()) {
+      sum += mix(append(append(FNV_OFFSET, property.getKey()), property.getValue()));
+    }
+    digest = mix(digest + sum);
+    if (entity instanceof Node) {
+      sum = 0;
+      for (Label label : ((Node) entity).getLabels()) {
+        sum += mix(append(FNV_OFFSET, label.name()));
+      }
+      digest = mix(digest + sum);
+    } else if (entity instanceof Relationship) {
+      Relationship relationship = (Relationship) entity;
+      digest = append(digest, relationship.getType().name());
+      digest = mix(digest + 31 * relationship.getStartNodeId() + relationship.getEndNodeId());
+    }
+    return digest;
+  }
+
+  /**
+   * continue the digest with a property value, tagged by its kind so that 1 and "1" differ. Numbers,
+   * booleans and the arrays Neo4j stores them in are hashed without boxing or formatting.
+   * @param digest
+   * @param value
+   * @return
+   */
+  private static long append(long digest, Object value) {
+    if (value == null) {
+      return step(digest, 'n');
+    }
+    if (value instanceof String) {
+      return append(step(digest, 's'), (String) value);
+    }
+    if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      return append(step(digest, 'd'), ((Number) value).longValue());
+    }
+    if (value instanceof Double || value instanceof Float) {
+      return append(step(digest, 'f'), Double.doubleToLongBits(((Number) value).doubleValue()));
+    }
+    if (value instanceof Boolean) {
+      return step(step(digest, 'b'), (Boolean) value ? 't' : 'f');
+    }
+    if (value instanceof Character) {
+      return step(step(digest, 'c'), (Character) value);
+    }
+    if (value.getClass().isArray()) {
+      return step(appendArray(step(digest, '['), value), ']');
+    }
+    // temporal and spatial values
+    return append(step(digest, 'o'), String.valueOf(value));
+  }
+
+  /**
+   * continue the digest with the elements of an array, each as append would take it alone
+   * @param digest
+   * @param array
+   * @return
+   */
+  private static long appendArray(long digest, Object array) {
+    if (array instanceof long[]) {
+      for (long element : (long[]) array) {
+        digest = append(step(digest, 'd'), element);
+      }
+    } else if (array instanceof int[]) {
+      for (int element : (int[]) array) {
+        digest = append(step(digest, 'd'), element);
+      }
+    } else if (array instanceof short[]) {
+      for (short element : (short[]) array) {
+        digest = append(step(digest, 'd'), element);
+      }
+    } else if (array instanceof byte[]) {
+      for (byte element : (byte[]) array) {
+        digest = append(step(digest, 'd'), element);
+      }
+    } else if (array instanceof double[]) {
+      for (double element : (double[]) array) {
+        digest = append(step(digest, 'f'), Double.doubleToLongBits(element));
+      }
+    } else if (array instanceof float[]) {
+      for (float element : (float[]) array) {
+        digest = append(step(digest, 'f'), Double.doubleToLongBits(element));
+      }
+    } else if (array instanceof boolean[]) {
+      for (boolean element : (boolean[]) array) {
+        digest = step(step(digest, 'b'), element ? 't' : 'f');
+      }
+    } else if (array instanceof char[]) {
+      for (char element : (char[]) array) {
+        digest = step(step(digest, 'c'), element);
+      }
+    } else {
+      for (Object element : (Object[]) array) {
+        digest = append(digest, element);
+      }
+    }
+    return digest;
+  }
+
+  private static long append(long digest, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      digest = step(digest, value.charAt(i));
+    }
+    // the end of the string, "ab","c" and "a","bc" differ
+    return step(digest, '\uffff');
+  }
+
+  /**
+   * continue the digest with the 64 bits of a number, 16 at a time
+   * @param digest
+   * @param value
+   * @return
+   */
+  private static long append(long digest, long value) {
+    for (int shift = 48; shift >= 0; shift -= 16) {
+      digest = step(digest, (char) (value >>> shift));
+    }
+    return digest;
+  }
+
+  private static long step(long digest, char c) {
+    return (digest ^ c) * FNV_PRIME;
+  }
+
+  /**
+   * spread the bits of a digest, the finalizer of MurmurHash3
+   * @param value
+   * @return
+   */
+  static long mix(long value) {
+    value ^= value >>> 33;
+    value *= 0xff51afd7ed558ccdL;
+    value ^= value >>> 33;
+    value *= 0xc4ceb9fe1a85ec53L;
+    return value ^ (value >>> 33);
+  }
+
+  private static String hash(long digest) {
+    return Long.toHexString(digest);
+  }
+
+  /**
+   * count the properties the mapping of the index does not know. A strict mapping rejects the
+   * whole document, so they are left out then.
+   * @param index
+   * @param properties
+   * @return
+   */
+  private Map<String, Object> mapped(String index, Map<String, Object> properties) {
+    return mapped(index, properties, true);
+  }
+
+  /**
+   * @param index
+   * @param properties
+   * @param report whether to count and log the unmapped properties
+   * @return
+   */
+  private Map<String, Object> mapped(String index, Map<String, Object> properties, boolean report) {
+    IndexLayout.Index target = layout.getIndex(index);
+    Set<String> known = target == null ? null : target.getMappedProperties();
+    if (known == null) {
+      return properties;
+    }
+    Map<String, Object> kept = null;
+    for (String key : properties.keySet()) {
+      if (known.contains(key)) {
+        continue;
+      }
+      if (report) {
+        unmapped(index, key);
+      }
+      if (target.isStrict()) {
+        if (kept == null) {
+          kept = new LinkedHashMap<>(properties);
+        }
+        kept.remove(key);
+      }
+    }
+    return kept == null ? properties : kept;
+  }
+
+  /**
+   * whether documents of the index can carry their digest, a strict mapping of the layout file
+   * without the hash field rejects them otherwise
+   * @param index
+   * @return
+   */
+  private boolean mapsHash(String index) {
+    IndexLayout.Index target = layout.getIndex(index);
+    return target == null || target.mapsField(HASH);
+  }
+
+  private void unmapped(String index, String key) {
+    if (metrics != null) {
+      metrics.unmappedProperty();
+    }
+    if (reported.size() < MAX_REPORTED_PROPERTIES && reported.add(index + '/' + key)) {
+      logger.warning("property " + key + " is not in the mapping of " + index
+          + ", add it to the mapping to make it searchable");
+    }
+  }
+
+  /**
+   * the mapping of the document type, the metadata fields of the documents and the given
+   * property fields
+   * @param properties the mapping of each property
+   * @param dynamic what ElasticSearch does with other fields, true, false or strict
+   * @return
+   */
+  public static JsonObject mapping(Map<String, JsonObject> properties, String dynamic) {
+    JsonObject fields = new JsonObject();
+    for (String field : METADATA_FIELDS) {
+      fields.add(field, keyword());
+    }
+    JsonObject propertyFields = new JsonObject();
+    for (Map.Entry<String, JsonObject> property : properties.entrySet()) {
+      propertyFields.add(property.getKey(), property.getValue());
+    }
+    JsonObject propertiesObject = new JsonObject();
+    propertiesObject.addProperty("dynamic", dynamic);
+    propertiesObject.add(PROPERTIES, propertyFields);
+    fields.add(PROPERTIES, propertiesObject);
+    JsonObject mapping = new JsonObject();
+    mapping.addProperty("dynamic", dynamic);
+    mapping.add(PROPERTIES, fields);
+    return mapping;
+  }
+
+  /**
+   * add the metadata fields a mapping of the layout file leaves out, a strict mapping rejects every
+   * document otherwise
+   * @param mapping the mapping of the document type
+   * @return a copy with the missing metadata fields mapped as keyword
+   */
+  public static JsonObject withMetadata(JsonObject mapping) {
+    JsonObject merged = new JsonParser().parse(mapping.toString()).getAsJsonObject();
+    JsonObject fields = merged.getAsJsonObject(PROPERTIES);
+    if (fields == null) {
+      fields = new JsonObject();
+      merged.add(PROPERTIES, fields);
+    }
+    for (String field : METADATA_FIELDS) {
+      if (!fields.has(field)) {
+        fields.add(field, keyword());
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * the mapping that adds the digest field to an index created before documents had one
+   * @return
+   */
+  public static JsonObject hashMapping() {
+    JsonObject fields = new JsonObject();
+    fields.add(HASH, keyword());
+    JsonObject mapping = new JsonObject();
+    mapping.add(PROPERTIES, fields);
+    return mapping;
+  }
+
+  private static JsonObject keyword() {
+    JsonObject keyword = new JsonObject();
+    keyword.addProperty("type", "keyword");
+    return keyword;
+  }
+
+  /**
+   * get labels for Node
+   * Neo4j Node allows multiple labels
+   * @param labels
+   * @return
+   */
+  public List<String> labels(Iterable<Label> labels) {
+    List<String> list = new LinkedList<>();
+    for (Label label : labels) {
+      list.add(label.name());
+    }
+    return list;
+  }
+}
@@ -0,0 +1,332 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetTime;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAmount;
+import java.util.List;
+import java.util.Map;
+import org.neo4j.graphdb.spatial.Point;
+
+/**
+ *
+ * @ClassName: DocumentWriter
+ * @Description: 直接将文档写为json的流式writer, 每个线程复用一个缓冲区, 按Neo4j的属性类型分别编码,
+ *               包括基本类型数组, Point和时间类型
+ * @author: bianzexin
+ * @date: Jan 11, 2021
+ *
+ */
+public class DocumentWriter {
+
+  // Buffers that grew beyond this are dropped after use instead of being kept by the thread
+  private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  // The EPSG code of WGS-84 coordinates, written as ElasticSearch geo points
+  private static final int WGS84_2D = 4326;
+
+  private static final int WGS84_3D = 4979;
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private static final ThreadLocal<DocumentWriter> WRITERS = ThreadLocal.withInitial(DocumentWriter::new);
+
+  private StringBuilder buffer = new StringBuilder(INITIAL_CAPACITY);
+
+  // Whether the next value in the current object or array needs a separating comma
+  private boolean separate;
+
+  private DocumentWriter() {}
+
+  /**
+   * the writer of the current thread, emptied
+   * @return
+   */
+  public static DocumentWriter get() {
+    DocumentWriter writer = WRITERS.get();
+    writer.buffer.setLength(0);
+    writer.separate = false;
+    return writer;
+  }
+
+  /**
+   * the written json, the buffer is kept for the next document of this thread
+   * @return
+   */
+  public String finish() {
+    String json = buffer.toString();
+    if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+      buffer = new StringBuilder(INITIAL_CAPACITY);
+    }
+    return json;
+  }
+
+  public DocumentWriter beginObject() {
+    separator();
+    buffer.append('{');
+    separate = false;
+    return this;
+  }
+
+  public DocumentWriter endObject() {
+    buffer.append('}');
+    separate = true;
+    return this;
+  }
+
+  public DocumentWriter beginArray() {
+    separator();
+    buffer.append('[');
+    separate = false;
+    return this;
+  }
+
+  public DocumentWriter endArray() {
+    buffer.append(']');
+    separate = true;
+    return this;
+  }
+
+  /**
+   * the name of the next member of an object
+   * @param name
+   * @return
+   */
+  public DocumentWriter name(String name) {
+    separator();
+    string(name);
+    buffer.append(':');
+    separate = false;
+    return this;
+  }
+
+  public DocumentWriter value(String value) {
+    separator();
+    if (value == null) {
+      buffer.append("null");
+    } else {
+      string(value);
+    }
+    separate = true;
+    return this;
+  }
+
+  public DocumentWriter value(long value) {
+    separator();
+    buffer.append(value);
+    separate = true;
+    return this;
+  }
+
+  public DocumentWriter value(double value) {
+    separator();
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      // not representable in json
+      buffer.append("null");
+    } else {
+      buffer.append(value);
+    }
+    separate = true;
+    return this;
+  }
+
+  /**
+   * floats keep their shortest decimal form, 0.1f is not written as 0.10000000149011612
+   * @param value
+   * @return
+   */
+  private DocumentWriter floatValue(float value) {
+    separator();
+    if (Float.isNaN(value) || Float.isInfinite(value)) {
+      buffer.append("null");
+    } else {
+      buffer.append(value);
+    }
+    separate = true;
+    return this;
+  }
+
+  public DocumentWriter value(boolean value) {
+    separator();
+    buffer.append(value);
+    separate = true;
+    return this;
+  }
+
+  public DocumentWriter nullValue() {
+    separator();
+    buffer.append("null");
+    separate = true;
+    return this;
+  }
+
+  /**
+   * write the properties as an object, null values included
+   * @param properties
+   * @return
+   */
+  public DocumentWriter properties(Map<String, Object> properties) {
+    beginObject();
+    for (Map.Entry<String, Object> property : properties.entrySet()) {
+      name(property.getKey());
+      value(property.getValue());
+    }
+    return endObject();
+  }
+
+  /**
+   * write a Neo4j property value
+   * @param value
+   * @return
+   */
+  public DocumentWriter value(Object value) {
+    if (value == null) {
+      return nullValue();
+    } else if (value instanceof String) {
+      return value((String) value);
+    } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+        || value instanceof Byte) {
+      return value(((Number) value).longValue());
+    } else if (value instanceof Double) {
+      return value(((Double) value).doubleValue());
+    } else if (value instanceof Float) {
+      return floatValue(((Float) value).floatValue());
+    } else if (value instanceof Boolean) {
+      return value(((Boolean) value).booleanValue());
+    } else if (value instanceof Character) {
+      return value(value.toString());
+    } else if (value instanceof Point) {
+      return point((Point) value);
+    } else if (value instanceof ZonedDateTime) {
+      return value(DateTimeFormatter.ISO_OFFSET_DATE_TIME.format((ZonedDateTime) value));
+    } else if (value instanceof LocalDateTime || value instanceof LocalDate || value instanceof LocalTime
+        || value instanceof OffsetTime || value instanceof TemporalAmount) {
+      // ISO-8601, durations as P1DT2H
+      return value(value.toString());
+    } else if (value.getClass().isArray()) {
+      return array(value);
+    }
+    return value(String.valueOf(value));
+  }
+
+  /**
+   * primitive arrays are written without boxing their elements
+   * @param array
+   * @return
+   */
+  private DocumentWriter array(Object array) {
+    beginArray();
+    if (array instanceof long[]) {
+      for (long element : (long[]) array) {
+        value(element);
+      }
+    } else if (array instanceof int[]) {
+      for (int element : (int[]) array) {
+        value(element);
+      }
+    } else if (array instanceof short[]) {
+      for (short element : (short[]) array) {
+        value(element);
+      }
+    } else if (array instanceof byte[]) {
+      for (byte element : (byte[]) array) {
+        value(element);
+      }
+    } else if (array instanceof double[]) {
+      for (double element : (double[]) array) {
+        value(element);
+      }
+    } else if (array instanceof float[]) {
+      for (float element : (float[]) array) {
+        floatValue(element);
+      }
+    } else if (array instanceof boolean[]) {
+      for (boolean element : (boolean[]) array) {
+        value(element);
+      }
+    } else if (array instanceof char[]) {
+      for (char element : (char[]) array) {
+        value(String.valueOf(element));
+      }
+    } else {
+      for (Object element : (Object[]) array) {
+        value(element);
+      }
+    }
+    return endArray();
+  }
+
+  /**
+   * WGS-84 points as geo points, which have no height, cartesian points as x, y and z
+   * @param point
+   * @return
+   */
+  private DocumentWriter point(Point point) {
+    List<Double> coordinate = point.getCoordinate().getCoordinate();
+    int code = point.getCRS().getCode();
+    beginObject();
+    if (code == WGS84_2D || code == WGS84_3D) {
+      name("lat").value(coordinate.get(1).doubleValue());
+      name("lon").value(coordinate.get(0).doubleValue());
+    } else {
+      name("x").value(coordinate.get(0).doubleValue());
+      name("y").value(coordinate.get(1).doubleValue());
+      if (coordinate.size() > 2) {
+        name("z").value(coordinate.get(2).doubleValue());
+      }
+    }
+    return endObject();
+  }
+
+  private void separator() {
+    if (separate) {
+      buffer.append(',');
+    }
+  }
+
+  /**
+   * write a json string, escaping quotes, backslashes, control characters and the line
+   * separators that javascript does not accept in strings
+   * @param value
+   */
+  private void string(String value) {
+    buffer.append('"');
+    int length = value.length();
+    int start = 0;
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+        continue;
+      }
+      buffer.append(value, start, i);
+      start = i + 1;
+      switch (c) {
+        case '"':
+          buffer.append("\\\"");
+          break;
+        case '\\':
+          buffer.append("\\\\");
+          break;
+        case '\n':
+          buffer.append("\\n");
+          break;
+        case '\r':
+          buffer.append("\\r");
+          break;
+        case '\t':
+          buffer.append("\\t");
+          break;
+        default:
+          buffer.append("\\u").append(HEX[c >> 12 & 0xf]).append(HEX[c >> 8 & 0xf])
+              .append(HEX[c >> 4 & 0xf]).append(HEX[c & 0xf]);
+      }
+    }
+    buffer.append(value, start, length);
+    buffer.append('"');
+  }
+}
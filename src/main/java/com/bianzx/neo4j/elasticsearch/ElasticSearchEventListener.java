@@ -1,16 +1,17 @@
 package com.bianzx.neo4j.elasticsearch;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.neo4j.graphdb.Entity;
 import org.neo4j.graphdb.GraphDatabaseService;
-import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
@@ -18,15 +19,9 @@ import org.neo4j.graphdb.event.LabelEntry;
 import org.neo4j.graphdb.event.PropertyEntry;
 import org.neo4j.graphdb.event.TransactionData;
 import org.neo4j.graphdb.event.TransactionEventListener;
-import io.searchbox.action.BulkableAction;
 import io.searchbox.client.JestClient;
-import io.searchbox.client.JestResult;
-import io.searchbox.client.JestResultHandler;
-import io.searchbox.core.Bulk;
-import io.searchbox.core.Delete;
-import io.searchbox.core.DocumentResult;
-import io.searchbox.core.Index;
-import io.searchbox.core.Update;
+import io.searchbox.core.BulkResult;
+import io.searchbox.core.BulkResult.BulkResultItem;
 
 /**
  * 
@@ -36,37 +31,19 @@ import io.searchbox.core.Update;
  * @date: Nov 2, 2020
  *
  */
-public class ElasticSearchEventListener
-    implements TransactionEventListener<Collection<BulkableAction<DocumentResult>>>, JestResultHandler<JestResult> {
+public class ElasticSearchEventListener implements TransactionEventListener<Collection<BulkItem>> {
 
   private final static Logger logger = Logger.getLogger(ElasticSearchEventListener.class.getName());
-  
-  //The key of neo4j entity id that stores in elasticsearch.
-  private static final String ID = "id";
-
-  // The key of neo4j node labels that stores in elasticsearch.
-  private static final String LABELS = "labels";
-
-  // The key of neo4j relationship type that stores in elasticsearch.
-  private static final String TYPE = "type";
-
-  // The key of neo4j relationship startNodeId that stores in elasticsearch.
-  private static final String START_NODE_ID = "startNodeId";
 
-  // The key of neo4j relationship endNodeId that stores in elasticsearch.
-  private static final String END_NODE_ID = "endNodeId";
+  // How long a sync mode commit waits for the backlog of an outage to be delivered
+  private static final long BACKLOG_WAIT_MILLIS = 10_000L;
 
-  // The key of neo4j entity properties that stores in elasticsearch.
-  private static final String PROPERTIES = "properties";
   
-  // Since ElasticSearch 6.x, there was not support multiple types for one index
-  private static final String INDEX_TYPE = "Neo4jIndex";
-
   // The client for ElasticSearch
   private final JestClient jestClient;
 
-  // The index Name for ElasticSearch Index
-  private final String indexName;
+  // Builds the bulk actions of changed entities
+  private final DocumentFactory documents;
 
   // Whether to sync nodes or not
   private final boolean syncNodes;
@@ -76,8 +53,45 @@ public class ElasticSearchEventListener
 
   // Should ElasticSearch indexation use async
   private final boolean executeAsync;
-  
-  private final String indexType;
+
+  // Send only changed properties and labels of existing entities
+  private final boolean partialUpdates;
+
+  // Version index and delete actions with the committing transaction id
+  private final boolean externalVersioning;
+
+  // Whether label changes are recorded, a node can move to another index when its labels change
+  private final boolean routesLabels;
+
+  // Whether changes of properties that are not synced are ignored
+  private final boolean projectsProperties;
+
+  // Batches actions of many transactions when executeAsync is enabled, holds the backlog in sync mode
+  private final BulkDispatcher dispatcher;
+
+  private final SyncMetrics metrics;
+
+  // Sync mode only, while open or while the backlog drains, changes go to the dispatcher
+  private final CircuitBreaker breaker;
+
+  // Builds the documents after commit when set, beforeCommit then only records what changed
+  private final Materializer materializer;
+
+  // Async mode only, holds the actions of hot entities for a short window when set, the materializer
+  // passes its actions to it instead when there is one
+  private final Coalescer coalescer;
+
+  // One in this many transactions is traced at FINE level
+  private final int traceSampleInterval;
+
+  // Prepares the indices in the background, changes go to the dispatcher until they are ready
+  private final Bootstrap bootstrap;
+
+  // Tracks transactions handed to the dispatcher until they are delivered, may be null
+  private final Watermark watermark;
+
+  // The index being rebuilt, receives full documents of every change as well while set
+  private volatile DocumentFactory shadow;
 
   /**
    * Construct for ElasticSearchEventListener
@@ -85,296 +99,527 @@ public class ElasticSearchEventListener
    */
   private ElasticSearchEventListener(Builder builder) {
     this.jestClient = builder.jestClient;
-    this.indexName = builder.indexName;
+    this.documents = builder.documents != null ? builder.documents : new DocumentFactory(builder.indexName);
     this.syncNodes = builder.syncNodes;
     this.syncRelationships = builder.syncRelationships;
     this.executeAsync = builder.executeAsync;
-    this.indexType = INDEX_TYPE;
+    this.partialUpdates = builder.partialUpdates;
+    this.externalVersioning = builder.externalVersioning;
+    this.routesLabels = documents.getLayout().routesLabels();
+    this.projectsProperties = documents.getLayout().projectsProperties();
+    this.dispatcher = builder.dispatcher;
+    this.metrics = builder.metrics != null ? builder.metrics : new SyncMetrics();
+    this.materializer = builder.executeAsync ? builder.materializer : null;
+    this.coalescer = builder.executeAsync && builder.materializer == null ? builder.coalescer : null;
+    this.breaker = builder.executeAsync || builder.dispatcher == null ? null : builder.breaker;
+    this.traceSampleInterval = Math.max(1, builder.traceSampleInterval);
+    this.bootstrap = builder.bootstrap;
+    this.watermark = builder.watermark;
   }
 
-  /**
-   * ####################################################
-   * # Implements methods for {@link JestResultHandler} #
-   * ####################################################
-   */
-  @Override
-  public void completed(JestResult result) {
-    if (result.isSucceeded() && result.getErrorMessage() == null) {
-      logger.fine("data transfer completed,jsonData:" + result.getJsonString());
-    } else {
-      logger.severe("data transfer error: " + result.getErrorMessage() + ",jsonData:" + result.getJsonString());
-    }
-  }
-
-  @Override
-  public void failed(Exception ex) {
-    logger.log(Level.WARNING, "data transfer failed", ex);
-  }
-  
   /**
    * ###########################################################
    * # Implements methods for {@link TransactionEventListener} #
    * ###########################################################
    */
   @Override
-  public Collection<BulkableAction<DocumentResult>> beforeCommit(TransactionData data, Transaction transaction,
+  public Collection<BulkItem> beforeCommit(TransactionData data, Transaction transaction,
       GraphDatabaseService databaseService) throws Exception {
-    Map<SyncDataKey, BulkableAction<DocumentResult>> actions = new LinkedHashMap<>();
+    long startedAt = System.nanoTime();
+    // first pass: work out which entities were touched and how, without reading their state
+    // node and relationship ids are separate id spaces, so each has its own map
+    LongMap<EntityChange> nodeChanges = new LongMap<>();
+    LongMap<EntityChange> relationshipChanges = new LongMap<>();
     if (syncNodes) {
       // all changed nodes
-      logger.severe("Starting to sync indexing Nodes");
-      collectChangedNodes(actions, data);
+      collectChangedNodes(nodeChanges, data);
     }
     if (syncRelationships) {
       // all changed relationships
-      logger.severe("Starting to sync indexing Relationships");
-      collectChangedRelations(actions, data);
+      collectChangedRelations(relationshipChanges, data);
+    }
+    int changed = nodeChanges.size() + relationshipChanges.size();
+    if (changed == 0) {
+      return Collections.<BulkItem>emptyList();
+    }
+    DocumentFactory rebuilding = shadow;
+    List<BulkItem> actions = new ArrayList<>(rebuilding == null ? changed : changed * 2);
+    if (materializer != null) {
+      // documents are read after commit, only ids and operations are recorded here
+      deferredActions(actions, nodeChanges, rebuilding);
+      deferredActions(actions, relationshipChanges, rebuilding);
+    } else {
+      // second pass: read and serialize each surviving entity exactly once
+      actions(actions, nodeChanges, rebuilding);
+      actions(actions, relationshipChanges, rebuilding);
+    }
+
+    long nanos = System.nanoTime() - startedAt;
+    metrics.transaction(nanos, actions.size());
+    if (logger.isLoggable(Level.FINE) && ThreadLocalRandom.current().nextInt(traceSampleInterval) == 0) {
+      logger.fine("transaction changed " + nodeChanges.size() + " nodes and " + relationshipChanges.size()
+          + " relationships, " + actions.size() + " actions built in " + nanos / 1000 + "us");
     }
-    return actions.isEmpty() ? Collections.<BulkableAction<DocumentResult>>emptyList() : actions.values();
+    if (watermark != null) {
+      // the transaction id is only known after commit, until then awaitIndexed waits for it
+      watermark.committing(actions);
+    }
+    return actions;
+  }
+
+  /**
+   * the bulk actions of the changed entities of one kind
+   * @param actions
+   * @param changes
+   * @param rebuilding the index being rebuilt, or null
+   */
+  private void actions(List<BulkItem> actions, LongMap<EntityChange> changes, DocumentFactory rebuilding) {
+    for (EntityChange change : changes.values()) {
+      if (!change.indexed()) {
+        continue;
+      }
+      String id = documents.id(change.entity);
+      if (rebuilding != null && !(change.created && change.deleted)) {
+        // the document may not be scanned into the new index yet, a partial update could not apply
+        if (change.deleted) {
+          actions.add(rebuilding.delete(id, previousIndex(rebuilding, change)));
+        } else {
+          moved(actions, rebuilding, id, change);
+          actions.add(rebuilding.index(id, change.entity));
+        }
+      }
+      if (change.deleted) {
+        // created and deleted in the same transaction, nothing was ever indexed
+        if (!change.created) {
+          actions.add(documents.delete(id, previousIndex(documents, change)));
+        }
+      } else if (moved(actions, documents, id, change)) {
+        // the new index has no document to update
+        actions.add(documents.index(id, change.entity));
+      } else if (partialUpdates && !change.created && !(projectsProperties && change.labelsChanged)) {
+        // only what changed, new labels may sync other properties and index the whole document
+        actions.add(documents.update(id, change.entity, change.properties,
+            change.labelsChanged ? documents.labels(((Node) change.entity).getLabels()) : null));
+      } else {
+        actions.add(documents.index(id, change.entity));
+      }
+    }
+  }
+
+  /**
+   * the deletes and deferred index actions of the changed entities of one kind, the committed
+   * state is indexed as a whole, so partial updates do not apply
+   * @param actions
+   * @param changes
+   * @param rebuilding the index being rebuilt, or null
+   */
+  private void deferredActions(List<BulkItem> actions, LongMap<EntityChange> changes,
+      DocumentFactory rebuilding) {
+    for (EntityChange change : changes.values()) {
+      if ((change.created && change.deleted) || !change.indexed()) {
+        continue;
+      }
+      String id = documents.id(change.entity);
+      if (rebuilding != null) {
+        deferredAction(actions, rebuilding, id, change);
+      }
+      deferredAction(actions, documents, id, change);
+    }
+  }
+
+  private void deferredAction(List<BulkItem> actions, DocumentFactory factory, String id, EntityChange change) {
+    if (change.deleted) {
+      actions.add(factory.delete(id, previousIndex(factory, change)));
+    } else {
+      moved(actions, factory, id, change);
+      actions.add(factory.deferred(id, change.entity));
+    }
+  }
+
+  /**
+   * delete the document from its old index if a label change moved the node to another one
+   * @param actions
+   * @param factory
+   * @param id
+   * @param change
+   * @return whether the node moved
+   */
+  private boolean moved(List<BulkItem> actions, DocumentFactory factory, String id, EntityChange change) {
+    if (!routesLabels || change.created || !change.labelsChanged) {
+      return false;
+    }
+    String previous = previousIndex(factory, change);
+    if (previous.equals(factory.indexOf(change.entity))) {
+      return false;
+    }
+    actions.add(factory.delete(id, previous));
+    return true;
+  }
+
+  /**
+   * the index the document of the entity was in before the transaction
+   * @param factory
+   * @param change
+   * @return
+   */
+  private String previousIndex(DocumentFactory factory, EntityChange change) {
+    if (!(change.entity instanceof Node)) {
+      // the type of a relationship never changes, and can be read even after it was deleted
+      return factory.indexOf(change.entity);
+    }
+    if (!routesLabels) {
+      return factory.getIndexName();
+    }
+    // labels of a deleted node can not be read, they are all among the removed labels
+    List<String> labels =
+        change.deleted ? new ArrayList<>() : factory.labels(((Node) change.entity).getLabels());
+    if (change.assignedLabels != null) {
+      labels.removeAll(change.assignedLabels);
+    }
+    if (change.removedLabels != null) {
+      labels.addAll(change.removedLabels);
+    }
+    return factory.nodeIndex(labels);
+  }
+
+  /**
+   * write changes to a second index too while it is rebuilt, null to stop
+   * @param shadow
+   */
+  public void shadow(DocumentFactory shadow) {
+    this.shadow = shadow;
   }
 
   @Override
-  public void afterCommit(TransactionData data, Collection<BulkableAction<DocumentResult>> state,
+  public void afterCommit(TransactionData data, Collection<BulkItem> state,
       GraphDatabaseService databaseService) {
     if (state.isEmpty()) {
       return;
     }
     try {
-      Bulk bulk = new Bulk.Builder().addAction(state).build();
-      if (executeAsync) {
-        jestClient.executeAsync(bulk, this);
-      } else {
-        jestClient.execute(bulk);
+      handOver(data, state);
+    } finally {
+      if (watermark != null) {
+        watermark.settled(state);
+      }
+    }
+  }
+
+  /**
+   * send the actions of a committed transaction, or hand them to the dispatcher, the materializer or
+   * the coalescer
+   * @param data
+   * @param state
+   */
+  private void handOver(TransactionData data, Collection<BulkItem> state) {
+    long transactionId = data.getTransactionId();
+    for (BulkItem item : state) {
+      item.setTransactionId(transactionId);
+      if (externalVersioning) {
+        // transaction ids grow with every commit, a bulk that arrives late can not undo a later one
+        item.setVersion(transactionId);
+      }
+    }
+    if (materializer != null) {
+      // documents are built from the committed state off the committing thread
+      if (watermark != null) {
+        watermark.committed(state);
+      }
+      materializer.add(state);
+      return;
+    }
+    if (coalescer != null) {
+      if (watermark != null) {
+        watermark.committed(state);
+      }
+      coalescer.add(state);
+      return;
+    }
+    if (executeAsync) {
+      // the dispatcher merges this transaction into the next bulk request
+      dispatch(state);
+      return;
+    }
+    if (dispatcher != null && bootstrap != null && !bootstrap.isReady()) {
+      // the indices are not there yet, the dispatcher starts sending once they are
+      dispatch(state);
+      return;
+    }
+    if (breaker != null && !breaker.isClosed()) {
+      // ElasticSearch is down, do not wait for it
+      dispatch(state);
+      return;
+    }
+    if (dispatcher != null && !dispatcher.isDrained()) {
+      // the backlog of an outage or of the startup goes first, wait for it like for a sync request
+      dispatch(state);
+      dispatcher.awaitDrained(BACKLOG_WAIT_MILLIS);
+      return;
+    }
+    try {
+      long bytes = 0;
+      for (BulkItem item : state) {
+        bytes += item.getBytes();
+      }
+      long sentAt = System.nanoTime();
+      BulkResult result = jestClient.execute(new BulkRequest(filtered(state)));
+      metrics.request(state.size(), bytes, System.nanoTime() - sentAt, result.isSucceeded());
+      if (breaker != null) {
+        int status = result.getResponseCode();
+        if (status == 429 || status >= 500) {
+          logger.warning("data transfer rejected, status " + status + ", keeping the changes in the backlog");
+          breaker.failed();
+          dispatch(state);
+          return;
+        }
+        breaker.succeeded();
+      }
+      long now = System.currentTimeMillis();
+      // actions ElasticSearch was too busy for, the dispatcher retries them
+      List<BulkItem> retries = new ArrayList<>(0);
+      Iterator<BulkResultItem> items = result.getItems().iterator();
+      for (BulkItem item : state) {
+        if (!items.hasNext()) {
+          break;
+        }
+        BulkResultItem response = items.next();
+        if (BulkDispatcher.isSuccess(item, response)) {
+          if (response.status == 409) {
+            metrics.staleAction();
+          }
+          metrics.acknowledged(item, now);
+        } else {
+          metrics.itemFailed();
+          if (dispatcher == null) {
+            logger.severe("data transfer failed for " + item.getIndex() + "/" + item.getId() + ", status "
+                + response.status + ": " + response.error);
+          } else if (BulkDispatcher.isTransient(response)) {
+            retries.add(item);
+          } else {
+            dispatcher.deadLetter(item, response.status, response.error);
+          }
+        }
+      }
+      if (watermark != null) {
+        watermark.delivered(state);
+      }
+      if (!retries.isEmpty()) {
+        dispatch(retries);
+      }
+      if (!result.isSucceeded()) {
+        logger.severe("data transfer error: " + result.getErrorMessage() + ",jsonData:" + result.getJsonString());
       }
     } catch (Exception e) {
+      if (breaker != null) {
+        logger.log(Level.WARNING, "data transfer execution error after commit, keeping the changes in the backlog", e);
+        breaker.failed();
+        dispatch(state);
+        return;
+      }
       logger.log(Level.SEVERE, "data transfer execution error after commit", e);
     }
   }
 
+  /**
+   * the actions as they are sent, documents built before the mapping of their index was replaced are
+   * filtered by the new one
+   * @param state
+   * @return
+   */
+  private Collection<BulkItem> filtered(Collection<BulkItem> state) {
+    List<BulkItem> items = new ArrayList<>(state.size());
+    for (BulkItem item : state) {
+      items.add(documents.filter(item));
+    }
+    return items;
+  }
+
+  /**
+   * hand the actions of a committed transaction to the dispatcher, which delivers them later
+   * @param state
+   */
+  private void dispatch(Collection<BulkItem> state) {
+    if (watermark != null) {
+      watermark.committed(state);
+    }
+    dispatcher.add(state);
+  }
+
   @Override
-  public void afterRollback(TransactionData data, Collection<BulkableAction<DocumentResult>> state,
+  public void afterRollback(TransactionData data, Collection<BulkItem> state,
       GraphDatabaseService databaseService) {
+    if (watermark != null && state != null) {
+      watermark.settled(state);
+    }
   }
 
   /**
-   * sync nodes datas from Neo4j to ElasticSearch
-   * @param actions
+   * collect changed nodes from Neo4j to ElasticSearch
+   * @param changes
    * @param data
    */
-  private void collectChangedNodes(Map<SyncDataKey, BulkableAction<DocumentResult>> actions,
+  private void collectChangedNodes(LongMap<EntityChange> changes,
       TransactionData data) {
     // created nodes
     for (Node node : data.createdNodes()) {
-      String id = id(node);
-      actions.put(new SyncDataKey(indexName, indexType, id), indexRequest(id, node));
+      change(changes, node).created = true;
     }
 
     // deleted nodes
     for (Node node : data.deletedNodes()) {
-      String id = id(node);
-      actions.put(new SyncDataKey(indexName, indexType, id), deleteRequest(id, node));
+      change(changes, node).deleted = true;
     }
 
     // assigned labels
     for (LabelEntry labelEntry : data.assignedLabels()) {
-      Node node = labelEntry.node();
-      String id = id(node);
-      if (data.isDeleted(labelEntry.node())) {
-        actions.put(new SyncDataKey(indexName, indexType, id), deleteRequest(id, node));
-      } else {
-        actions.put(new SyncDataKey(indexName, indexType, id), indexRequest(id, labelEntry.node()));
+      EntityChange change = change(changes, labelEntry.node());
+      change.labelsChanged = true;
+      if (routesLabels) {
+        change.assignedLabels = add(change.assignedLabels, labelEntry.label().name());
       }
     }
 
-    // removed labels
+    // removed labels, all labels of a deleted node
     for (LabelEntry labelEntry : data.removedLabels()) {
-      Node node = labelEntry.node();
-      String id = id(node);
-      actions.put(new SyncDataKey(indexName, indexType, id), deleteRequest(id, node));
+      EntityChange change = change(changes, labelEntry.node());
+      change.labelsChanged = true;
+      if (routesLabels) {
+        change.removedLabels = add(change.removedLabels, labelEntry.label().name());
+      }
     }
 
     // assigned node properties
     for (PropertyEntry<Node> propEntry : data.assignedNodeProperties()) {
-      Node node = propEntry.entity();
-      String id = id(node);
-      actions.put(new SyncDataKey(indexName, indexType, id), indexRequest(id, node));
+      propertyChanged(change(changes, propEntry.entity()), propEntry.key(), propEntry.value());
     }
 
     // removed node properties
     for (PropertyEntry<Node> propEntry : data.removedNodeProperties()) {
-      Node node = propEntry.entity();
-      String id = id(node);
-      if (data.isDeleted(node)) {
-        actions.put(new SyncDataKey(indexName, indexType, id), deleteRequest(id, node));
-      } else {
-        actions.put(new SyncDataKey(indexName, indexType, id), indexRequest(id, node));
-      }
+      propertyChanged(change(changes, propEntry.entity()), propEntry.key(), null);
     }
   }
 
   /**
-   * sync relationships data from neo4j to ElasticSearch
-   * @param actions
+   * collect changed relationships from neo4j to ElasticSearch
+   * @param changes
    * @param data
    */
-  private void collectChangedRelations(Map<SyncDataKey, BulkableAction<DocumentResult>> actions,
+  private void collectChangedRelations(LongMap<EntityChange> changes,
       TransactionData data) {
     // created relationships
     for (Relationship relationship : data.createdRelationships()) {
-      String id = id(relationship);
-      logger.severe("Relationship id is:" + id);
-      actions.put(new SyncDataKey(indexName, indexType, id), indexRequest(id, relationship));
+      change(changes, relationship).created = true;
     }
 
     // deleted relationships
     for (Relationship relationship : data.deletedRelationships()) {
-      String id = id(relationship);
-      actions.put(new SyncDataKey(indexName, indexType, id), deleteRequest(id, relationship));
+      change(changes, relationship).deleted = true;
     }
 
     // assigned relationship properties
     for (PropertyEntry<Relationship> propEntry : data.assignedRelationshipProperties()) {
-      Relationship relationship = propEntry.entity();
-      String id = id(relationship);
-      actions.put(new SyncDataKey(indexName, indexType, id), indexRequest(id, relationship));
+      propertyChanged(change(changes, propEntry.entity()), propEntry.key(), propEntry.value());
     }
 
     // removed relationship properties
     for (PropertyEntry<Relationship> propEntry : data.removedRelationshipProperties()) {
-      Relationship relationship = propEntry.entity();
-      String id = id(relationship);
-      if (data.isDeleted(relationship)) {
-        actions.put(new SyncDataKey(indexName, indexType, id), deleteRequest(id, relationship));
-      } else {
-        actions.put(new SyncDataKey(indexName, indexType, id), indexRequest(id, relationship));
-      }
+      propertyChanged(change(changes, propEntry.entity()), propEntry.key(), null);
     }
   }
 
   /**
-   * construct indexRequest
-   * @param id
+   * get or create the change record of a touched entity
+   * @param changes
    * @param entity
    * @return
    */
-  private BulkableAction<DocumentResult> indexRequest(String id, Entity entity) {
-    Index.Builder builder = new Index.Builder(properties(id, entity)).index(indexName).id(id);
-    return builder.type(indexType).build();
+  private EntityChange change(LongMap<EntityChange> changes, Entity entity) {
+    long id = entity.getId();
+    EntityChange change = changes.get(id);
+    if (change == null) {
+      change = new EntityChange(entity);
+      changes.putNew(id, change);
+    }
+    return change;
   }
 
-  /**
-   * construct deleteRequest
-   * @param id
-   * @param entity
-   * @return
-   */
-  private BulkableAction<DocumentResult> deleteRequest(String id, Entity entity) {
-    Delete.Builder builder = new Delete.Builder(id).index(indexName);
-    return builder.type(indexType).build();
+  private static List<String> add(List<String> labels, String label) {
+    if (labels == null) {
+      labels = new ArrayList<>(2);
+    }
+    labels.add(label);
+    return labels;
   }
 
   /**
-   * construct updateRequest
-   * @param id
-   * @param entity
-   * @return
+   * record a property change if the property is synced, and keep the changed value only where a
+   * partial update is built from it
+   * @param change
+   * @param key
+   * @param value
    */
-  private BulkableAction<DocumentResult> updateRequest(String id, Entity entity) {
-    Update.Builder builder = new Update.Builder(properties(id, entity)).index(indexName).id(id);
-    return builder.type(indexType).build();
+  private void propertyChanged(EntityChange change, String key, Object value) {
+    if (projectsProperties && !change.created && !change.deleted) {
+      // the projection follows the labels at commit, a label change re-indexes the node anyway
+      if (change.projection == null) {
+        change.projection = documents.projection(change.entity);
+      }
+      if (!change.projection.contains(key)) {
+        return;
+      }
+    }
+    change.propertiesChanged = true;
+    if (partialUpdates && materializer == null) {
+      change.propertyChanged(key, value);
+    }
   }
 
   /**
-   * get Id of Entity
-   * @param entity
-   * @return
+   * The accumulated change of one entity within a transaction. Entities that are neither created
+   * nor deleted only had labels or properties changed and are re-indexed, unless none of the
+   * changed properties is synced.
    */
-  private String id(Entity entity) {
-    return String.valueOf(entity.getId());
-  }
+  private static class EntityChange {
 
-  /**
-   * construct properties for Entity
-   * @param id
-   * @param entity
-   * @return
-   */
-  private Map<String, Object> properties(String id, Entity entity) {
-    Map<String, Object> props = new LinkedHashMap<>();
-    props.put(ID, id);
-    props.put(PROPERTIES, entity.getAllProperties());
-    if (entity instanceof Node) {
-      // node labels
-      props.put(LABELS, labels(((Node) entity).getLabels()));
-    } else if (entity instanceof Relationship) {
-      // relationship type
-      props.put(TYPE, ((Relationship) entity).getType().name());
-      // relationship startNodeId
-      props.put(START_NODE_ID, String.valueOf(((Relationship) entity).getStartNodeId()));
-      // relationship endNodeId
-      props.put(END_NODE_ID, String.valueOf(((Relationship) entity).getEndNodeId()));
-    }
-    return props;
-  }
+    private final Entity entity;
 
-  /**
-   * get labels for Node
-   * Neo4j Node allows multiple labels
-   * @param labels
-   * @return
-   */
-  private List<String> labels(Iterable<Label> labels) {
-    List<String> list = new LinkedList<>();
-    for (Label label : labels) {
-      list.add(label.name());
-    }
-    return list;
-  }
+    private boolean created;
 
-  /**
-   * The key of the map which stores changed data before commit. This is used to avoid duplicate
-   * data transformation. Only data with different index, type and id can be transferred to
-   * elasticsearch.
-   */
-  private static class SyncDataKey {
+    private boolean deleted;
 
-    private final String index;
+    private boolean labelsChanged;
 
-    private final String type;
+    // Labels assigned and removed in this transaction, only recorded when labels route nodes
+    private List<String> assignedLabels;
 
-    private final String id;
+    private List<String> removedLabels;
 
-    public SyncDataKey(String index, String type, String id) {
-      this.index = index;
-      this.type = type;
-      this.id = id;
-    }
+    // Whether a synced property changed
+    private boolean propertiesChanged;
 
-    @Override
-    public boolean equals(Object o) {
-      if (this == o) {
-        return true;
-      }
-      if (o == null || getClass() != o.getClass()) {
-        return false;
-      }
+    // The synced properties, read once the first property change is checked
+    private PropertyProjection projection;
 
-      SyncDataKey that = (SyncDataKey) o;
-      if (!index.equals(that.index)) {
-        return false;
-      }
-      if (!type.equals(that.type)) {
-        return false;
-      }
-      return id.equals(that.id);
+    // Changed property values, null values are removed properties
+    private Map<String, Object> properties;
+
+    EntityChange(Entity entity) {
+      this.entity = entity;
+    }
+
+    /**
+     * whether the change reaches the document, a change of properties that are not synced does not
+     * @return
+     */
+    boolean indexed() {
+      return created || deleted || labelsChanged || propertiesChanged;
     }
 
-    @Override
-    public int hashCode() {
-      int result = index.hashCode();
-      result = 31 * result + type.hashCode();
-      result = 31 * result + ((id == null) ? 0 : id.hashCode());
-      return result;
+    void propertyChanged(String key, Object value) {
+      if (properties == null) {
+        properties = new LinkedHashMap<>();
+      }
+      properties.put(key, value);
     }
   }
 
@@ -398,6 +643,28 @@ public class ElasticSearchEventListener
 
     private boolean executeAsync;
 
+    private boolean partialUpdates;
+
+    private boolean externalVersioning;
+
+    private BulkDispatcher dispatcher;
+
+    private DocumentFactory documents;
+
+    private SyncMetrics metrics;
+
+    private Materializer materializer;
+
+    private Coalescer coalescer;
+
+    private CircuitBreaker breaker;
+
+    private int traceSampleInterval;
+
+    private Bootstrap bootstrap;
+
+    private Watermark watermark;
+
     public Builder() {}
 
     public Builder jestClient(JestClient jestClient) {
@@ -425,6 +692,61 @@ public class ElasticSearchEventListener
       return this;
     }
 
+    public Builder partialUpdates(boolean partialUpdates) {
+      this.partialUpdates = partialUpdates;
+      return this;
+    }
+
+    public Builder externalVersioning(boolean externalVersioning) {
+      this.externalVersioning = externalVersioning;
+      return this;
+    }
+
+    public Builder dispatcher(BulkDispatcher dispatcher) {
+      this.dispatcher = dispatcher;
+      return this;
+    }
+
+    public Builder documents(DocumentFactory documents) {
+      this.documents = documents;
+      return this;
+    }
+
+    public Builder metrics(SyncMetrics metrics) {
+      this.metrics = metrics;
+      return this;
+    }
+
+    public Builder bootstrap(Bootstrap bootstrap) {
+      this.bootstrap = bootstrap;
+      return this;
+    }
+
+    public Builder watermark(Watermark watermark) {
+      this.watermark = watermark;
+      return this;
+    }
+
+    public Builder breaker(CircuitBreaker breaker) {
+      this.breaker = breaker;
+      return this;
+    }
+
+    public Builder materializer(Materializer materializer) {
+      this.materializer = materializer;
+      return this;
+    }
+
+    public Builder coalescer(Coalescer coalescer) {
+      this.coalescer = coalescer;
+      return this;
+    }
+
+    public Builder traceSampleInterval(int traceSampleInterval) {
+      this.traceSampleInterval = traceSampleInterval;
+      return this;
+    }
+
     public ElasticSearchEventListener build() {
       return new ElasticSearchEventListener(this);
     }
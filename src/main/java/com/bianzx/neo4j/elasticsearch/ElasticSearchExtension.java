@@ -1,19 +1,46 @@
 package com.bianzx.neo4j.elasticsearch;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import org.neo4j.configuration.Config;
+import org.neo4j.configuration.GraphDatabaseSettings;
 import org.neo4j.dbms.api.DatabaseManagementService;
+import org.neo4j.graphdb.event.DatabaseEventContext;
+import org.neo4j.graphdb.event.DatabaseEventListenerAdapter;
 import org.neo4j.kernel.internal.GraphDatabaseAPI;
 import org.neo4j.kernel.lifecycle.LifecycleAdapter;
 import org.neo4j.logging.Log;
 import org.neo4j.logging.internal.LogService;
 import org.neo4j.procedure.impl.GlobalProceduresRegistry;
+import com.bianzx.neo4j.elasticsearch.BulkDispatcher.OverflowPolicy;
+import com.bianzx.neo4j.elasticsearch.MappingGenerator.Dynamic;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import io.searchbox.client.JestClient;
 import io.searchbox.client.JestResult;
 import io.searchbox.indices.CreateIndex;
+import io.searchbox.indices.DeleteIndex;
+import io.searchbox.indices.ForceMerge;
 import io.searchbox.indices.IndicesExists;
+import io.searchbox.indices.Refresh;
+import io.searchbox.indices.mapping.GetMapping;
+import io.searchbox.indices.mapping.PutMapping;
+import io.searchbox.indices.settings.UpdateSettings;
 import static org.neo4j.configuration.GraphDatabaseSettings.SYSTEM_DATABASE_NAME;
 
 /**
@@ -25,6 +52,39 @@ import static org.neo4j.configuration.GraphDatabaseSettings.SYSTEM_DATABASE_NAME
  *
  */
 public class ElasticSearchExtension extends LifecycleAdapter {
+
+  // How long shutdown waits for queued and in-flight bulk requests
+  private static final long SHUTDOWN_TIMEOUT_MILLIS = 30_000L;
+
+  // How often the mapping generator checks whether the database is available
+  private static final long AVAILABILITY_POLL_MILLIS = 1_000L;
+
+  // Directory of the outbox, under the database directory
+  private static final String OUTBOX_DIRECTORY = "elasticsearch-outbox";
+
+  // Directory of the spill used by the SPILL overflow policy, under the database directory
+  private static final String SPILL_DIRECTORY = "elasticsearch-spill";
+
+  // Directory of the changes held back by the circuit breaker in sync mode, under the database directory
+  private static final String BACKLOG_DIRECTORY = "elasticsearch-backlog";
+
+  // Actions ElasticSearch refused permanently, one json per line, under the database directory
+  private static final String DEAD_LETTER_FILE = "elasticsearch-deadletter.log";
+
+  // Completed ranges of an interrupted reindex, under the database directory
+  private static final String REINDEX_CHECKPOINT_FILE = "elasticsearch-reindex.checkpoint";
+
+  // Completed ranges and target index of an interrupted rebuild, under the database directory
+  private static final String REBUILD_CHECKPOINT_FILE = "elasticsearch-rebuild.checkpoint";
+
+  // Suffix of the versioned indices a rebuild writes to, behind the aliases named like the indices
+  private static final String INDEX_VERSION_FORMAT = "yyyyMMddHHmmss";
+
+  // JMX domain of the sync metrics, one MBean per database
+  private static final String METRICS_DOMAIN = "com.bianzx.neo4j.elasticsearch";
+
+  // Extensions by database name, the procedure component of a database resolves its own extension
+  private static final Map<String, ElasticSearchExtension> EXTENSIONS = new ConcurrentHashMap<>();
   
   /**
    * ####################################
@@ -57,6 +117,14 @@ public class ElasticSearchExtension extends LifecycleAdapter {
 
   private  Integer numberOfReplicas;
 
+  private  Path indexLayoutFile;
+
+  private  Boolean generateMapping;
+
+  private  Dynamic mappingDynamic;
+
+  private  Integer mappingSampleSize;
+
   private  Boolean syncNodes;
 
   private  Boolean syncRelationships;
@@ -64,11 +132,116 @@ public class ElasticSearchExtension extends LifecycleAdapter {
   private  Boolean executeAsync;
 
   private  Boolean discovery;
+
+  private  Boolean partialUpdates;
+
+  private  Boolean externalVersioning;
+
+  private  Integer bulkActions;
+
+  private  Long bulkSize;
+
+  private  Duration flushInterval;
+
+  private  Boolean outboxEnabled;
+
+  private  Long outboxSegmentSize;
+
+  private  Integer maxRetries;
+
+  private  Duration retryBackoff;
+
+  private  Duration maxRetryBackoff;
+
+  private  Integer maxInFlightRequests;
+
+  private  Long maxBufferedBytes;
+
+  private  OverflowPolicy overflowPolicy;
+
+  private  Boolean circuitBreakerEnabled;
+
+  private  Integer circuitBreakerFailures;
+
+  private  Duration circuitBreakerOpenTime;
+
+  private  Boolean adaptiveBulk;
+
+  private  Integer minBulkActions;
+
+  private  Duration targetBulkLatency;
+
+  private  Integer reindexWorkers;
+
+  private  Integer reindexRangeSize;
+
+  private  Integer reindexBulkActions;
+
+  private  Long reindexBulkSize;
+
+  private  Integer reconcileRangeSize;
+
+  private  Integer traceSampleInterval;
+
+  private  Boolean deferredMaterialization;
+
+  private  Integer materializationWorkers;
+
+  private  Duration coalesceWindow;
+
+  private  Integer searchPageSize;
+
+  private  Integer searchCacheSize;
+
+  private  Duration searchCacheTtl;
   
   
   private JestClient jestClient;
 
+  private Outbox outbox;
+
+  private Outbox spill;
+
+  private DeadLetterStore deadLetterStore;
+
+  private BulkDispatcher bulkDispatcher;
+
+  private CircuitBreaker circuitBreaker;
+
+  private Materializer materializer;
+
+  private Coalescer coalescer;
+
+  private IndexLayout indexLayout;
+
+  private DocumentFactory documentFactory;
+
+  private SyncMetrics syncMetrics;
+
+  private ObjectName metricsName;
+
   private ElasticSearchEventListener elasticSearchEventListener;
+
+  // Builds the documents of committed changes while the database can still be read, see stopMaterializer
+  private DatabaseEventListenerAdapter shutdownListener;
+
+  // Guarded by this
+  private boolean materializerStopped;
+
+  private Reindexer reindexer;
+
+  private Reconciler reconciler;
+
+  private Searcher searcher;
+
+  // Transactions handed to the dispatcher and not yet delivered
+  private Watermark watermark;
+
+  // One refresh at a time, a caller must not return while another refreshes its indices
+  private final Object refreshLock = new Object();
+
+  // Prepares the indices in the background, dispatching starts when it is done
+  private Bootstrap bootstrap;
   
 
   /**
@@ -89,7 +262,9 @@ public class ElasticSearchExtension extends LifecycleAdapter {
     this.db = db;
     this.dbms = dbms;
     this.globalProceduresRegistry = globalProceduresRegistry;
-    globalProceduresRegistry.registerComponent((Class<ElasticSearchExtension>) getClass(), ctx -> this, true);
+    EXTENSIONS.put(db.databaseName(), this);
+    globalProceduresRegistry.registerComponent(ElasticSearchExtension.class,
+        ctx -> EXTENSIONS.get(ctx.graphDatabaseAPI().databaseName()), true);
     logger.error("register component for ElasticSearchExtension");
   }
 
@@ -106,49 +281,215 @@ public class ElasticSearchExtension extends LifecycleAdapter {
       indexName = config.get(esConfig.INDEX_NAME);
       numberOfShards = config.get(esConfig.NUMBER_OF_SHARDS);
       numberOfReplicas = config.get(esConfig.NUMBER_OF_REPLICAS);
+      indexLayoutFile = config.get(esConfig.INDEX_LAYOUT);
+      // resolved here, a path setting that depends on the home resolves an unset file to the home itself
+      if (indexLayoutFile != null) {
+        indexLayoutFile = config.get(GraphDatabaseSettings.neo4j_home).resolve(indexLayoutFile);
+      }
+      generateMapping = config.get(esConfig.GENERATE_MAPPING);
+      mappingDynamic = config.get(esConfig.MAPPING_DYNAMIC);
+      mappingSampleSize = config.get(esConfig.MAPPING_SAMPLE_SIZE);
       syncNodes = config.get(esConfig.SYNC_NODES);
       syncRelationships = config.get(esConfig.SYNC_RELATIONSHIPS);
       executeAsync = config.get(esConfig.EXECUTE_ASYNC);
       discovery = config.get(esConfig.DISCOVERY);
+      partialUpdates = config.get(esConfig.PARTIAL_UPDATES);
+      externalVersioning = config.get(esConfig.EXTERNAL_VERSIONING);
+      if (partialUpdates && externalVersioning) {
+        // ElasticSearch does not version partial updates, an update would bump the version past the next transaction id
+        logger.warn("elasticsearch." + db.databaseName() + ".partialUpdates and elasticsearch." + db.databaseName()
+            + ".externalVersioning are both enabled, partial updates can not be versioned: changed entities are "
+            + "sent as whole documents. Disable one of the two settings to silence this warning.");
+        partialUpdates = false;
+      }
+      bulkActions = config.get(esConfig.BULK_ACTIONS);
+      bulkSize = config.get(esConfig.BULK_SIZE);
+      flushInterval = config.get(esConfig.FLUSH_INTERVAL);
+      outboxEnabled = config.get(esConfig.OUTBOX);
+      outboxSegmentSize = config.get(esConfig.OUTBOX_SEGMENT_SIZE);
+      maxRetries = config.get(esConfig.MAX_RETRIES);
+      retryBackoff = config.get(esConfig.RETRY_BACKOFF);
+      maxRetryBackoff = config.get(esConfig.MAX_RETRY_BACKOFF);
+      maxInFlightRequests = config.get(esConfig.MAX_IN_FLIGHT_REQUESTS);
+      maxBufferedBytes = config.get(esConfig.MAX_BUFFERED_BYTES);
+      overflowPolicy = config.get(esConfig.OVERFLOW_POLICY);
+      circuitBreakerEnabled = config.get(esConfig.CIRCUIT_BREAKER);
+      circuitBreakerFailures = config.get(esConfig.CIRCUIT_BREAKER_FAILURES);
+      circuitBreakerOpenTime = config.get(esConfig.CIRCUIT_BREAKER_OPEN_TIME);
+      adaptiveBulk = config.get(esConfig.ADAPTIVE_BULK);
+      minBulkActions = config.get(esConfig.MIN_BULK_ACTIONS);
+      targetBulkLatency = config.get(esConfig.TARGET_BULK_LATENCY);
+      reindexWorkers = config.get(esConfig.REINDEX_WORKERS);
+      reindexRangeSize = config.get(esConfig.REINDEX_RANGE_SIZE);
+      reindexBulkActions = config.get(esConfig.REINDEX_BULK_ACTIONS);
+      reindexBulkSize = config.get(esConfig.REINDEX_BULK_SIZE);
+      reconcileRangeSize = config.get(esConfig.RECONCILE_RANGE_SIZE);
+      traceSampleInterval = config.get(esConfig.TRACE_SAMPLE_INTERVAL);
+      deferredMaterialization = config.get(esConfig.DEFERRED_MATERIALIZATION);
+      materializationWorkers = config.get(esConfig.MATERIALIZATION_WORKERS);
+      coalesceWindow = config.get(esConfig.COALESCE_WINDOW);
+      searchPageSize = config.get(esConfig.SEARCH_PAGE_SIZE);
+      searchCacheSize = config.get(esConfig.SEARCH_CACHE_SIZE);
+      searchCacheTtl = config.get(esConfig.SEARCH_CACHE_TTL);
+      syncMetrics = new SyncMetrics();
       
       // get JestClient
       try {
-        jestClient = JestHttpClientFactory.getClient(host, discovery);
+        // a connection for every bulk in flight and every reindex worker, besides searches
+        jestClient = JestHttpClientFactory.getClient(host, discovery, maxInFlightRequests + reindexWorkers + 2);
       } catch (Throwable e1) {
         logger.info("get elsticsearch client error:" + e1.getMessage());
       }
-      // whether the specific index name exists
+      // the indices documents are routed to, indexName alone without a layout file
       try {
-        if (existsIndex(indexName)) {
-          logger.info("ElasticSearch Index: [" + indexName + "] already exists.");
-        } else {
-          // create specific index
-          Map<String, Object> settings = new HashMap<>(4);
-          settings.put("number_of_shards", numberOfShards);
-          settings.put("number_of_replicas", numberOfReplicas);
-          if (createIndex(indexName, settings)) {
-            logger.info("ElasticSearch Index: [" + indexName + "] created.");
-          } else {
-            logger.info("ElasticSearch Index: [" + indexName + "] create failed.");
-            return;
+        indexLayout = indexLayoutFile == null ? IndexLayout.single(indexName, numberOfShards, numberOfReplicas)
+            : IndexLayout.load(indexLayoutFile, indexName, numberOfShards, numberOfReplicas);
+      } catch (IOException | RuntimeException e) {
+        logger.error("Read elasticsearch index layout " + indexLayoutFile + " error," + e.getMessage());
+        return;
+      }
+      // indices without a mapping in the layout file get one generated from the graph
+      List<IndexLayout.Index> generatedIndices = new ArrayList<>();
+      if (generateMapping) {
+        for (IndexLayout.Index index : indexLayout.getIndices()) {
+          if (index.getMapping() == null) {
+            generatedIndices.add(index);
           }
         }
-      } catch (IOException e) {
-        logger.info("Init elasticsearch index error," + e.getMessage());
       }
+      // build BulkDispatcher, batches actions of many transactions in async mode, and drains the
+      // backlog of an ElasticSearch outage or of the startup in order in sync mode
+      if (!executeAsync) {
+        if (circuitBreakerEnabled) {
+          circuitBreaker = new CircuitBreaker(circuitBreakerFailures, circuitBreakerOpenTime.toMillis());
+        }
+        try {
+          outbox = new Outbox(new File(db.databaseLayout().databaseDirectory(), BACKLOG_DIRECTORY),
+              outboxSegmentSize.intValue());
+        } catch (IOException e) {
+          logger.error("Open elasticsearch backlog error," + e.getMessage());
+        }
+      } else if (outboxEnabled) {
+        try {
+          outbox = new Outbox(new File(db.databaseLayout().databaseDirectory(), OUTBOX_DIRECTORY),
+              outboxSegmentSize.intValue());
+        } catch (IOException e) {
+          logger.error("Open elasticsearch outbox error," + e.getMessage());
+        }
+      } else if (overflowPolicy == OverflowPolicy.SPILL) {
+        try {
+          spill = new Outbox(new File(db.databaseLayout().databaseDirectory(), SPILL_DIRECTORY),
+              outboxSegmentSize.intValue());
+        } catch (IOException e) {
+          logger.error("Open elasticsearch spill error," + e.getMessage());
+        }
+      }
+      watermark = new Watermark();
+      BulkController bulkController = new BulkController.Builder().adaptive(adaptiveBulk)
+          .minActions(minBulkActions).maxActions(bulkActions).maxBytes(bulkSize)
+          .maxConcurrency(maxInFlightRequests).targetLatencyMillis(targetBulkLatency.toMillis()).build();
+      syncMetrics.limits(bulkController::actions, bulkController::concurrency);
+      deadLetterStore = new DeadLetterStore(new File(db.databaseLayout().databaseDirectory(), DEAD_LETTER_FILE));
+      bulkDispatcher = new BulkDispatcher.Builder().jestClient(jestClient).outbox(outbox)
+          .deadLetters(deadLetterStore).maxActions(bulkActions).maxBytes(bulkSize)
+          .lingerMillis(flushInterval.toMillis()).maxRetries(maxRetries)
+          .retryBackoffMillis(retryBackoff.toMillis()).maxRetryBackoffMillis(maxRetryBackoff.toMillis())
+          .spill(spill).maxInFlightRequests(maxInFlightRequests).maxBufferedBytes(maxBufferedBytes)
+          .overflowPolicy(overflowPolicy).controller(bulkController).breaker(circuitBreaker)
+          .metrics(syncMetrics).watermark(watermark).filter(item -> documentFactory.filter(item)).build();
+      syncMetrics.gauges(bulkDispatcher::getQueuedActions, bulkDispatcher::getInFlightRequests,
+          bulkDispatcher::getDroppedActions);
 
       // build ElasticSearchEventHandler
+      documentFactory = new DocumentFactory(indexLayout, syncMetrics);
+      searcher = new Searcher.Builder().jestClient(jestClient).documents(documentFactory).pageSize(searchPageSize)
+          .cacheSize(searchCacheSize).cacheTtlMillis(searchCacheTtl.toMillis()).build();
+      // the indices are prepared in the background, changes are kept in the dispatcher until they are ready
+      bootstrap = new Bootstrap.Builder()
+          .mapping(generatedIndices.isEmpty() ? null : () -> generateMappings(generatedIndices))
+          .indices(() -> createIndices(generatedIndices)).onReady(bulkDispatcher::start)
+          .retryBackoffMillis(retryBackoff.toMillis()).maxRetryBackoffMillis(maxRetryBackoff.toMillis()).build();
+      if (!coalesceWindow.isZero() && !executeAsync) {
+        logger.warn("coalesceWindow needs executeAsync, changes are sent on commit");
+      } else if (!coalesceWindow.isZero()) {
+        // hot entities are sent once per window
+        coalescer = new Coalescer.Builder().sink(bulkDispatcher::add).watermark(watermark).metrics(syncMetrics)
+            .windowMillis(coalesceWindow.toMillis()).maxBytes(maxBufferedBytes).build();
+        coalescer.start();
+      }
+      if (deferredMaterialization && !executeAsync) {
+        logger.warn("deferredMaterialization needs executeAsync, documents are built on commit");
+      } else if (deferredMaterialization) {
+        materializer = new Materializer.Builder().db(db).documents(documentFactory).dispatcher(bulkDispatcher)
+            .coalescer(coalescer).watermark(watermark).workers(materializationWorkers).build();
+        materializer.start();
+      }
+      if (materializer != null || coalescer != null) {
+        // actions waiting for their documents or held back are queued as well
+        syncMetrics.gauges(() -> bulkDispatcher.getQueuedActions()
+            + (materializer != null ? materializer.getPendingActions() : 0)
+            + (coalescer != null ? coalescer.getHeldActions() : 0),
+            bulkDispatcher::getInFlightRequests, bulkDispatcher::getDroppedActions);
+      }
       elasticSearchEventListener = new ElasticSearchEventListener.Builder().jestClient(jestClient)
           .indexName(indexName).syncNodes(syncNodes).syncRelationships(syncRelationships)
-          .executeAsync(executeAsync).build();
+          .documents(documentFactory).metrics(syncMetrics).traceSampleInterval(traceSampleInterval)
+          .executeAsync(executeAsync).partialUpdates(partialUpdates).externalVersioning(externalVersioning)
+          .dispatcher(bulkDispatcher)
+          .materializer(materializer).coalescer(coalescer).breaker(circuitBreaker).bootstrap(bootstrap).watermark(watermark).build();
+
 
+      // an interrupted rebuild keeps receiving changes until it is resumed
+      try {
+        String rebuildIndex = Reindexer.checkpointTarget(rebuildCheckpointFile());
+        if (rebuildIndex != null) {
+          elasticSearchEventListener.shadow(new DocumentFactory(rebuildLayout(rebuildIndex), syncMetrics));
+          logger.info("ElasticSearch Index: [" + rebuildIndex + "] rebuild is unfinished, writing changes to it.");
+        }
+      } catch (IOException e) {
+        logger.error("Read elasticsearch rebuild checkpoint error," + e.getMessage());
+      }
+
+      // expose the sync metrics over JMX
+      try {
+        metricsName = new ObjectName(METRICS_DOMAIN + ":type=SyncMetrics,database=" + ObjectName.quote(db.databaseName()));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(syncMetrics, metricsName);
+      } catch (JMException e) {
+        metricsName = null;
+        logger.warn("Register elasticsearch metrics MBean error," + e.getMessage());
+      }
 
       // register ElasticSearchEventHandler to GraphDatabaseService
       dbms.registerTransactionEventListener(db.databaseName(), elasticSearchEventListener);
+      if (materializer != null) {
+        shutdownListener = new DatabaseEventListenerAdapter() {
+          @Override
+          public void databaseShutdown(DatabaseEventContext eventContext) {
+            if (db.databaseName().equals(eventContext.getDatabaseName())) {
+              stopMaterializer();
+            }
+          }
+        };
+        dbms.registerDatabaseEventListener(shutdownListener);
+      }
+      bootstrap.start();
       logger.info("Neo4j elasticsearch plugin registered!");
     }
   }
 
+  /**
+   * build the documents of the committed changes still queued in the materializer and pass them on.
+   * Called when the database shuts down, the extension only stops once it can no longer be read.
+   */
+  private synchronized void stopMaterializer() {
+    if (materializer != null && !materializerStopped) {
+      materializerStopped = true;
+      logger.info(String.format("[%s] Building the documents of %d queued changes", db.databaseName(),
+          materializer.getPendingActions()));
+      this.materializer.close(SHUTDOWN_TIMEOUT_MILLIS);
+    }
+  }
+
   @Override
   public void shutdown() throws IOException {
     if (!SYSTEM_DATABASE_NAME.equalsIgnoreCase(db.databaseName())) {
@@ -156,13 +497,493 @@ public class ElasticSearchExtension extends LifecycleAdapter {
       if (elasticSearchEventListener != null) {
         this.dbms.unregisterTransactionEventListener(db.databaseName(), elasticSearchEventListener);
       }
+      // completed ranges stay checkpointed, a later reindex resumes from them
+      stopReindex();
+      stopReconcile();
+      if (bootstrap != null) {
+        this.bootstrap.close();
+      }
+      if (shutdownListener != null) {
+        this.dbms.unregisterDatabaseEventListener(shutdownListener);
+      }
+      // normally done when the database shut down, the documents can not be read any more by now
+      stopMaterializer();
+      // pass on held changes before the dispatcher stops taking them
+      if (coalescer != null) {
+        this.coalescer.close(SHUTDOWN_TIMEOUT_MILLIS);
+      }
+      // flush actions still queued in the dispatcher before closing the client, unless the indices
+      // were never ready and ElasticSearch would create them with a dynamic mapping
+      if (bulkDispatcher != null) {
+        this.bulkDispatcher.close(SHUTDOWN_TIMEOUT_MILLIS, bootstrap == null || bootstrap.isReady());
+      }
+      if (outbox != null) {
+        this.outbox.close();
+      }
+      if (spill != null) {
+        this.spill.close();
+      }
+      if (deadLetterStore != null) {
+        this.deadLetterStore.close();
+      }
       if (jestClient != null) {
         this.jestClient.close();
       }
+      if (metricsName != null) {
+        try {
+          ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+        } catch (JMException e) {
+          logger.warn("Unregister elasticsearch metrics MBean error," + e.getMessage());
+        }
+      }
+      EXTENSIONS.remove(db.databaseName(), this);
       logger.info("Neo4j elasticsearch Extension shutdown!");
     }
   }
 
+  /**
+   * start a full reindex of the existing nodes and relationships, or return the progress of the
+   * one that is running
+   * @param restart discard the checkpoint of an interrupted reindex instead of resuming it
+   * @return
+   */
+  public synchronized Reindexer.Status reindex(boolean restart) {
+    if (reindexer != null && reindexer.isRunning()) {
+      return reindexer.status();
+    }
+    if (jestClient == null || documentFactory == null) {
+      throw new IllegalStateException("ElasticSearch extension of " + db.databaseName() + " is not started");
+    }
+    if (!bootstrap.isReady()) {
+      throw new IllegalStateException("ElasticSearch indices of " + db.databaseName() + " are not ready, state "
+          + bootstrap.getState());
+    }
+    reindexer = new Reindexer.Builder().db(db).jestClient(jestClient).documents(documentFactory)
+        .checkpointFile(new File(db.databaseLayout().databaseDirectory(), REINDEX_CHECKPOINT_FILE))
+        .syncNodes(syncNodes).syncRelationships(syncRelationships).workers(reindexWorkers)
+        .rangeSize(reindexRangeSize).bulkActions(reindexBulkActions).bulkSize(reindexBulkSize)
+        .maxRetries(maxRetries).retryBackoffMillis(retryBackoff.toMillis()).versioned(externalVersioning).build();
+    reindexer.start(restart);
+    logger.info(String.format("[%s] Reindex into %s started", db.databaseName(), indexName));
+    return reindexer.status();
+  }
+
+  /**
+   * rebuild the indices from scratch into new versioned indices, then switch the aliases named
+   * like the indices to them. Changes committed during the rebuild are written to both.
+   * @param restart discard an interrupted rebuild instead of resuming it
+   * @return
+   * @throws IOException
+   */
+  public synchronized Reindexer.Status rebuild(boolean restart) throws IOException {
+    if (reindexer != null && reindexer.isRunning()) {
+      return reindexer.status();
+    }
+    if (jestClient == null || elasticSearchEventListener == null) {
+      throw new IllegalStateException("ElasticSearch extension of " + db.databaseName() + " is not started");
+    }
+    if (!bootstrap.isReady()) {
+      throw new IllegalStateException("ElasticSearch indices of " + db.databaseName() + " are not ready, state "
+          + bootstrap.getState());
+    }
+    File checkpointFile = rebuildCheckpointFile();
+    String target = Reindexer.checkpointTarget(checkpointFile);
+    IndexLayout targetLayout = target == null ? null : rebuildLayout(target);
+    if (targetLayout != null && (restart || !existsIndices(targetLayout))) {
+      elasticSearchEventListener.shadow(null);
+      for (IndexLayout.Index index : targetLayout.getIndices()) {
+        deleteIndex(index.getName());
+      }
+      targetLayout = null;
+    }
+    if (targetLayout == null) {
+      targetLayout = indexLayout.versioned("_" + new SimpleDateFormat(INDEX_VERSION_FORMAT).format(new Date()));
+      for (IndexLayout.Index index : targetLayout.getIndices()) {
+        // bulk load settings, restored before the alias is switched
+        Map<String, Object> settings = new HashMap<>(4);
+        settings.put("number_of_shards", index.getNumberOfShards());
+        settings.put("number_of_replicas", 0);
+        settings.put("refresh_interval", "-1");
+        if (!createIndex(index.getName(), settings, index.getMapping())) {
+          throw new IOException("can not create index " + index.getName());
+        }
+        logger.info("ElasticSearch Index: [" + index.getName() + "] created for rebuild.");
+      }
+      restart = true;
+    }
+    DocumentFactory targetDocuments = new DocumentFactory(targetLayout, syncMetrics);
+    elasticSearchEventListener.shadow(targetDocuments);
+
+    IndexLayout rebuildLayout = targetLayout;
+    target = targetLayout.getFallback().getName();
+    reindexer = new Reindexer.Builder().db(db).jestClient(jestClient).documents(targetDocuments)
+        .checkpointFile(checkpointFile).syncNodes(syncNodes).syncRelationships(syncRelationships)
+        .workers(reindexWorkers).rangeSize(reindexRangeSize).bulkActions(reindexBulkActions)
+        .bulkSize(reindexBulkSize).maxRetries(maxRetries).retryBackoffMillis(retryBackoff.toMillis())
+        .createOnly(true).versioned(externalVersioning).completion(() -> switchAliases(rebuildLayout)).build();
+    reindexer.start(restart);
+    logger.info(String.format("[%s] Rebuild of %s into %s started", db.databaseName(), indexName, target));
+    return reindexer.status();
+  }
+
+  /**
+   * the sync metrics of this database, null before the extension is started
+   * @return
+   */
+  public SyncMetrics metrics() {
+    return syncMetrics;
+  }
+
+  /**
+   * search the indices of this database
+   * @return
+   */
+  public Searcher searcher() {
+    if (searcher == null || jestClient == null) {
+      throw new IllegalStateException("ElasticSearch extension of " + db.databaseName() + " is not started");
+    }
+    return searcher;
+  }
+
+  /**
+   * wait until the changes of a transaction and of all transactions before it are delivered to
+   * ElasticSearch
+   * @param transactionId the transaction, 0 or less for the newest one that changed synced entities
+   * @param timeoutMillis
+   * @param refresh refresh the indices written to, so searches see the changes right away
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public Watermark.Status awaitIndexed(long transactionId, long timeoutMillis, boolean refresh)
+      throws IOException, InterruptedException {
+    if (watermark == null || jestClient == null) {
+      throw new IllegalStateException("ElasticSearch extension of " + db.databaseName() + " is not started");
+    }
+    long startedAt = System.currentTimeMillis();
+    // a transaction committed before the call may not have reached afterCommit yet
+    boolean committed = watermark.awaitCommitted(timeoutMillis);
+    long awaited = transactionId > 0 ? transactionId : watermark.getLatest();
+    boolean indexed = committed
+        && watermark.await(awaited, Math.max(0, timeoutMillis - (System.currentTimeMillis() - startedAt)));
+    if (indexed && refresh) {
+      synchronized (refreshLock) {
+        Set<String> indices = watermark.unrefreshed();
+        if (!indices.isEmpty()) {
+          JestResult result = jestClient.execute(
+              new Refresh.Builder().addIndices(indices).setParameter("ignore_unavailable", true).build());
+          if (!result.isSucceeded()) {
+            logger.warn("Refresh elasticsearch indices " + indices + " error," + result.getErrorMessage());
+          }
+        }
+      }
+    }
+    return new Watermark.Status(awaited, indexed, watermark.getPendingTransactions(),
+        System.currentTimeMillis() - startedAt);
+  }
+
+  /**
+   * whether the indices are ready and changes are sent, null before the extension is started
+   * @return
+   */
+  public Bootstrap.Status status() {
+    return bootstrap == null ? null : bootstrap.status();
+  }
+
+  /**
+   * the progress of the current or last reindex, null if there was none
+   * @return
+   */
+  public synchronized Reindexer.Status reindexStatus() {
+    return reindexer == null ? null : reindexer.status();
+  }
+
+  /**
+   * stop a running reindex
+   * @return the progress when it stopped, null if there was none
+   */
+  public Reindexer.Status stopReindex() {
+    Reindexer current;
+    synchronized (this) {
+      current = reindexer;
+    }
+    if (current == null) {
+      return null;
+    }
+    current.stop(SHUTDOWN_TIMEOUT_MILLIS);
+    return current.status();
+  }
+
+  /**
+   * compare the documents in ElasticSearch with the graph range by range in the background and
+   * repair the ranges that differ, or return the progress of the one that is running
+   * @return
+   */
+  public synchronized Reconciler.Status reconcile() {
+    if (reconciler != null && reconciler.isRunning()) {
+      return reconciler.status();
+    }
+    if (jestClient == null || documentFactory == null) {
+      throw new IllegalStateException("ElasticSearch extension of " + db.databaseName() + " is not started");
+    }
+    if (!bootstrap.isReady()) {
+      throw new IllegalStateException("ElasticSearch indices of " + db.databaseName() + " are not ready, state "
+          + bootstrap.getState());
+    }
+    if (reindexer != null && reindexer.isRunning()) {
+      throw new IllegalStateException("a reindex of " + db.databaseName() + " is running, reconcile after it");
+    }
+    reconciler = new Reconciler.Builder().db(db).jestClient(jestClient).documents(documentFactory)
+        .dispatcher(bulkDispatcher).syncNodes(syncNodes).syncRelationships(syncRelationships)
+        .workers(reindexWorkers).rangeSize(reconcileRangeSize).pageSize(reindexBulkActions)
+        .bulkActions(bulkActions).versioned(externalVersioning).build();
+    reconciler.start();
+    logger.info(String.format("[%s] Reconcile of %s started", db.databaseName(), indexName));
+    return reconciler.status();
+  }
+
+  /**
+   * the progress of the current or last reconciliation, null if there was none
+   * @return
+   */
+  public synchronized Reconciler.Status reconcileStatus() {
+    return reconciler == null ? null : reconciler.status();
+  }
+
+  /**
+   * stop a running reconciliation
+   * @return the progress when it stopped, null if there was none
+   */
+  public Reconciler.Status stopReconcile() {
+    Reconciler current;
+    synchronized (this) {
+      current = reconciler;
+    }
+    if (current == null) {
+      return null;
+    }
+    current.stop(SHUTDOWN_TIMEOUT_MILLIS);
+    return current.status();
+  }
+
+  /**
+   * restore the configured settings of the rebuilt indices, force merge them and point the aliases
+   * to them in one atomic request, then drop the indices the aliases pointed to before
+   * @param targetLayout
+   * @throws IOException
+   */
+  private void switchAliases(IndexLayout targetLayout) throws IOException {
+    List<IndexLayout.Index> aliases = indexLayout.getIndices();
+    List<IndexLayout.Index> targets = targetLayout.getIndices();
+    List<Map<String, Object>> actions = new ArrayList<>();
+    List<String> previous = new ArrayList<>();
+    for (int i = 0; i < targets.size(); i++) {
+      String alias = aliases.get(i).getName();
+      String target = targets.get(i).getName();
+      JestResult result = jestClient.execute(new ForceMerge.Builder().addIndex(target).maxNumSegments(1).build());
+      if (!result.isSucceeded()) {
+        // only slows searches down, not a reason to keep the old index
+        logger.warn("Force merge of " + target + " failed, " + result.getErrorMessage());
+      }
+
+      // null restores the default refresh interval
+      String settings = "{\"index\":{\"number_of_replicas\":" + targets.get(i).getNumberOfReplicas()
+          + ",\"refresh_interval\":null}}";
+      result = jestClient.execute(new UpdateSettings.Builder(settings).addIndex(target).build());
+      if (!result.isSucceeded()) {
+        throw new IOException("can not restore settings of " + target + ", " + result.getErrorMessage());
+      }
+
+      // the alias either exists, or it is a concrete index created before rebuilds
+      List<String> aliased = aliasedIndices(alias);
+      if (aliased == null && existsIndex(alias)) {
+        actions.add(Collections.singletonMap("remove_index", Collections.singletonMap("index", alias)));
+      } else if (aliased != null) {
+        for (String index : aliased) {
+          actions.add(Collections.singletonMap("remove", aliasAction(index, alias)));
+          if (!index.equals(target)) {
+            previous.add(index);
+          }
+        }
+      }
+      actions.add(Collections.singletonMap("add", aliasAction(target, alias)));
+    }
+    JestResult result = jestClient.execute(new RestAction.Builder("POST", "_aliases")
+        .body(Collections.singletonMap("actions", actions)).build());
+    if (!result.isSucceeded()) {
+      throw new IOException("can not switch aliases to " + targetLayout.getFallback().getName() + ", "
+          + result.getErrorMessage());
+    }
+    elasticSearchEventListener.shadow(null);
+    for (int i = 0; i < targets.size(); i++) {
+      logger.info("ElasticSearch Alias: [" + aliases.get(i).getName() + "] switched to ["
+          + targets.get(i).getName() + "].");
+    }
+
+    for (String index : previous) {
+      deleteIndex(index);
+    }
+  }
+
+  /**
+   * wait for the database and sample it, the indices are created with the generated mapping and
+   * the documents are filtered by it
+   * @param indices
+   * @throws InterruptedException
+   */
+  private void generateMappings(List<IndexLayout.Index> indices) throws InterruptedException {
+    while (!db.isAvailable(AVAILABILITY_POLL_MILLIS)) {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new InterruptedException("database " + db.databaseName() + " stopped before it was available");
+      }
+    }
+    Map<String, JsonObject> mappings = new MappingGenerator.Builder().db(db).documents(documentFactory)
+        .sampleSize(mappingSampleSize).syncNodes(syncNodes).syncRelationships(syncRelationships)
+        .dynamic(mappingDynamic).build().generate();
+    for (IndexLayout.Index index : indices) {
+      index.setMapping(mappings.get(index.getName()));
+    }
+  }
+
+  /**
+   * create the indices that do not exist yet and put the generated mapping into those that do
+   * @param generated the indices with a generated mapping
+   * @throws IOException if ElasticSearch can not be reached or refuses an index, to be retried
+   */
+  private void createIndices(List<IndexLayout.Index> generated) throws IOException {
+    if (jestClient == null) {
+      throw new IOException("no elasticsearch client for " + host);
+    }
+    for (IndexLayout.Index index : indexLayout.getIndices()) {
+      JsonObject mapping = index.getMapping();
+      if (mapping == null && generated.contains(index)) {
+        // the graph could not be sampled, only the metadata fields are mapped
+        mapping = DocumentFactory.mapping(Collections.emptyMap(), mappingDynamic.toString());
+      }
+      if (!existsIndex(index.getName())) {
+        Map<String, Object> settings = new HashMap<>(4);
+        settings.put("number_of_shards", index.getNumberOfShards());
+        settings.put("number_of_replicas", index.getNumberOfReplicas());
+        if (!createIndex(index.getName(), settings, mapping)) {
+          throw new IOException("ElasticSearch Index: [" + index.getName() + "] create failed.");
+        }
+        logger.info("ElasticSearch Index: [" + index.getName() + "] created.");
+      } else {
+        logger.info("ElasticSearch Index: [" + index.getName() + "] already exists.");
+        if (generated.contains(index)) {
+          JestResult result = jestClient.execute(
+              new PutMapping.Builder(index.getName(), DocumentFactory.INDEX_TYPE, mapping.toString()).build());
+          if (result.isSucceeded()) {
+            logger.info("ElasticSearch Index: [" + index.getName() + "] mapping generated.");
+          } else {
+            // e.g. a field of the existing index has another type, retrying does not help
+            logger.warn("Put elasticsearch mapping of " + index.getName() + " error," + result.getErrorMessage());
+          }
+        } else {
+          // created before documents had a digest, a strict mapping would reject all of them
+          JestResult result = jestClient.execute(new PutMapping.Builder(index.getName(), DocumentFactory.INDEX_TYPE,
+              DocumentFactory.hashMapping().toString()).build());
+          if (!result.isSucceeded()) {
+            logger.warn("Put elasticsearch mapping of " + index.getName() + " error," + result.getErrorMessage());
+          }
+        }
+      }
+      if (generated.contains(index) || index.getMapping() != null) {
+        // documents are checked against what the index really maps
+        JsonObject installed = installedMapping(index.getName());
+        if (installed != null) {
+          index.setMapping(installed);
+        }
+      }
+    }
+  }
+
+  /**
+   * the mapping of the document type as ElasticSearch has it
+   * @param indexName
+   * @return null if it can not be read
+   * @throws IOException
+   */
+  private JsonObject installedMapping(String indexName) throws IOException {
+    JestResult result = jestClient.execute(new GetMapping.Builder().addIndex(indexName).build());
+    if (!result.isSucceeded()) {
+      return null;
+    }
+    // keyed by the concrete index, which differs from indexName behind an alias
+    for (Map.Entry<String, JsonElement> index : result.getJsonObject().entrySet()) {
+      JsonObject mappings = index.getValue().getAsJsonObject().getAsJsonObject("mappings");
+      if (mappings != null && mappings.has(DocumentFactory.INDEX_TYPE)) {
+        return mappings.getAsJsonObject(DocumentFactory.INDEX_TYPE);
+      }
+    }
+    return null;
+  }
+
+  private File rebuildCheckpointFile() {
+    return new File(db.databaseLayout().databaseDirectory(), REBUILD_CHECKPOINT_FILE);
+  }
+
+  /**
+   * the versioned indices of a rebuild, from the name of its fallback index
+   * @param target
+   * @return
+   */
+  private IndexLayout rebuildLayout(String target) {
+    if (!target.startsWith(indexName)) {
+      // started before indexName was changed, only that index is known
+      return IndexLayout.single(target, numberOfShards, numberOfReplicas);
+    }
+    return indexLayout.versioned(target.substring(indexName.length()));
+  }
+
+  private boolean existsIndices(IndexLayout layout) throws IOException {
+    for (IndexLayout.Index index : layout.getIndices()) {
+      if (!existsIndex(index.getName())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Map<String, Object> aliasAction(String index, String alias) {
+    Map<String, Object> action = new LinkedHashMap<>(4);
+    action.put("index", index);
+    action.put("alias", alias);
+    return action;
+  }
+
+  /**
+   * 查询alias指向的index
+   * @param alias
+   * @return null if there is no such alias
+   * @throws IOException
+   */
+  private List<String> aliasedIndices(String alias) throws IOException {
+    JestResult result = jestClient.execute(new RestAction.Builder("GET", "_alias/" + alias).build());
+    if (!result.isSucceeded()) {
+      return null;
+    }
+    List<String> indices = new ArrayList<>();
+    for (Map.Entry<String, JsonElement> index : result.getJsonObject().entrySet()) {
+      indices.add(index.getKey());
+    }
+    return indices;
+  }
+
+  /**
+   * 删除ElasticSearch index
+   * @param indexName
+   * @return
+   * @throws IOException
+   */
+  private boolean deleteIndex(String indexName) throws IOException {
+    JestResult result = jestClient.execute(new DeleteIndex.Builder(indexName).build());
+    if (result.isSucceeded()) {
+      logger.info("ElasticSearch Index: [" + indexName + "] deleted.");
+    }
+    return result.isSucceeded();
+  }
+
   /**
    * 判断ElasticSearch index是否存在
    * @param indexName
@@ -178,12 +999,21 @@ public class ElasticSearchExtension extends LifecycleAdapter {
    * 创建ElasticSearch index
    * @param indexName
    * @param settings
+   * @param mapping the mapping of the document type, null for dynamic mapping
    * @return
    * @throws IOException
    */
-  private boolean createIndex(String indexName, Map<String, Object> settings) throws IOException {
-    final JestResult result =
-        jestClient.execute(new CreateIndex.Builder(indexName).settings(settings).build());
+  private boolean createIndex(String indexName, Map<String, Object> settings, JsonObject mapping)
+      throws IOException {
+    CreateIndex.Builder builder = new CreateIndex.Builder(indexName).settings(settings);
+    if (mapping != null) {
+      // the mapping of the layout file may leave out the metadata fields
+      builder.mappings(Collections.singletonMap(DocumentFactory.INDEX_TYPE, DocumentFactory.withMetadata(mapping)));
+    }
+    final JestResult result = jestClient.execute(builder.build());
+    if (!result.isSucceeded()) {
+      logger.warn("Create elasticsearch index " + indexName + " error," + result.getErrorMessage());
+    }
     return result.isSucceeded();
   }
 }
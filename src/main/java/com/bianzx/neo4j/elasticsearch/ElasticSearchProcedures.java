@@ -0,0 +1,225 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.neo4j.graphdb.Entity;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.procedure.Context;
+import org.neo4j.procedure.Description;
+import org.neo4j.procedure.Mode;
+import org.neo4j.procedure.Name;
+import org.neo4j.procedure.Procedure;
+
+/**
+ *
+ * @ClassName: ElasticSearchProcedures
+ * @Description: ElasticSearch同步相关的存储过程, 通过ElasticSearchExtension注册的component访问当前数据库的extension
+ * @author: bianzexin
+ * @date: Dec 28, 2020
+ *
+ */
+public class ElasticSearchProcedures {
+
+  @Context
+  public ElasticSearchExtension extension;
+
+  @Context
+  public Transaction tx;
+
+  @Procedure(name = "elasticsearch.reindex", mode = Mode.READ)
+  @Description("elasticsearch.reindex(restart = false) - index all existing nodes and relationships in the "
+      + "background, resuming an interrupted reindex unless restart is true")
+  public Stream<Reindexer.Status> reindex(@Name(value = "restart", defaultValue = "false") boolean restart) {
+    return Stream.of(extension().reindex(restart));
+  }
+
+  @Procedure(name = "elasticsearch.rebuild", mode = Mode.READ)
+  @Description("elasticsearch.rebuild(restart = false) - index all existing nodes and relationships into a new "
+      + "index in the background and switch the index alias to it when done")
+  public Stream<Reindexer.Status> rebuild(@Name(value = "restart", defaultValue = "false") boolean restart)
+      throws IOException {
+    return Stream.of(extension().rebuild(restart));
+  }
+
+  @Procedure(name = "elasticsearch.reindexStatus", mode = Mode.READ)
+  @Description("elasticsearch.reindexStatus() - progress and throughput of the current or last reindex")
+  public Stream<Reindexer.Status> reindexStatus() {
+    return Stream.ofNullable(extension().reindexStatus());
+  }
+
+  @Procedure(name = "elasticsearch.stopReindex", mode = Mode.READ)
+  @Description("elasticsearch.stopReindex() - stop the running reindex, completed ranges are kept for the next run")
+  public Stream<Reindexer.Status> stopReindex() {
+    return Stream.ofNullable(extension().stopReindex());
+  }
+
+  @Procedure(name = "elasticsearch.reconcile", mode = Mode.READ)
+  @Description("elasticsearch.reconcile() - compare ElasticSearch with the graph by id range in the background and "
+      + "resend or delete only the documents of the ranges that differ")
+  public Stream<Reconciler.Status> reconcile() {
+    return Stream.of(extension().reconcile());
+  }
+
+  @Procedure(name = "elasticsearch.reconcileStatus", mode = Mode.READ)
+  @Description("elasticsearch.reconcileStatus() - progress of the current or last reconcile")
+  public Stream<Reconciler.Status> reconcileStatus() {
+    return Stream.ofNullable(extension().reconcileStatus());
+  }
+
+  @Procedure(name = "elasticsearch.stopReconcile", mode = Mode.READ)
+  @Description("elasticsearch.stopReconcile() - stop the running reconcile")
+  public Stream<Reconciler.Status> stopReconcile() {
+    return Stream.ofNullable(extension().stopReconcile());
+  }
+
+  @Procedure(name = "elasticsearch.metrics", mode = Mode.READ)
+  @Description("elasticsearch.metrics() - counters and latencies of the sync to ElasticSearch")
+  public Stream<Metric> metrics() {
+    SyncMetrics metrics = extension().metrics();
+    if (metrics == null) {
+      return Stream.empty();
+    }
+    return metrics.snapshot().entrySet().stream().map(metric -> new Metric(metric.getKey(), metric.getValue()));
+  }
+
+  @Procedure(name = "elasticsearch.status", mode = Mode.READ)
+  @Description("elasticsearch.status() - whether the indices are ready and changes are sent, and the last "
+      + "error while they are not")
+  public Stream<Bootstrap.Status> status() {
+    return Stream.ofNullable(extension().status());
+  }
+
+  @Procedure(name = "elasticsearch.awaitIndexed", mode = Mode.READ)
+  @Description("elasticsearch.awaitIndexed(txId = -1, timeout = 10000, refresh = false) - wait up to timeout "
+      + "milliseconds until the changes of the transaction and all before it are in ElasticSearch, the newest "
+      + "transaction by default. refresh makes them visible to searches right away.")
+  public Stream<Watermark.Status> awaitIndexed(@Name(value = "txId", defaultValue = "-1") long txId,
+      @Name(value = "timeout", defaultValue = "10000") long timeout,
+      @Name(value = "refresh", defaultValue = "false") boolean refresh) throws IOException, InterruptedException {
+    return Stream.of(extension().awaitIndexed(txId, timeout, refresh));
+  }
+
+  @Procedure(name = "elasticsearch.searchNodes", mode = Mode.READ)
+  @Description("elasticsearch.searchNodes(query, limit = 100) - nodes whose documents match the query string "
+      + "or json query clause, best matches first")
+  public Stream<NodeResult> searchNodes(@Name("query") String query,
+      @Name(value = "limit", defaultValue = "100") long limit) {
+    return search(query, limit, false).map(hit -> new NodeResult((Node) hit.entity, hit.score));
+  }
+
+  @Procedure(name = "elasticsearch.searchRelationships", mode = Mode.READ)
+  @Description("elasticsearch.searchRelationships(query, limit = 100) - relationships whose documents match the "
+      + "query string or json query clause, best matches first")
+  public Stream<RelationshipResult> searchRelationships(@Name("query") String query,
+      @Name(value = "limit", defaultValue = "100") long limit) {
+    return search(query, limit, true).map(hit -> new RelationshipResult((Relationship) hit.entity, hit.score));
+  }
+
+  /**
+   * the hits resolved in the calling transaction a page at a time, a page of hits is read from
+   * ElasticSearch when the rows of the last one are consumed
+   * @param query
+   * @param limit
+   * @param relationships
+   * @return
+   */
+  private Stream<Resolved> search(String query, long limit, boolean relationships) {
+    Searcher searcher = extension().searcher();
+    Searcher.Hits hits = searcher.search(query, limit, relationships);
+    Iterator<List<Searcher.Hit>> pages = new Iterator<List<Searcher.Hit>>() {
+      @Override
+      public boolean hasNext() {
+        return hits.hasNext();
+      }
+
+      @Override
+      public List<Searcher.Hit> next() {
+        return hits.nextPage();
+      }
+    };
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(pages, Spliterator.ORDERED), false)
+        .onClose(hits::close).flatMap(page -> resolve(searcher, page))
+        // deleted since they were indexed
+        .filter(resolved -> resolved.entity != null);
+  }
+
+  private Stream<Resolved> resolve(Searcher searcher, List<Searcher.Hit> page) {
+    List<Entity> entities = searcher.entities(tx, page);
+    Resolved[] resolved = new Resolved[page.size()];
+    for (int i = 0; i < resolved.length; i++) {
+      resolved[i] = new Resolved(entities.get(i), page.get(i).score);
+    }
+    return Stream.of(resolved);
+  }
+
+  private ElasticSearchExtension extension() {
+    if (extension == null) {
+      throw new IllegalStateException("ElasticSearch extension is not enabled for this database");
+    }
+    return extension;
+  }
+
+  /**
+   * One metric, returned by elasticsearch.metrics()
+   */
+  public static class Metric {
+
+    public final String name;
+
+    public final Number value;
+
+    public Metric(String name, Number value) {
+      this.name = name;
+      this.value = value;
+    }
+  }
+
+  private static class Resolved {
+
+    private final Entity entity;
+
+    private final double score;
+
+    Resolved(Entity entity, double score) {
+      this.entity = entity;
+      this.score = score;
+    }
+  }
+
+  /**
+   * One node, returned by elasticsearch.searchNodes()
+   */
+  public static class NodeResult {
+
+    public final Node node;
+
+    public final double score;
+
+    public NodeResult(Node node, double score) {
+      this.node = node;
+      this.score = score;
+    }
+  }
+
+  /**
+   * One relationship, returned by elasticsearch.searchRelationships()
+   */
+  public static class RelationshipResult {
+
+    public final Relationship relationship;
+
+    public final double score;
+
+    public RelationshipResult(Relationship relationship, double score) {
+      this.relationship = relationship;
+      this.score = score;
+    }
+  }
+}
@@ -1,13 +1,21 @@
 package com.bianzx.neo4j.elasticsearch;
 
 import static org.neo4j.configuration.SettingValueParsers.BOOL;
+import static org.neo4j.configuration.SettingValueParsers.BYTES;
+import static org.neo4j.configuration.SettingValueParsers.DURATION;
 import static org.neo4j.configuration.SettingValueParsers.INT;
+import static org.neo4j.configuration.SettingValueParsers.PATH;
 import static org.neo4j.configuration.SettingValueParsers.STRING;
+import static org.neo4j.configuration.SettingValueParsers.ofEnum;
+import java.nio.file.Path;
+import java.time.Duration;
 import org.neo4j.annotations.service.ServiceProvider;
 import org.neo4j.configuration.Description;
 import org.neo4j.configuration.DocumentedDefaultValue;
 import org.neo4j.configuration.GroupSetting;
 import org.neo4j.graphdb.config.Setting;
+import com.bianzx.neo4j.elasticsearch.BulkDispatcher.OverflowPolicy;
+import com.bianzx.neo4j.elasticsearch.MappingGenerator.Dynamic;
 
 /**
  * 
@@ -52,6 +60,26 @@ public class ElasticSearchSettings extends GroupSetting {
   @Description("The number of replicas of the index, default 1")
   public final Setting<Integer> NUMBER_OF_REPLICAS = getBuilder("numberOfReplicas", INT, 1).build();
 
+  @Description("A json file that routes node labels and relationship types to their own indices, each with its "
+      + "own shards, replicas and mapping, everything else goes to indexName. Relative to the neo4j home")
+  public final Setting<Path> INDEX_LAYOUT = getBuilder("indexLayout", PATH, null).build();
+
+  @Description("Build an explicit mapping from sampled property types and the declared schema for the indices "
+      + "without a mapping in the layout file ?")
+  @DocumentedDefaultValue("false")
+  public final Setting<Boolean> GENERATE_MAPPING = getBuilder("generateMapping", BOOL, Boolean.FALSE).build();
+
+  @Description("What ElasticSearch does with properties a generated mapping does not know: FALSE keeps them in "
+      + "_source without indexing them, STRICT rejects them so they are left out of the documents, TRUE maps them "
+      + "dynamically, default FALSE")
+  @DocumentedDefaultValue("FALSE")
+  public final Setting<Dynamic> MAPPING_DYNAMIC =
+      getBuilder("mappingDynamic", ofEnum(Dynamic.class), Dynamic.FALSE).build();
+
+  @Description("How many entities of each label and relationship type are sampled to generate a mapping, "
+      + "default 1000")
+  public final Setting<Integer> MAPPING_SAMPLE_SIZE = getBuilder("mappingSampleSize", INT, 1000).build();
+
   @Description("Whether to sync nodes or not, default true")
   @DocumentedDefaultValue("true")
   public final Setting<Boolean> SYNC_NODES = getBuilder("syncNodes", BOOL, Boolean.TRUE).build();
@@ -68,6 +96,133 @@ public class ElasticSearchSettings extends GroupSetting {
   @DocumentedDefaultValue("true")
   public final Setting<Boolean> EXECUTE_ASYNC = getBuilder("executeAsync", BOOL, Boolean.TRUE).build();
 
+  @Description("Send only changed properties and labels of existing entities as partial updates. The digest "
+      + "compared by the reconciliation still covers the whole document, it reads the unchanged properties ?")
+  @DocumentedDefaultValue("false")
+  public final Setting<Boolean> PARTIAL_UPDATES = getBuilder("partialUpdates", BOOL, Boolean.FALSE).build();
+
+  @Description("Send index and delete actions with the committing transaction id as external version, so that "
+      + "bulks in flight at the same time can not overwrite newer documents with older ones. Partial updates "
+      + "can not be versioned, enabling both sends whole documents and logs a warning ?")
+  @DocumentedDefaultValue("false")
+  public final Setting<Boolean> EXTERNAL_VERSIONING = getBuilder("externalVersioning", BOOL, Boolean.FALSE).build();
+
+  @Description("Flush a bulk request when this many actions are queued, default 1000")
+  public final Setting<Integer> BULK_ACTIONS = getBuilder("bulkActions", INT, 1000).build();
+
+  @Description("Flush a bulk request when the queued payload reaches this size, default 5m")
+  @DocumentedDefaultValue("5m")
+  public final Setting<Long> BULK_SIZE = getBuilder("bulkSize", BYTES, 5L * 1024 * 1024).build();
+
+  @Description("Flush a bulk request when the oldest queued action has waited this long, default 1s")
+  @DocumentedDefaultValue("1s")
+  public final Setting<Duration> FLUSH_INTERVAL = getBuilder("flushInterval", DURATION, Duration.ofSeconds(1)).build();
+
+  @Description("Write changes to a local outbox before sending them in async mode, so they survive "
+      + "ElasticSearch outages and restarts ?")
+  @DocumentedDefaultValue("false")
+  public final Setting<Boolean> OUTBOX = getBuilder("outbox", BOOL, Boolean.FALSE).build();
+
+  @Description("The size of one outbox segment file, default 64m")
+  @DocumentedDefaultValue("64m")
+  public final Setting<Long> OUTBOX_SEGMENT_SIZE = getBuilder("outboxSegmentSize", BYTES, 64L * 1024 * 1024).build();
+
+  @Description("How often an action that ElasticSearch rejected is retried before it is written to the dead "
+      + "letter file, default 5")
+  public final Setting<Integer> MAX_RETRIES = getBuilder("maxRetries", INT, 5).build();
+
+  @Description("The delay before the first retry of a rejected action, doubled for every further attempt, default 500ms")
+  @DocumentedDefaultValue("500ms")
+  public final Setting<Duration> RETRY_BACKOFF = getBuilder("retryBackoff", DURATION, Duration.ofMillis(500)).build();
+
+  @Description("The upper bound of the retry delay, default 1m")
+  @DocumentedDefaultValue("1m")
+  public final Setting<Duration> MAX_RETRY_BACKOFF = getBuilder("maxRetryBackoff", DURATION, Duration.ofMinutes(1)).build();
+
+  @Description("How many async bulk requests may wait for a response at the same time, default 4")
+  public final Setting<Integer> MAX_IN_FLIGHT_REQUESTS = getBuilder("maxInFlightRequests", INT, 4).build();
+
+  @Description("The upper bound of queued and in-flight payload held in the heap in async mode, default 64m")
+  @DocumentedDefaultValue("64m")
+  public final Setting<Long> MAX_BUFFERED_BYTES = getBuilder("maxBufferedBytes", BYTES, 64L * 1024 * 1024).build();
+
+  @Description("What to do with new changes when maxBufferedBytes is reached: BLOCK the committing thread, "
+      + "SPILL them to disk or DROP them, default BLOCK")
+  @DocumentedDefaultValue("BLOCK")
+  public final Setting<OverflowPolicy> OVERFLOW_POLICY =
+      getBuilder("overflowPolicy", ofEnum(OverflowPolicy.class), OverflowPolicy.BLOCK).build();
+
+  @Description("Adjust the bulk size and the number of requests in flight to how fast ElasticSearch answers, "
+      + "between minBulkActions and bulkActions and up to maxInFlightRequests ?")
+  @DocumentedDefaultValue("false")
+  public final Setting<Boolean> ADAPTIVE_BULK = getBuilder("adaptiveBulk", BOOL, Boolean.FALSE).build();
+
+  @Description("The smallest bulk request and the growth step of adaptiveBulk, in actions, default 100")
+  public final Setting<Integer> MIN_BULK_ACTIONS = getBuilder("minBulkActions", INT, 100).build();
+
+  @Description("Bulk requests slower than this make adaptiveBulk back off, default 1s")
+  @DocumentedDefaultValue("1s")
+  public final Setting<Duration> TARGET_BULK_LATENCY =
+      getBuilder("targetBulkLatency", DURATION, Duration.ofSeconds(1)).build();
+
+  @Description("In sync mode, stop sending from the committing thread after circuitBreakerFailures failures in a "
+      + "row and keep changes in a local backlog until ElasticSearch answers again ?")
+  @DocumentedDefaultValue("true")
+  public final Setting<Boolean> CIRCUIT_BREAKER = getBuilder("circuitBreaker", BOOL, Boolean.TRUE).build();
+
+  @Description("Failed requests in a row that open the circuit breaker, default 3")
+  public final Setting<Integer> CIRCUIT_BREAKER_FAILURES = getBuilder("circuitBreakerFailures", INT, 3).build();
+
+  @Description("How long the circuit breaker stays open before probing ElasticSearch, default 10s")
+  @DocumentedDefaultValue("10s")
+  public final Setting<Duration> CIRCUIT_BREAKER_OPEN_TIME =
+      getBuilder("circuitBreakerOpenTime", DURATION, Duration.ofSeconds(10)).build();
+
+  @Description("How many workers scan id ranges in parallel during a reindex, default 4")
+  public final Setting<Integer> REINDEX_WORKERS = getBuilder("reindexWorkers", INT, 4).build();
+
+  @Description("How many node or relationship ids one reindex range covers, default 100000")
+  public final Setting<Integer> REINDEX_RANGE_SIZE = getBuilder("reindexRangeSize", INT, 100_000).build();
+
+  @Description("The maximum number of actions in one reindex bulk request, default 5000")
+  public final Setting<Integer> REINDEX_BULK_ACTIONS = getBuilder("reindexBulkActions", INT, 5000).build();
+
+  @Description("The maximum payload size of one reindex bulk request, default 15m")
+  @DocumentedDefaultValue("15m")
+  public final Setting<Long> REINDEX_BULK_SIZE = getBuilder("reindexBulkSize", BYTES, 15L * 1024 * 1024).build();
+
+  @Description("How many node or relationship ids a reconcile compares as one digest, only divergent ranges "
+      + "are compared document by document, default 10000")
+  public final Setting<Integer> RECONCILE_RANGE_SIZE = getBuilder("reconcileRangeSize", INT, 10_000).build();
+
+  @Description("Build documents after commit from the committed state instead of in the committing "
+      + "transaction, async mode only. Changes reach the outbox once their documents are built, default false")
+  @DocumentedDefaultValue("false")
+  public final Setting<Boolean> DEFERRED_MATERIALIZATION =
+      getBuilder("deferredMaterialization", BOOL, Boolean.FALSE).build();
+
+  @Description("How many workers build documents after commit with deferredMaterialization, default 4")
+  public final Setting<Integer> MATERIALIZATION_WORKERS = getBuilder("materializationWorkers", INT, 4).build();
+
+  @Description("Hold the changes of a document this long before sending them and send only its latest "
+      + "state, 0 disables it, async mode only. Held changes are not in the outbox yet, default 0")
+  @DocumentedDefaultValue("0")
+  public final Setting<Duration> COALESCE_WINDOW = getBuilder("coalesceWindow", DURATION, Duration.ZERO).build();
+
+  @Description("How many hits the search procedures read from ElasticSearch in one request, default 500")
+  public final Setting<Integer> SEARCH_PAGE_SIZE = getBuilder("searchPageSize", INT, 500).build();
+
+  @Description("How many results of searches that fit in one page are cached, 0 disables the cache, default 100")
+  public final Setting<Integer> SEARCH_CACHE_SIZE = getBuilder("searchCacheSize", INT, 100).build();
+
+  @Description("How long a cached search result is served, default 10s")
+  @DocumentedDefaultValue("10s")
+  public final Setting<Duration> SEARCH_CACHE_TTL =
+      getBuilder("searchCacheTtl", DURATION, Duration.ofSeconds(10)).build();
+
+  @Description("Trace one in this many transactions at debug level, default 1000")
+  public final Setting<Integer> TRACE_SAMPLE_INTERVAL = getBuilder("traceSampleInterval", INT, 1000).build();
+
   @Override
   public String getPrefix() {
     return PREFIX;
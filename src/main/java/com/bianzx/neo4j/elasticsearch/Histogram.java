@@ -0,0 +1,71 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @ClassName: Histogram
+ * @Description: 无锁的log2分桶直方图, 记录次数, 总和, 最大值, 百分位按桶的上界近似
+ * @author: bianzexin
+ * @date: Jan 25, 2021
+ *
+ */
+public class Histogram {
+
+  // One bucket per power of two, bucket b holds values in [2^b, 2^(b+1)), bucket 0 also holds 0
+  private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+
+  private final LongAdder count = new LongAdder();
+
+  private final LongAdder sum = new LongAdder();
+
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long value) {
+    long v = Math.max(0, value);
+    buckets.incrementAndGet(v == 0 ? 0 : Long.SIZE - 1 - Long.numberOfLeadingZeros(v));
+    count.increment();
+    sum.add(v);
+    long current = max.get();
+    while (v > current && !max.compareAndSet(current, v)) {
+      current = max.get();
+    }
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    long n = count.sum();
+    return n == 0 ? 0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * the upper bound of the bucket holding the given percentile, never above the maximum
+   * @param percentile between 0 and 100
+   * @return
+   */
+  public long getPercentile(double percentile) {
+    long n = count.sum();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(n * percentile / 100);
+    long seen = 0;
+    for (int b = 0; b < Long.SIZE; b++) {
+      seen += buckets.get(b);
+      if (seen >= rank) {
+        long upper = b >= Long.SIZE - 2 ? Long.MAX_VALUE : (1L << (b + 1)) - 1;
+        return Math.min(upper, max.get());
+      }
+    }
+    return max.get();
+  }
+}
@@ -0,0 +1,507 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ *
+ * @ClassName: IndexLayout
+ * @Description: 按node label和relationship type把文档路由到不同的index, 每个index有自己的分片数,
+ *               副本数和mapping, 没有匹配规则的文档写入indexName. 同时配置每个label和type同步哪些属性
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public class IndexLayout {
+
+  // The routed indices, in the order of the layout file
+  private static final String INDICES = "indices";
+
+  private static final String NAME = "name";
+
+  private static final String LABELS = "labels";
+
+  private static final String TYPES = "types";
+
+  private static final String NUMBER_OF_SHARDS = "numberOfShards";
+
+  private static final String NUMBER_OF_REPLICAS = "numberOfReplicas";
+
+  // The mapping of the document type, inline or the path of a json file next to the layout file
+  private static final String MAPPING = "mapping";
+
+  // The properties synced per label and per relationship type
+  private static final String PROJECTIONS = "projections";
+
+  private static final String INCLUDE = "include";
+
+  private static final String EXCLUDE = "exclude";
+
+  // Receives everything no rule routes elsewhere
+  private final Index fallback;
+
+  // All indices, the fallback first
+  private final List<Index> indices;
+
+  private final Map<String, Index> indicesByName;
+
+  // First index of each label, a node with several routed labels goes to the first of them
+  private final Map<String, Index> labelIndices;
+
+  private final Map<String, Index> typeIndices;
+
+  private final Map<String, PropertyProjection> labelProjections;
+
+  private final Map<String, PropertyProjection> typeProjections;
+
+  private IndexLayout(Index fallback, List<Index> routed, Map<String, PropertyProjection> labelProjections,
+      Map<String, PropertyProjection> typeProjections) {
+    this.fallback = fallback;
+    this.labelProjections = labelProjections;
+    this.typeProjections = typeProjections;
+    this.indices = new ArrayList<>(routed.size() + 1);
+    this.indicesByName = new HashMap<>();
+    this.labelIndices = new HashMap<>();
+    this.typeIndices = new HashMap<>();
+    indices.add(fallback);
+    indicesByName.put(fallback.name, fallback);
+    for (Index index : routed) {
+      indices.add(index);
+      indicesByName.put(index.name, index);
+      for (String label : index.labels) {
+        labelIndices.putIfAbsent(label, index);
+      }
+      for (String type : index.types) {
+        typeIndices.putIfAbsent(type, index);
+      }
+    }
+  }
+
+  /**
+   * everything in one index, as without a layout file
+   * @param indexName
+   * @param numberOfShards
+   * @param numberOfReplicas
+   * @return
+   */
+  public static IndexLayout single(String indexName, int numberOfShards, int numberOfReplicas) {
+    return new IndexLayout(new Index(indexName, numberOfShards, numberOfReplicas, null, 0,
+        Collections.emptyList(), Collections.emptyList()), Collections.emptyList(), Collections.emptyMap(),
+        Collections.emptyMap());
+  }
+
+  /**
+   * read the layout file. An entry named like indexName configures the fallback index, its labels
+   * and types are ignored.
+   * <pre>
+   * {"indices": [
+   *   {"name": "people", "labels": ["Person"], "numberOfShards": 3, "mapping": "people-mapping.json"},
+   *   {"name": "follows", "types": ["FOLLOWS"], "numberOfShards": 1, "numberOfReplicas": 0,
+   *    "mapping": {"dynamic": "strict", "properties": {...}}}
+   * ],
+   * "projections": {
+   *   "labels": {"Person": {"include": ["name", "age"]}, "Document": {"exclude": ["content"]}},
+   *   "types": {"FOLLOWS": {"include": ["since"]}}
+   * }}
+   * </pre>
+   * @param file
+   * @param indexName the fallback index
+   * @param numberOfShards default of every index
+   * @param numberOfReplicas default of every index
+   * @return
+   * @throws IOException if the file or a mapping file can not be read, or is not a valid layout
+   */
+  public static IndexLayout load(Path file, String indexName, int numberOfShards, int numberOfReplicas)
+      throws IOException {
+    JsonObject layout = parse(file).getAsJsonObject();
+    Index fallback = single(indexName, numberOfShards, numberOfReplicas).fallback;
+    List<Index> routed = new ArrayList<>();
+    Map<String, Index> names = new HashMap<>();
+    JsonArray entries = layout.has(INDICES) ? layout.getAsJsonArray(INDICES) : new JsonArray();
+    for (JsonElement element : entries) {
+      JsonObject entry = element.getAsJsonObject();
+      if (!entry.has(NAME)) {
+        throw new IOException("index without a name in " + file);
+      }
+      String name = entry.get(NAME).getAsString();
+      if (names.containsKey(name)) {
+        throw new IOException("index " + name + " is defined twice in " + file);
+      }
+      int shards = entry.has(NUMBER_OF_SHARDS) ? entry.get(NUMBER_OF_SHARDS).getAsInt() : numberOfShards;
+      int replicas = entry.has(NUMBER_OF_REPLICAS) ? entry.get(NUMBER_OF_REPLICAS).getAsInt() : numberOfReplicas;
+      JsonObject mapping = mapping(file, entry.get(MAPPING));
+      Index index;
+      if (name.equals(indexName)) {
+        index = new Index(name, shards, replicas, mapping, 0, Collections.emptyList(), Collections.emptyList());
+        fallback = index;
+      } else {
+        index = new Index(name, shards, replicas, mapping, routed.size() + 1, strings(entry.get(LABELS)),
+            strings(entry.get(TYPES)));
+        routed.add(index);
+      }
+      names.put(name, index);
+    }
+    JsonObject projections = layout.has(PROJECTIONS) ? layout.getAsJsonObject(PROJECTIONS) : new JsonObject();
+    return new IndexLayout(fallback, routed, projections(projections.get(LABELS)),
+        projections(projections.get(TYPES)));
+  }
+
+  /**
+   * the same layout with a suffix appended to every index name, for the indices of a rebuild
+   * @param suffix
+   * @return
+   */
+  public IndexLayout versioned(String suffix) {
+    List<Index> routed = new ArrayList<>(indices.size() - 1);
+    for (Index index : indices.subList(1, indices.size())) {
+      routed.add(index.rename(index.name + suffix));
+    }
+    return new IndexLayout(fallback.rename(fallback.name + suffix), routed, labelProjections, typeProjections);
+  }
+
+  /**
+   * the index of documents no rule routes elsewhere
+   * @return
+   */
+  public Index getFallback() {
+    return fallback;
+  }
+
+  /**
+   * all indices, the fallback first
+   * @return
+   */
+  public List<Index> getIndices() {
+    return Collections.unmodifiableList(indices);
+  }
+
+  /**
+   * @param name
+   * @return the index of that name, null if it is not part of the layout
+   */
+  public Index getIndex(String name) {
+    return indicesByName.get(name);
+  }
+
+  /**
+   * the indices that hold node documents, the fallback first
+   * @return
+   */
+  public List<String> nodeIndices() {
+    return holding(labelIndices);
+  }
+
+  /**
+   * the indices that hold relationship documents, the fallback first
+   * @return
+   */
+  public List<String> relationshipIndices() {
+    return holding(typeIndices);
+  }
+
+  private List<String> holding(Map<String, Index> routes) {
+    List<String> names = new ArrayList<>();
+    names.add(fallback.name);
+    for (Index index : indices) {
+      if (index != fallback && routes.containsValue(index)) {
+        names.add(index.name);
+      }
+    }
+    return names;
+  }
+
+  /**
+   * whether a label change can move a node to another index
+   * @return
+   */
+  public boolean routesLabels() {
+    return !labelIndices.isEmpty();
+  }
+
+  /**
+   * whether relationships of some types go to their own index
+   * @return
+   */
+  public boolean routesTypes() {
+    return !typeIndices.isEmpty();
+  }
+
+  /**
+   * the index of a node with these labels, the earliest in the layout file if several match
+   * @param labels
+   * @return
+   */
+  public String nodeIndex(Iterable<String> labels) {
+    if (labelIndices.isEmpty()) {
+      return fallback.name;
+    }
+    Index first = null;
+    for (String label : labels) {
+      Index index = labelIndices.get(label);
+      if (index != null && (first == null || index.position < first.position)) {
+        first = index;
+      }
+    }
+    return first == null ? fallback.name : first.name;
+  }
+
+  /**
+   * the index of a relationship of this type
+   * @param type
+   * @return
+   */
+  public String relationshipIndex(String type) {
+    Index index = typeIndices.get(type);
+    return index == null ? fallback.name : index.name;
+  }
+
+  /**
+   * whether some labels or relationship types do not sync all properties
+   * @return
+   */
+  public boolean projectsProperties() {
+    return !labelProjections.isEmpty() || !typeProjections.isEmpty();
+  }
+
+  /**
+   * the properties synced of a node with these labels, labels without a projection do not
+   * restrict it
+   * @param labels
+   * @return
+   */
+  public PropertyProjection nodeProjection(Iterable<String> labels) {
+    if (labelProjections.isEmpty()) {
+      return PropertyProjection.ALL;
+    }
+    PropertyProjection projection = PropertyProjection.ALL;
+    for (String label : labels) {
+      PropertyProjection labelProjection = labelProjections.get(label);
+      if (labelProjection != null) {
+        projection = projection.merge(labelProjection);
+      }
+    }
+    return projection;
+  }
+
+  /**
+   * the properties synced of a relationship of this type
+   * @param type
+   * @return
+   */
+  public PropertyProjection relationshipProjection(String type) {
+    return typeProjections.getOrDefault(type, PropertyProjection.ALL);
+  }
+
+  private static Map<String, PropertyProjection> projections(JsonElement projections) {
+    if (projections == null || projections.isJsonNull()) {
+      return Collections.emptyMap();
+    }
+    Map<String, PropertyProjection> byName = new HashMap<>();
+    for (Map.Entry<String, JsonElement> entry : projections.getAsJsonObject().entrySet()) {
+      JsonObject projection = entry.getValue().getAsJsonObject();
+      byName.put(entry.getKey(),
+          PropertyProjection.of(strings(projection.get(INCLUDE)), strings(projection.get(EXCLUDE))));
+    }
+    return byName;
+  }
+
+  private static JsonElement parse(Path file) throws IOException {
+    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      return new JsonParser().parse(reader);
+    } catch (RuntimeException e) {
+      throw new IOException("can not parse " + file + ", " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * an inline mapping, or one read from a file relative to the layout file
+   * @param file
+   * @param mapping
+   * @return null if there is none, ElasticSearch maps fields dynamically then
+   * @throws IOException
+   */
+  private static JsonObject mapping(Path file, JsonElement mapping) throws IOException {
+    if (mapping == null || mapping.isJsonNull()) {
+      return null;
+    }
+    if (mapping.isJsonPrimitive()) {
+      Path mappingFile = file.resolveSibling(mapping.getAsString());
+      return parse(mappingFile).getAsJsonObject();
+    }
+    return mapping.getAsJsonObject();
+  }
+
+  private static List<String> strings(JsonElement array) {
+    if (array == null || array.isJsonNull()) {
+      return Collections.emptyList();
+    }
+    List<String> strings = new ArrayList<>();
+    for (JsonElement element : array.getAsJsonArray()) {
+      strings.add(element.getAsString());
+    }
+    return strings;
+  }
+
+  /**
+   * One target index of the layout
+   */
+  public static class Index {
+
+    // The field of the document that holds the entity properties
+    private static final String PROPERTIES = "properties";
+
+    private static final String DYNAMIC = "dynamic";
+
+    private static final String STRICT = "strict";
+
+    private final String name;
+
+    private final int numberOfShards;
+
+    private final int numberOfReplicas;
+
+    // Order in the layout file, decides between several matching labels
+    private final int position;
+
+    private final List<String> labels;
+
+    private final List<String> types;
+
+    // The index of the layout a rebuild copy was made from, which holds the mapping of both
+    private final Index original;
+
+    // The mapping of the document type, null for dynamic mapping
+    private volatile JsonObject mapping;
+
+    // Properties the mapping knows, null if ElasticSearch maps new ones dynamically
+    private volatile Set<String> mappedProperties;
+
+    // Whether ElasticSearch rejects documents with properties the mapping does not know
+    private volatile boolean strict;
+
+    // Fields of the document the mapping knows, null unless it rejects documents with other fields
+    private volatile Set<String> mappedFields;
+
+    // When the mapping was last replaced, 0 for the mapping of the layout file. Documents built before
+    // were filtered by another mapping, or by none while it was generated.
+    private volatile long mappedAt;
+
+    Index(String name, int numberOfShards, int numberOfReplicas, JsonObject mapping, int position,
+        List<String> labels, List<String> types) {
+      this(name, numberOfShards, numberOfReplicas, position, labels, types, null);
+      setMapping(mapping);
+      this.mappedAt = 0;
+    }
+
+    private Index(String name, int numberOfShards, int numberOfReplicas, int position, List<String> labels,
+        List<String> types, Index original) {
+      this.name = name;
+      this.numberOfShards = numberOfShards;
+      this.numberOfReplicas = numberOfReplicas;
+      this.position = position;
+      this.labels = labels;
+      this.types = types;
+      this.original = original;
+    }
+
+    Index rename(String name) {
+      return new Index(name, numberOfShards, numberOfReplicas, position, labels, types,
+          original == null ? this : original);
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getNumberOfShards() {
+      return numberOfShards;
+    }
+
+    public int getNumberOfReplicas() {
+      return numberOfReplicas;
+    }
+
+    public JsonObject getMapping() {
+      return original == null ? mapping : original.mapping;
+    }
+
+    /**
+     * @return the properties the mapping knows, null if new ones are mapped dynamically
+     */
+    public Set<String> getMappedProperties() {
+      return original == null ? mappedProperties : original.mappedProperties;
+    }
+
+    public boolean isStrict() {
+      return original == null ? strict : original.strict;
+    }
+
+    /**
+     * @param field a field of the document, not of its properties
+     * @return false if ElasticSearch rejects documents with the field
+     */
+    public boolean mapsField(String field) {
+      Set<String> fields = original == null ? mappedFields : original.mappedFields;
+      return fields == null || fields.contains(field);
+    }
+
+    public long getMappedAt() {
+      return original == null ? mappedAt : original.mappedAt;
+    }
+
+    /**
+     * replace the mapping, e.g. by one generated from the graph, rebuild copies follow it
+     * @param mapping the mapping of the document type, null for dynamic mapping
+     */
+    public void setMapping(JsonObject mapping) {
+      if (original != null) {
+        original.setMapping(mapping);
+        return;
+      }
+      Set<String> known = null;
+      Set<String> knownFields = null;
+      boolean rejects = false;
+      if (mapping != null) {
+        JsonObject fields = mapping.has(PROPERTIES) ? mapping.getAsJsonObject(PROPERTIES) : new JsonObject();
+        if (mapping.has(DYNAMIC) && STRICT.equals(mapping.get(DYNAMIC).getAsString())) {
+          knownFields = new HashSet<>();
+          for (Map.Entry<String, JsonElement> field : fields.entrySet()) {
+            knownFields.add(field.getKey());
+          }
+        }
+        JsonObject properties = fields.has(PROPERTIES) ? fields.getAsJsonObject(PROPERTIES) : new JsonObject();
+        // the properties object inherits dynamic from the document
+        String dynamic = properties.has(DYNAMIC) ? properties.get(DYNAMIC).getAsString()
+            : mapping.has(DYNAMIC) ? mapping.get(DYNAMIC).getAsString() : "true";
+        if (!"true".equals(dynamic)) {
+          known = new HashSet<>();
+          if (properties.has(PROPERTIES)) {
+            for (Map.Entry<String, JsonElement> field : properties.getAsJsonObject(PROPERTIES).entrySet()) {
+              known.add(field.getKey());
+            }
+          }
+          rejects = STRICT.equals(dynamic);
+        }
+      }
+      this.mapping = mapping;
+      this.mappedProperties = known;
+      this.strict = rejects;
+      this.mappedFields = knownFields;
+      this.mappedAt = System.currentTimeMillis();
+    }
+  }
+}
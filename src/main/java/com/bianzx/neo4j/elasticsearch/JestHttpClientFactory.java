@@ -36,12 +36,14 @@ public class JestHttpClientFactory {
    * 获取JestClient
    * @param host
    * @param discovery
+   * @param maxConnections 每个节点最多同时使用的连接数
    * @return
    * @throws Throwable
    */
-  public static JestClient getClient(final String host, final Boolean discovery) throws Throwable {
+  public static JestClient getClient(final String host, final Boolean discovery, final int maxConnections)
+      throws Throwable {
     JestClientFactory factory = new JestClientFactory();
-    factory.setHttpClientConfig(config(host, discovery));
+    factory.setHttpClientConfig(config(host, discovery, maxConnections));
     return factory.getObject();
   }
 
@@ -49,13 +51,17 @@ public class JestHttpClientFactory {
    * 配置JestClient的http config
    * @param host
    * @param discovery
+   * @param maxConnections
    * @return
    * @throws GeneralSecurityException
    */
-  private static HttpClientConfig config(String host, Boolean discovery)
+  private static HttpClientConfig config(String host, Boolean discovery, int maxConnections)
       throws GeneralSecurityException {
-    HttpClientConfig.Builder clientConfig = new HttpClientConfig.Builder(uris(host))
-        .multiThreaded(true).defaultSchemeForDiscoveredNodes(defaultSchema(host))
+    Collection<String> uris = uris(host);
+    // the default of 2 connections per node would hold back bulks that are sent in parallel
+    HttpClientConfig.Builder clientConfig = new HttpClientConfig.Builder(uris)
+        .multiThreaded(true).defaultMaxTotalConnectionPerRoute(maxConnections)
+        .maxTotalConnection(maxConnections * uris.size()).defaultSchemeForDiscoveredNodes(defaultSchema(host))
         .sslSocketFactory(getSyncHttpsHandler()).httpsIOSessionStrategy(getAsyncHttpsHandler());
 
     if (discovery) {
@@ -0,0 +1,120 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * @ClassName: LongMap
+ * @Description: 以long为key的开放寻址map, 不装箱key, 按插入顺序遍历value, 用于事务内按entity id去重
+ * @author: bianzexin
+ * @date: Jan 18, 2021
+ *
+ */
+public class LongMap<V> {
+
+  private static final int MIN_CAPACITY = 16;
+
+  // Keys of the occupied slots
+  private long[] keys;
+
+  // Position + 1 of the value of each slot in values, 0 for a free slot
+  private int[] slots;
+
+  // Values in insertion order
+  private final List<V> values;
+
+  private int mask;
+
+  public LongMap() {
+    this(MIN_CAPACITY);
+  }
+
+  /**
+   * @param expectedSize number of keys that fit without rehashing
+   */
+  public LongMap(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while (capacity < expectedSize * 2) {
+      capacity <<= 1;
+    }
+    keys = new long[capacity];
+    slots = new int[capacity];
+    mask = capacity - 1;
+    values = new ArrayList<>(expectedSize);
+  }
+
+  public V get(long key) {
+    int slot = slot(key);
+    return slots[slot] == 0 ? null : values.get(slots[slot] - 1);
+  }
+
+  /**
+   * add a value for a key that is not in the map yet
+   * @param key
+   * @param value
+   */
+  public void putNew(long key, V value) {
+    if ((values.size() + 1) * 2 > keys.length) {
+      rehash(keys.length << 1);
+    }
+    int slot = slot(key);
+    values.add(value);
+    keys[slot] = key;
+    slots[slot] = values.size();
+  }
+
+  public int size() {
+    return values.size();
+  }
+
+  public boolean isEmpty() {
+    return values.isEmpty();
+  }
+
+  /**
+   * the values in insertion order
+   * @return
+   */
+  public List<V> values() {
+    return values;
+  }
+
+  /**
+   * the slot holding the key, or the free slot where it belongs
+   * @param key
+   * @return
+   */
+  private int slot(long key) {
+    int slot = hash(key) & mask;
+    while (slots[slot] != 0 && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    int[] oldSlots = slots;
+    keys = new long[capacity];
+    slots = new int[capacity];
+    mask = capacity - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldSlots[i] != 0) {
+        int slot = slot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        slots[slot] = oldSlots[i];
+      }
+    }
+  }
+
+  /**
+   * entity ids are dense, spread them over the table
+   * @param key
+   * @return
+   */
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
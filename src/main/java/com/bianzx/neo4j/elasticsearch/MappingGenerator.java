@@ -0,0 +1,363 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import org.neo4j.graphdb.Entity;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.schema.ConstraintDefinition;
+import org.neo4j.graphdb.schema.ConstraintType;
+import org.neo4j.graphdb.schema.IndexDefinition;
+import org.neo4j.graphdb.spatial.Point;
+import com.google.gson.JsonObject;
+
+/**
+ *
+ * @ClassName: MappingGenerator
+ * @Description: 抽样每个label和relationship type的entity, 结合schema中声明的索引和约束,
+ *               为每个index生成显式mapping, 避免动态mapping不断更新ElasticSearch的cluster state
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public class MappingGenerator {
+
+  // Longer strings are not put into the keyword sub field
+  private static final int IGNORE_ABOVE = 256;
+
+  // CRS codes of WGS-84 points, which are written as geo points
+  private static final int WGS84_2D = 4326;
+
+  private static final int WGS84_3D = 4979;
+
+  /**
+   * What ElasticSearch does with fields the mapping does not know
+   */
+  public enum Dynamic {
+    // map them dynamically
+    TRUE,
+    // keep them in _source without indexing them
+    FALSE,
+    // reject the document
+    STRICT;
+
+    @Override
+    public String toString() {
+      return name().toLowerCase();
+    }
+  }
+
+  /**
+   * The ElasticSearch type of a property, widened as more values are seen
+   */
+  private enum FieldType {
+    LONG, DOUBLE, BOOLEAN, DATE, KEYWORD, TEXT, GEO_POINT, POINT,
+    // values that no single type holds, e.g. points and strings
+    CONFLICT;
+
+    /**
+     * the narrowest type that holds the values of both
+     * @param other
+     * @return
+     */
+    FieldType merge(FieldType other) {
+      if (this == other) {
+        return this;
+      }
+      if (this == CONFLICT || other == CONFLICT || isObject() || other.isObject()) {
+        return CONFLICT;
+      }
+      if ((this == LONG && other == DOUBLE) || (this == DOUBLE && other == LONG)) {
+        return DOUBLE;
+      }
+      // any scalar can be searched as a string
+      return this == TEXT || other == TEXT ? TEXT : KEYWORD;
+    }
+
+    boolean isObject() {
+      return this == GEO_POINT || this == POINT;
+    }
+
+    JsonObject mapping() {
+      JsonObject mapping = new JsonObject();
+      switch (this) {
+        case TEXT:
+          JsonObject keyword = new JsonObject();
+          keyword.addProperty("type", "keyword");
+          keyword.addProperty("ignore_above", IGNORE_ABOVE);
+          JsonObject fields = new JsonObject();
+          fields.add("keyword", keyword);
+          mapping.addProperty("type", "text");
+          mapping.add("fields", fields);
+          break;
+        case POINT:
+          // cartesian points are written as x, y and z
+          JsonObject coordinates = new JsonObject();
+          for (String axis : new String[] {"x", "y", "z"}) {
+            JsonObject coordinate = new JsonObject();
+            coordinate.addProperty("type", "double");
+            coordinates.add(axis, coordinate);
+          }
+          mapping.add("properties", coordinates);
+          break;
+        default:
+          mapping.addProperty("type", name().toLowerCase());
+      }
+      return mapping;
+    }
+
+    /**
+     * the type of a value as DocumentWriter writes it
+     * @param value
+     * @return null for values that carry no type, like empty arrays
+     */
+    static FieldType of(Object value) {
+      if (value instanceof String) {
+        return TEXT;
+      } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+          || value instanceof Byte) {
+        return LONG;
+      } else if (value instanceof Double || value instanceof Float) {
+        return DOUBLE;
+      } else if (value instanceof Boolean) {
+        return BOOLEAN;
+      } else if (value instanceof Point) {
+        int code = ((Point) value).getCRS().getCode();
+        return code == WGS84_2D || code == WGS84_3D ? GEO_POINT : POINT;
+      } else if (value instanceof ZonedDateTime || value instanceof LocalDateTime || value instanceof LocalDate) {
+        return DATE;
+      } else if (value instanceof long[] || value instanceof int[] || value instanceof short[]
+          || value instanceof byte[]) {
+        return LONG;
+      } else if (value instanceof double[] || value instanceof float[]) {
+        return DOUBLE;
+      } else if (value instanceof boolean[]) {
+        return BOOLEAN;
+      } else if (value instanceof Object[]) {
+        // arrays are mapped by their elements
+        FieldType type = null;
+        for (Object element : (Object[]) value) {
+          FieldType elementType = of(element);
+          type = type == null ? elementType : elementType == null ? type : type.merge(elementType);
+        }
+        return type;
+      }
+      // times, durations and characters are written as strings that are not parsed
+      return value == null ? null : KEYWORD;
+    }
+  }
+
+  private final GraphDatabaseService db;
+
+  // Routes and projects the sampled entities like their documents
+  private final DocumentFactory documents;
+
+  // Entities sampled per label and per relationship type
+  private final int sampleSize;
+
+  private final boolean syncNodes;
+
+  private final boolean syncRelationships;
+
+  private final Dynamic dynamic;
+
+  private MappingGenerator(Builder builder) {
+    this.db = builder.db;
+    this.documents = builder.documents;
+    this.sampleSize = Math.max(1, builder.sampleSize);
+    this.syncNodes = builder.syncNodes;
+    this.syncRelationships = builder.syncRelationships;
+    this.dynamic = builder.dynamic != null ? builder.dynamic : Dynamic.FALSE;
+  }
+
+  /**
+   * sample the graph and build the mapping of every index of the layout
+   * @return the mapping of the document type by index name
+   */
+  public Map<String, JsonObject> generate() {
+    Map<String, Map<String, FieldType>> fieldsByIndex = new HashMap<>();
+    try (Transaction tx = db.beginTx()) {
+      if (syncNodes) {
+        for (Label label : tx.getAllLabelsInUse()) {
+          try (ResourceIterator<Node> nodes = tx.findNodes(label)) {
+            for (int i = 0; i < sampleSize && nodes.hasNext(); i++) {
+              observe(fieldsByIndex, nodes.next());
+            }
+          }
+        }
+        // the first nodes of the store, for nodes without labels
+        try (ResourceIterator<Node> nodes = tx.getAllNodes().iterator()) {
+          for (int i = 0; i < sampleSize && nodes.hasNext(); i++) {
+            observe(fieldsByIndex, nodes.next());
+          }
+        }
+      }
+      if (syncRelationships) {
+        sampleRelationships(tx, fieldsByIndex);
+      }
+      declared(tx, fieldsByIndex);
+    }
+
+    Map<String, JsonObject> mappings = new HashMap<>();
+    for (IndexLayout.Index index : documents.getLayout().getIndices()) {
+      Map<String, JsonObject> properties = new TreeMap<>();
+      for (Map.Entry<String, FieldType> field
+          : fieldsByIndex.getOrDefault(index.getName(), Collections.emptyMap()).entrySet()) {
+        // left out of the mapping, counted as unmapped when written
+        if (field.getValue() != FieldType.CONFLICT) {
+          properties.put(field.getKey(), field.getValue().mapping());
+        }
+      }
+      mappings.put(index.getName(), DocumentFactory.mapping(properties, dynamic.toString()));
+    }
+    return mappings;
+  }
+
+  /**
+   * there is no lookup of relationships by type, so the first relationships are scanned until
+   * every type has its sample or enough were seen
+   * @param tx
+   * @param fieldsByIndex
+   */
+  private void sampleRelationships(Transaction tx, Map<String, Map<String, FieldType>> fieldsByIndex) {
+    int types = 0;
+    for (RelationshipType ignored : tx.getAllRelationshipTypesInUse()) {
+      types++;
+    }
+    long limit = (long) sampleSize * Math.max(1, types);
+    Map<String, Integer> sampled = new HashMap<>();
+    try (ResourceIterator<Relationship> relationships = tx.getAllRelationships().iterator()) {
+      for (long i = 0; i < limit && relationships.hasNext(); i++) {
+        Relationship relationship = relationships.next();
+        if (sampled.merge(relationship.getType().name(), 1, Integer::sum) <= sampleSize) {
+          observe(fieldsByIndex, relationship);
+        }
+      }
+    }
+  }
+
+  private void observe(Map<String, Map<String, FieldType>> fieldsByIndex, Entity entity) {
+    Map<String, FieldType> fields = fieldsByIndex.computeIfAbsent(documents.indexOf(entity), index -> new HashMap<>());
+    for (Map.Entry<String, Object> property : documents.projection(entity).read(entity).entrySet()) {
+      FieldType type = FieldType.of(property.getValue());
+      if (type != null) {
+        fields.merge(property.getKey(), type, FieldType::merge);
+      }
+    }
+  }
+
+  /**
+   * properties of indexes and constraints that no sampled entity has yet, their type is unknown
+   * and keyword takes strings, numbers and booleans alike
+   * @param tx
+   * @param fieldsByIndex
+   */
+  private void declared(Transaction tx, Map<String, Map<String, FieldType>> fieldsByIndex) {
+    IndexLayout layout = documents.getLayout();
+    for (IndexDefinition index : tx.schema().getIndexes()) {
+      if (index.isNodeIndex() && syncNodes) {
+        for (Label label : index.getLabels()) {
+          declare(fieldsByIndex, layout.nodeIndex(Collections.singletonList(label.name())),
+              layout.nodeProjection(Collections.singletonList(label.name())), index.getPropertyKeys());
+        }
+      } else if (index.isRelationshipIndex() && syncRelationships) {
+        for (RelationshipType type : index.getRelationshipTypes()) {
+          declare(fieldsByIndex, layout.relationshipIndex(type.name()), layout.relationshipProjection(type.name()),
+              index.getPropertyKeys());
+        }
+      }
+    }
+    for (ConstraintDefinition constraint : tx.schema().getConstraints()) {
+      if (constraint.isConstraintType(ConstraintType.RELATIONSHIP_PROPERTY_EXISTENCE)) {
+        if (syncRelationships) {
+          String type = constraint.getRelationshipType().name();
+          declare(fieldsByIndex, layout.relationshipIndex(type), layout.relationshipProjection(type),
+              constraint.getPropertyKeys());
+        }
+      } else if (syncNodes) {
+        String label = constraint.getLabel().name();
+        declare(fieldsByIndex, layout.nodeIndex(Collections.singletonList(label)),
+            layout.nodeProjection(Collections.singletonList(label)), constraint.getPropertyKeys());
+      }
+    }
+  }
+
+  private void declare(Map<String, Map<String, FieldType>> fieldsByIndex, String index,
+      PropertyProjection projection, Iterable<String> keys) {
+    Map<String, FieldType> fields = fieldsByIndex.computeIfAbsent(index, name -> new HashMap<>());
+    for (String key : keys) {
+      if (projection.contains(key)) {
+        fields.putIfAbsent(key, FieldType.KEYWORD);
+      }
+    }
+  }
+
+  /**
+   *
+   * @ClassName: Builder
+   * @Description: Builder for MappingGenerator
+   * @author: bianzexin
+   * @date: Feb 1, 2021
+   *
+   */
+  public static class Builder {
+
+    private GraphDatabaseService db;
+
+    private DocumentFactory documents;
+
+    private int sampleSize;
+
+    private boolean syncNodes;
+
+    private boolean syncRelationships;
+
+    private Dynamic dynamic;
+
+    public Builder() {}
+
+    public Builder db(GraphDatabaseService db) {
+      this.db = db;
+      return this;
+    }
+
+    public Builder documents(DocumentFactory documents) {
+      this.documents = documents;
+      return this;
+    }
+
+    public Builder sampleSize(int sampleSize) {
+      this.sampleSize = sampleSize;
+      return this;
+    }
+
+    public Builder syncNodes(boolean syncNodes) {
+      this.syncNodes = syncNodes;
+      return this;
+    }
+
+    public Builder syncRelationships(boolean syncRelationships) {
+      this.syncRelationships = syncRelationships;
+      return this;
+    }
+
+    public Builder dynamic(Dynamic dynamic) {
+      this.dynamic = dynamic;
+      return this;
+    }
+
+    public MappingGenerator build() {
+      return new MappingGenerator(this);
+    }
+  }
+}
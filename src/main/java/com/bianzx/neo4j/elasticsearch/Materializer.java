@@ -0,0 +1,269 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.neo4j.graphdb.Entity;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ *
+ * @ClassName: Materializer
+ * @Description: 提交后在独立的读事务中读取变更entity的已提交状态并构建文档, 按文档id分片到单线程worker,
+ *               同一entity的变更按提交顺序处理, 构建好的操作交给BulkDispatcher发送
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public class Materializer {
+
+  private final static Logger logger = Logger.getLogger(Materializer.class.getName());
+
+  // Transactions a worker holds before add() blocks the committing thread
+  private static final int QUEUE_CAPACITY = 1024;
+
+  // How often an idle worker checks whether it was closed
+  private static final long POLL_MILLIS = 100L;
+
+  private final GraphDatabaseService db;
+
+  private final DocumentFactory documents;
+
+  private final BulkDispatcher dispatcher;
+
+  // Holds the built actions of hot entities for a short window before the dispatcher, may be null
+  private final Coalescer coalescer;
+
+  // Told about actions that are dropped, null when nobody waits for them
+  private final Watermark watermark;
+
+  // One queue per worker, an entity always goes to the same worker
+  private final List<BlockingQueue<List<BulkItem>>> queues;
+
+  private final List<Thread> workers;
+
+  // Actions handed to add() and not yet passed on to the dispatcher
+  private final AtomicLong pendingActions = new AtomicLong();
+
+  private volatile boolean running;
+
+  private Materializer(Builder builder) {
+    this.db = builder.db;
+    this.documents = builder.documents;
+    this.dispatcher = builder.dispatcher;
+    this.coalescer = builder.coalescer;
+    this.watermark = builder.watermark;
+    int workers = Math.max(1, builder.workers);
+    this.queues = new ArrayList<>(workers);
+    this.workers = new ArrayList<>(workers);
+    for (int i = 0; i < workers; i++) {
+      queues.add(new ArrayBlockingQueue<>(QUEUE_CAPACITY));
+    }
+  }
+
+  /**
+   * start the worker threads
+   */
+  public void start() {
+    running = true;
+    for (int i = 0; i < queues.size(); i++) {
+      BlockingQueue<List<BulkItem>> queue = queues.get(i);
+      Thread worker = new Thread(() -> work(queue), "neo4j-elasticsearch-materializer-" + i);
+      worker.setDaemon(true);
+      worker.start();
+      workers.add(worker);
+    }
+  }
+
+  /**
+   * queue the actions of one committed transaction, blocks while the worker of an entity is full
+   * @param items deletes and deferred index actions
+   */
+  public void add(Collection<BulkItem> items) {
+    pendingActions.addAndGet(items.size());
+    if (!running) {
+      // closed, the listener is already unregistered, finish on the caller
+      materialize(new ArrayList<>(items));
+      return;
+    }
+    int stripes = queues.size();
+    List<List<BulkItem>> parts = new ArrayList<>(stripes);
+    for (int i = 0; i < stripes; i++) {
+      parts.add(null);
+    }
+    for (BulkItem item : items) {
+      int stripe = Math.floorMod(item.getId().hashCode(), stripes);
+      List<BulkItem> part = parts.get(stripe);
+      if (part == null) {
+        part = new ArrayList<>(stripes == 1 ? items.size() : 8);
+        parts.set(stripe, part);
+      }
+      part.add(item);
+    }
+    for (int i = 0; i < stripes; i++) {
+      List<BulkItem> part = parts.get(i);
+      if (part == null) {
+        continue;
+      }
+      try {
+        queues.get(i).put(part);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        materialize(part);
+      }
+    }
+  }
+
+  /**
+   * number of actions waiting for their documents
+   * @return
+   */
+  public long getPendingActions() {
+    return pendingActions.get();
+  }
+
+  /**
+   * stop the workers once their queues are empty
+   * @param timeoutMillis
+   */
+  public void close(long timeoutMillis) {
+    running = false;
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    for (Thread worker : workers) {
+      try {
+        worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    // anything a worker did not get to in time is finished here
+    for (BlockingQueue<List<BulkItem>> queue : queues) {
+      List<BulkItem> part;
+      while ((part = queue.poll()) != null) {
+        materialize(part);
+      }
+    }
+  }
+
+  private void work(BlockingQueue<List<BulkItem>> queue) {
+    while (running || !queue.isEmpty()) {
+      try {
+        List<BulkItem> part = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (part != null) {
+          materialize(part);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * read the documents of the deferred actions and pass everything on to the dispatcher
+   * @param items
+   */
+  private void materialize(List<BulkItem> items) {
+    try {
+      List<BulkItem> actions = new ArrayList<>(items.size());
+      List<BulkItem> dropped = new ArrayList<>();
+      try (Transaction tx = db.beginTx()) {
+        for (BulkItem item : items) {
+          if (!item.isDeferred()) {
+            actions.add(item);
+            continue;
+          }
+          Entity entity = documents.entity(tx, item.getId());
+          // a later transaction deleted it, its delete follows on this worker
+          if (entity != null) {
+            actions.add(documents.materialize(item, entity));
+          } else {
+            dropped.add(item);
+          }
+        }
+      }
+      if (!actions.isEmpty() && coalescer != null) {
+        coalescer.add(actions);
+      } else if (!actions.isEmpty()) {
+        dispatcher.add(actions);
+      }
+      if (watermark != null && !dropped.isEmpty()) {
+        watermark.resolved(dropped);
+      }
+    } catch (RuntimeException e) {
+      logger.log(Level.SEVERE, "can not materialize " + items.size() + " actions", e);
+      if (watermark != null) {
+        watermark.resolved(items);
+      }
+    } finally {
+      pendingActions.addAndGet(-items.size());
+    }
+  }
+
+  /**
+   *
+   * @ClassName: Builder
+   * @Description: Builder for Materializer
+   * @author: bianzexin
+   * @date: Feb 1, 2021
+   *
+   */
+  public static class Builder {
+
+    private GraphDatabaseService db;
+
+    private DocumentFactory documents;
+
+    private BulkDispatcher dispatcher;
+
+    private Coalescer coalescer;
+
+    private Watermark watermark;
+
+    private int workers;
+
+    public Builder() {}
+
+    public Builder db(GraphDatabaseService db) {
+      this.db = db;
+      return this;
+    }
+
+    public Builder documents(DocumentFactory documents) {
+      this.documents = documents;
+      return this;
+    }
+
+    public Builder dispatcher(BulkDispatcher dispatcher) {
+      this.dispatcher = dispatcher;
+      return this;
+    }
+
+    public Builder coalescer(Coalescer coalescer) {
+      this.coalescer = coalescer;
+      return this;
+    }
+
+    public Builder watermark(Watermark watermark) {
+      this.watermark = watermark;
+      return this;
+    }
+
+    public Builder workers(int workers) {
+      this.workers = workers;
+      return this;
+    }
+
+    public Materializer build() {
+      return new Materializer(this);
+    }
+  }
+}
@@ -0,0 +1,395 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * @ClassName: Outbox
+ * @Description: 本地追加写的outbox, 事务提交后的变更先写入内存映射的segment文件, 再由dispatcher读取发送,
+ *               发送成功后推进持久化的checkpoint, 重启后从checkpoint开始重放
+ * @author: bianzexin
+ * @date: Dec 14, 2020
+ *
+ */
+public class Outbox {
+
+  private final static Logger logger = Logger.getLogger(Outbox.class.getName());
+
+  private static final String SEGMENT_PREFIX = "outbox.";
+
+  private static final String CHECKPOINT_FILE = "checkpoint";
+
+  // Record header: payload length and crc32 of the payload
+  private static final int HEADER_SIZE = 8;
+
+  // Written in place of a record header when the rest of a segment is left unused
+  private static final int END_OF_SEGMENT = -1;
+
+  private final File directory;
+
+  private final int segmentSize;
+
+  // Mapped segments by segment number, accessed by appenders and the reader
+  private final ConcurrentSkipListMap<Integer, MappedByteBuffer> segments = new ConcurrentSkipListMap<>();
+
+  private final FileChannel checkpointChannel;
+
+  // Position after the last appended record, published after the record is fully written
+  private volatile long writePosition;
+
+  // Position of the next record to read, only used by the dispatch thread
+  private long readPosition;
+
+  // Position of the first record not yet acknowledged by ElasticSearch
+  private volatile long checkpoint;
+
+  /**
+   * open or create the outbox in the given directory and recover its positions
+   * @param directory
+   * @param segmentSize
+   * @throws IOException
+   */
+  public Outbox(File directory, int segmentSize) throws IOException {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    Files.createDirectories(directory.toPath());
+
+    File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX));
+    if (files != null) {
+      for (File file : files) {
+        segments.put(Integer.parseInt(file.getName().substring(SEGMENT_PREFIX.length())), map(file, 0));
+      }
+    }
+
+    checkpointChannel = FileChannel.open(new File(directory, CHECKPOINT_FILE).toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+    if (checkpointChannel.read(buffer, 0) == Long.BYTES) {
+      checkpoint = buffer.getLong(0);
+    } else {
+      checkpoint = position(segments.isEmpty() ? 0 : segments.firstKey(), 0);
+    }
+    if (segments.isEmpty()) {
+      segments.put(segment(checkpoint), map(segmentFile(segment(checkpoint)), segmentSize));
+    }
+    readPosition = checkpoint;
+    writePosition = recover(checkpoint);
+    logger.info("outbox opened at " + directory + ", replaying from " + checkpoint + " to " + writePosition);
+  }
+
+  /**
+   * append the actions of one transaction as a single record
+   * @param items
+   * @return the position after the record
+   * @throws IOException
+   */
+  public synchronized long append(Collection<BulkItem> items) throws IOException {
+    byte[] payload = encode(items);
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+
+    long position = writePosition;
+    MappedByteBuffer buffer = segments.get(segment(position));
+    int offset = offset(position);
+    if (offset + HEADER_SIZE + payload.length > buffer.capacity()) {
+      // roll over, a record larger than a segment gets a segment of its own
+      if (offset + Integer.BYTES <= buffer.capacity()) {
+        buffer.putInt(offset, END_OF_SEGMENT);
+      }
+      buffer.force();
+      int next = segment(position) + 1;
+      buffer = map(segmentFile(next), Math.max(segmentSize, HEADER_SIZE + payload.length + Integer.BYTES));
+      segments.put(next, buffer);
+      position = position(next, 0);
+      offset = 0;
+    }
+    ByteBuffer view = buffer.duplicate();
+    view.position(offset + HEADER_SIZE);
+    view.put(payload);
+    // the length is written last, a record with a length is complete
+    buffer.putInt(offset + Integer.BYTES, (int) crc.getValue());
+    buffer.putInt(offset, payload.length);
+    writePosition = position(segment(position), offset + HEADER_SIZE + payload.length);
+    return writePosition;
+  }
+
+  /**
+   * read whole records from the read position into the batch, bounded by maxActions and maxBytes
+   * unless the batch is still empty
+   * @param batch
+   * @param maxActions
+   * @param maxBytes
+   * @return the read position after the records that were read
+   */
+  public long read(List<BulkItem> batch, int maxActions, long maxBytes) {
+    long bytes = 0;
+    while (readPosition != writePosition) {
+      MappedByteBuffer buffer = segments.get(segment(readPosition));
+      int offset = offset(readPosition);
+      int length = offset + Integer.BYTES <= buffer.capacity() ? buffer.getInt(offset) : END_OF_SEGMENT;
+      if (length == END_OF_SEGMENT) {
+        readPosition = position(segment(readPosition) + 1, 0);
+        continue;
+      }
+      List<BulkItem> items = decode(buffer, offset + HEADER_SIZE, length);
+      if (!batch.isEmpty() && (batch.size() + items.size() > maxActions || bytes + length > maxBytes)) {
+        break;
+      }
+      batch.addAll(items);
+      bytes += length;
+      readPosition = position(segment(readPosition), offset + HEADER_SIZE + length);
+    }
+    return readPosition;
+  }
+
+  /**
+   * move the read position back, e.g. to the checkpoint after a failed request
+   * @param position
+   */
+  public void seek(long position) {
+    readPosition = position;
+  }
+
+  /**
+   * whether records are appended but not read yet
+   * @return
+   */
+  public boolean hasUnread() {
+    return readPosition != writePosition;
+  }
+
+  public long checkpoint() {
+    return checkpoint;
+  }
+
+  /**
+   * persist the position up to which ElasticSearch acknowledged all records and drop the segments
+   * before it. The checkpoint only moves forward, acknowledgements of concurrent requests can arrive
+   * here in any order and the segments before a later position may already be gone.
+   * @param position
+   * @throws IOException
+   */
+  public void checkpoint(long position) throws IOException {
+    // not synchronized with append, committing threads must not wait for this fsync
+    synchronized (checkpointChannel) {
+      if (position <= checkpoint) {
+        return;
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+      buffer.putLong(0, position);
+      checkpointChannel.write(buffer, 0);
+      checkpointChannel.force(false);
+      checkpoint = position;
+    }
+
+    Map<Integer, MappedByteBuffer> acknowledged = segments.headMap(segment(position));
+    for (Integer segment : acknowledged.keySet()) {
+      // another acknowledgement may be deleting the same segments
+      if (segments.remove(segment) != null && !segmentFile(segment).delete()) {
+        logger.warning("can not delete acknowledged outbox segment " + segmentFile(segment));
+      }
+    }
+  }
+
+  /**
+   * force all appended records to disk and close the checkpoint file
+   * @throws IOException
+   */
+  public synchronized void close() throws IOException {
+    for (MappedByteBuffer buffer : segments.values()) {
+      buffer.force();
+    }
+    synchronized (checkpointChannel) {
+      checkpointChannel.close();
+    }
+  }
+
+  /**
+   * find the end of the complete records, starting from the checkpoint
+   * @param from
+   * @return
+   */
+  private long recover(long from) {
+    long position = from;
+    while (segments.containsKey(segment(position))) {
+      MappedByteBuffer buffer = segments.get(segment(position));
+      int offset = offset(position);
+      int length = offset + Integer.BYTES <= buffer.capacity() ? buffer.getInt(offset) : END_OF_SEGMENT;
+      if (length == END_OF_SEGMENT) {
+        if (!segments.containsKey(segment(position) + 1)) {
+          break;
+        }
+        position = position(segment(position) + 1, 0);
+        continue;
+      }
+      if (length <= 0 || offset + HEADER_SIZE + length > buffer.capacity()
+          || !checksumMatches(buffer, offset, length)) {
+        // end of data, or a record torn by a crash
+        break;
+      }
+      position = position(segment(position), offset + HEADER_SIZE + length);
+    }
+    // drop anything after a torn record, appends continue from here
+    for (Integer segment : segments.tailMap(segment(position), false).keySet()) {
+      segments.remove(segment);
+      segmentFile(segment).delete();
+    }
+    return position;
+  }
+
+  private boolean checksumMatches(MappedByteBuffer buffer, int offset, int length) {
+    byte[] payload = new byte[length];
+    ByteBuffer view = buffer.duplicate();
+    view.position(offset + HEADER_SIZE);
+    view.get(payload);
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    return (int) crc.getValue() == buffer.getInt(offset + Integer.BYTES);
+  }
+
+  private File segmentFile(int segment) {
+    return new File(directory, String.format("%s%010d", SEGMENT_PREFIX, segment));
+  }
+
+  private MappedByteBuffer map(File file, int size) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+    }
+  }
+
+  private static long position(int segment, int offset) {
+    return ((long) segment << 32) | offset;
+  }
+
+  private static int segment(long position) {
+    return (int) (position >>> 32);
+  }
+
+  private static int offset(long position) {
+    return (int) position;
+  }
+
+  /**
+   * serialize the actions of one record
+   * @param items
+   * @return
+   */
+  private static byte[] encode(Collection<BulkItem> items) {
+    byte[][] strings = new byte[items.size() * 5][];
+    // the transaction ids, versions and commit times follow the actions, older records without them
+    // read as unknown transactions and unversioned actions committed when they are read
+    int size = Integer.BYTES + items.size() * 3 * Long.BYTES;
+    int i = 0;
+    for (BulkItem item : items) {
+      strings[i++] = bytes(item.getMethod());
+      strings[i++] = bytes(item.getIndex());
+      strings[i++] = bytes(item.getType());
+      strings[i++] = bytes(item.getId());
+      strings[i++] = bytes(item.getSource());
+    }
+    for (byte[] string : strings) {
+      size += Integer.BYTES + (string == null ? 0 : string.length);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    buffer.putInt(items.size());
+    for (byte[] string : strings) {
+      if (string == null) {
+        buffer.putInt(-1);
+      } else {
+        buffer.putInt(string.length);
+        buffer.put(string);
+      }
+    }
+    for (BulkItem item : items) {
+      buffer.putLong(item.getTransactionId());
+    }
+    for (BulkItem item : items) {
+      buffer.putLong(item.getVersion());
+    }
+    for (BulkItem item : items) {
+      buffer.putLong(item.getCreatedAt());
+    }
+    return buffer.array();
+  }
+
+  /**
+   * deserialize the actions of one record
+   * @param buffer
+   * @param offset
+   * @param length
+   * @return
+   */
+  private static List<BulkItem> decode(MappedByteBuffer buffer, int offset, int length) {
+    ByteBuffer view = buffer.duplicate();
+    view.position(offset);
+    view.limit(offset + length);
+    int count = view.getInt();
+    String[] strings = new String[count * 5];
+    for (int i = 0; i < strings.length; i++) {
+      strings[i] = string(view);
+    }
+    long[] transactionIds = longs(view, count);
+    long[] versions = longs(view, count);
+    long[] createdAt = longs(view, count);
+    long now = System.currentTimeMillis();
+    List<BulkItem> items = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      BulkItem item = new BulkItem(strings[i * 5], strings[i * 5 + 1], strings[i * 5 + 2], strings[i * 5 + 3],
+          strings[i * 5 + 4], createdAt == null ? now : createdAt[i]);
+      if (transactionIds != null) {
+        item.setTransactionId(transactionIds[i]);
+      }
+      if (versions != null) {
+        item.setVersion(versions[i]);
+      }
+      items.add(item);
+    }
+    return items;
+  }
+
+  /**
+   * one optional block of longs at the end of a record
+   * @param view
+   * @param count
+   * @return null if the record was written without it
+   */
+  private static long[] longs(ByteBuffer view, int count) {
+    if (view.remaining() < count * Long.BYTES) {
+      return null;
+    }
+    long[] values = new long[count];
+    for (int i = 0; i < count; i++) {
+      values[i] = view.getLong();
+    }
+    return values;
+  }
+
+  private static byte[] bytes(String string) {
+    return string == null ? null : string.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String string(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,121 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.neo4j.graphdb.Entity;
+
+/**
+ *
+ * @ClassName: PropertyProjection
+ * @Description: 一个label或relationship type需要同步的属性, include列表只读取列出的属性,
+ *               exclude列表跳过列出的属性, 不读取不需要的大属性
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public class PropertyProjection {
+
+  // Every property
+  public static final PropertyProjection ALL = new PropertyProjection(null, Collections.emptySet());
+
+  // The only keys read, null for all keys
+  private final String[] includes;
+
+  private final Set<String> excludes;
+
+  private PropertyProjection(String[] includes, Set<String> excludes) {
+    this.includes = includes;
+    this.excludes = excludes;
+  }
+
+  /**
+   * @param includes the keys to read, null or empty for all keys
+   * @param excludes the keys to leave out
+   * @return
+   */
+  public static PropertyProjection of(Collection<String> includes, Collection<String> excludes) {
+    if ((includes == null || includes.isEmpty()) && (excludes == null || excludes.isEmpty())) {
+      return ALL;
+    }
+    Set<String> excluded = excludes == null ? Collections.emptySet() : new HashSet<>(excludes);
+    if (includes == null || includes.isEmpty()) {
+      return new PropertyProjection(null, excluded);
+    }
+    List<String> included = new ArrayList<>(includes);
+    included.removeAll(excluded);
+    return new PropertyProjection(included.toArray(new String[0]), excluded);
+  }
+
+  /**
+   * the projection of an entity with both labels, it reads what either includes and leaves out
+   * what either excludes
+   * @param other
+   * @return
+   */
+  public PropertyProjection merge(PropertyProjection other) {
+    if (this == other || other == ALL) {
+      return this;
+    }
+    if (this == ALL) {
+      return other;
+    }
+    Set<String> excluded = new HashSet<>(excludes);
+    excluded.addAll(other.excludes);
+    if (includes == null || other.includes == null) {
+      return new PropertyProjection(null, excluded);
+    }
+    Set<String> included = new LinkedHashSet<>();
+    Collections.addAll(included, includes);
+    Collections.addAll(included, other.includes);
+    included.removeAll(excluded);
+    return new PropertyProjection(included.toArray(new String[0]), excluded);
+  }
+
+  /**
+   * whether the property is part of the document
+   * @param key
+   * @return
+   */
+  public boolean contains(String key) {
+    if (excludes.contains(key)) {
+      return false;
+    }
+    if (includes == null) {
+      return true;
+    }
+    for (String include : includes) {
+      if (include.equals(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * read the projected properties, values of other keys are never loaded
+   * @param entity
+   * @return
+   */
+  public Map<String, Object> read(Entity entity) {
+    if (this == ALL) {
+      return entity.getAllProperties();
+    }
+    if (includes != null) {
+      return entity.getProperties(includes);
+    }
+    // only the keys are read, the values of excluded properties stay in the store
+    List<String> keys = new ArrayList<>();
+    for (String key : entity.getPropertyKeys()) {
+      if (!excludes.contains(key)) {
+        keys.add(key);
+      }
+    }
+    return entity.getProperties(keys.toArray(new String[0]));
+  }
+}
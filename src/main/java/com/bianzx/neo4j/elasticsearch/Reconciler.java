@@ -0,0 +1,661 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.neo4j.graphdb.Entity;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.internal.id.IdGeneratorFactory;
+import org.neo4j.internal.id.IdType;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.core.ClearScroll;
+import io.searchbox.core.Search;
+import io.searchbox.core.SearchScroll;
+import io.searchbox.params.Parameters;
+
+/**
+ *
+ * @ClassName: Reconciler
+ * @Description: 对比Neo4j和ElasticSearch的数据, 将id空间切分为多个range, 两边分别按range累加document的digest,
+ *               只有digest不一致的range才逐个document比较, 重新发送不一致的document并删除多余的document
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public class Reconciler implements Runnable {
+
+  private final static Logger logger = Logger.getLogger(Reconciler.class.getName());
+
+  // How often progress is logged while the reconciliation runs
+  private static final long REPORT_INTERVAL_MILLIS = 10_000L;
+
+  // How long ElasticSearch keeps a scroll between two pages
+  private static final String SCROLL_KEEP_ALIVE = "1m";
+
+  public enum State {
+    RUNNING, COMPLETED, FAILED, STOPPED
+  }
+
+  private final GraphDatabaseAPI db;
+
+  private final JestClient jestClient;
+
+  private final DocumentFactory documents;
+
+  // Delivers the repairs like the changes of a transaction
+  private final BulkDispatcher dispatcher;
+
+  private final boolean syncNodes;
+
+  private final boolean syncRelationships;
+
+  private final int workers;
+
+  private final long rangeSize;
+
+  // Hits read from ElasticSearch in one request
+  private final int pageSize;
+
+  private final int bulkActions;
+
+  // Version the repairs with the last transaction committed before their range is read
+  private final boolean versioned;
+
+  // Digests of the documents in ElasticSearch by range index, complete before the ranges are compared
+  private final LongMap<Digest> nodeDigests = new LongMap<>();
+
+  private final LongMap<Digest> relationshipDigests = new LongMap<>();
+
+  private final AtomicLong documentCount = new AtomicLong();
+
+  private final AtomicLong resentDocuments = new AtomicLong();
+
+  private final AtomicLong deletedDocuments = new AtomicLong();
+
+  private final AtomicInteger comparedRanges = new AtomicInteger();
+
+  private final AtomicInteger divergentRanges = new AtomicInteger();
+
+  private final AtomicInteger failedRanges = new AtomicInteger();
+
+  private volatile State state = State.RUNNING;
+
+  private volatile boolean stopped;
+
+  private volatile int totalRanges;
+
+  private volatile long startedAt;
+
+  private volatile long finishedAt;
+
+  private long lastReportAt;
+
+  private Thread thread;
+
+  private ExecutorService executor;
+
+  private Reconciler(Builder builder) {
+    this.db = builder.db;
+    this.jestClient = builder.jestClient;
+    this.documents = builder.documents;
+    this.dispatcher = builder.dispatcher;
+    this.syncNodes = builder.syncNodes;
+    this.syncRelationships = builder.syncRelationships;
+    this.workers = Math.max(1, builder.workers);
+    this.rangeSize = Math.max(1, builder.rangeSize);
+    this.pageSize = Math.max(1, builder.pageSize);
+    this.bulkActions = Math.max(1, builder.bulkActions);
+    this.versioned = builder.versioned;
+  }
+
+  /**
+   * start the reconciliation in the background
+   */
+  public synchronized void start() {
+    startedAt = System.currentTimeMillis();
+    lastReportAt = startedAt;
+    thread = new Thread(this, "neo4j-elasticsearch-reconcile");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * stop the workers, repairs already handed to the dispatcher are still delivered
+   * @param timeoutMillis
+   */
+  public void stop(long timeoutMillis) {
+    stopped = true;
+    ExecutorService workerPool;
+    synchronized (this) {
+      workerPool = executor;
+    }
+    if (workerPool != null) {
+      workerPool.shutdownNow();
+    }
+    try {
+      if (thread != null) {
+        thread.join(timeoutMillis);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public boolean isRunning() {
+    return state == State.RUNNING;
+  }
+
+  @Override
+  public void run() {
+    try {
+      // one pass over ElasticSearch reading only the digests, summed up by range
+      for (IndexLayout.Index index : documents.getLayout().getIndices()) {
+        scanDigests(index.getName());
+        if (stopped) {
+          state = State.STOPPED;
+          return;
+        }
+      }
+      List<Range> ranges = new ArrayList<>();
+      if (syncNodes) {
+        addRanges(ranges, false, highId(IdType.NODE), nodeDigests);
+      }
+      if (syncRelationships) {
+        addRanges(ranges, true, highId(IdType.RELATIONSHIP), relationshipDigests);
+      }
+      totalRanges = ranges.size();
+      logger.info("reconcile of " + documents.getIndexName() + " started, " + documentCount.get()
+          + " documents in ElasticSearch, " + totalRanges + " ranges to compare with " + workers + " workers");
+
+      synchronized (this) {
+        if (stopped) {
+          state = State.STOPPED;
+          return;
+        }
+        executor = Executors.newFixedThreadPool(workers, runnable -> {
+          Thread worker = new Thread(runnable, "neo4j-elasticsearch-reconcile-worker");
+          worker.setDaemon(true);
+          return worker;
+        });
+      }
+      for (Range range : ranges) {
+        executor.execute(() -> compare(range));
+      }
+      executor.shutdown();
+      while (!executor.awaitTermination(REPORT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+        report();
+      }
+
+      if (stopped) {
+        state = State.STOPPED;
+      } else if (failedRanges.get() > 0) {
+        state = State.FAILED;
+      } else {
+        state = State.COMPLETED;
+      }
+    } catch (InterruptedException e) {
+      state = State.STOPPED;
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "reconcile of " + documents.getIndexName() + " failed", e);
+      state = State.FAILED;
+    } finally {
+      finishedAt = System.currentTimeMillis();
+      Status status = status();
+      logger.info("reconcile of " + documents.getIndexName() + " " + status.state + ", "
+          + status.divergentRanges + " of " + status.comparedRanges + " ranges diverged, "
+          + status.resentDocuments + " documents resent, " + status.deletedDocuments + " deleted");
+    }
+  }
+
+  /**
+   * a snapshot of the progress of this reconciliation
+   * @return
+   */
+  public Status status() {
+    long end = finishedAt == 0 ? System.currentTimeMillis() : finishedAt;
+    return new Status(state.name(), comparedRanges.get(), totalRanges, divergentRanges.get(),
+        failedRanges.get(), documentCount.get(), resentDocuments.get(), deletedDocuments.get(),
+        Math.max(0, end - startedAt) / 1000);
+  }
+
+  /**
+   * sum up the digests of all documents of one index by range
+   * @param index
+   * @throws IOException
+   */
+  private void scanDigests(String index) throws IOException {
+    JsonObject query = new JsonObject();
+    query.add("match_all", new JsonObject());
+    scroll(index, query, (id, digest) -> {
+      boolean relationship = documents.isRelationship(id);
+      if (relationship ? !syncRelationships : !syncNodes) {
+        return;
+      }
+      long entityId;
+      try {
+        entityId = documents.entityId(id);
+      } catch (NumberFormatException e) {
+        // not a document of this plugin
+        return;
+      }
+      LongMap<Digest> digests = relationship ? relationshipDigests : nodeDigests;
+      long rangeIndex = entityId / rangeSize;
+      Digest range = digests.get(rangeIndex);
+      if (range == null) {
+        range = new Digest(rangeIndex);
+        digests.putNew(rangeIndex, range);
+      }
+      range.add(digest);
+      documentCount.incrementAndGet();
+    });
+  }
+
+  /**
+   * sum up the digests of the entities of one range in its own read transaction, and repair the
+   * documents of the range if the sums differ
+   * @param range
+   */
+  private void compare(Range range) {
+    long version = versioned ? Reindexer.lastCommittedTransactionId(db) : 0;
+    try (Transaction tx = db.beginTx()) {
+      // the digest of each entity, 0 for ids not in use
+      long[] digests = new long[(int) (range.end - range.start)];
+      Digest expected = new Digest(range.index);
+      for (long id = range.start; id < range.end && !stopped; id++) {
+        Entity entity = entity(tx, range, id);
+        if (entity != null) {
+          long digest = documents.digest(entity);
+          digests[(int) (id - range.start)] = digest;
+          expected.add(digest);
+        }
+      }
+      if (stopped) {
+        return;
+      }
+      if (!expected.matches(range.digest)) {
+        divergentRanges.incrementAndGet();
+        repair(tx, range, digests, version);
+      }
+      compared();
+    } catch (Exception e) {
+      failedRanges.incrementAndGet();
+      logger.log(Level.SEVERE, "reconcile of " + (range.relationships ? "relationships " : "nodes ")
+          + range.start + "-" + range.end + " failed", e);
+    }
+  }
+
+  /**
+   * compare the documents of a divergent range one by one, resend those that differ or are
+   * missing and delete those of deleted entities or in an index the entity does not belong to
+   * @param tx
+   * @param range
+   * @param digests
+   * @param version the version of the repairs, 0 to send them unversioned
+   * @throws IOException
+   */
+  private void repair(Transaction tx, Range range, long[] digests, long version) throws IOException {
+    JsonArray ids = new JsonArray();
+    for (long id = range.start; id < range.end; id++) {
+      ids.add(documents.id(id, range.relationships));
+    }
+    JsonObject values = new JsonObject();
+    values.add("values", ids);
+    JsonObject query = new JsonObject();
+    query.add("ids", values);
+    // the digest of each document by index, a document may be in more than one
+    Map<String, Map<String, Long>> found = new HashMap<>();
+    for (IndexLayout.Index index : documents.getLayout().getIndices()) {
+      scroll(index.getName(), query,
+          (id, digest) -> found.computeIfAbsent(id, key -> new HashMap<>(2)).put(index.getName(), digest));
+    }
+
+    List<BulkItem> bulk = new ArrayList<>();
+    for (long id = range.start; id < range.end && !stopped; id++) {
+      String documentId = documents.id(id, range.relationships);
+      Map<String, Long> copies = found.get(documentId);
+      long digest = digests[(int) (id - range.start)];
+      Entity entity = digest == 0 ? null : entity(tx, range, id);
+      String target = entity == null ? null : documents.indexOf(entity);
+      boolean current = false;
+      if (copies != null) {
+        for (Map.Entry<String, Long> copy : copies.entrySet()) {
+          if (copy.getKey().equals(target)) {
+            current = copy.getValue() == digest;
+          } else {
+            BulkItem delete = documents.delete(documentId, copy.getKey());
+            delete.setVersion(version);
+            bulk.add(delete);
+            deletedDocuments.incrementAndGet();
+          }
+        }
+      }
+      if (entity != null && !current) {
+        BulkItem index = documents.index(documentId, entity);
+        index.setVersion(version);
+        bulk.add(index);
+        resentDocuments.incrementAndGet();
+      }
+      if (bulk.size() >= bulkActions) {
+        dispatcher.add(bulk);
+        bulk = new ArrayList<>();
+      }
+    }
+    if (!bulk.isEmpty()) {
+      dispatcher.add(bulk);
+    }
+  }
+
+  private Entity entity(Transaction tx, Range range, long id) {
+    try {
+      return range.relationships ? tx.getRelationshipById(id) : tx.getNodeById(id);
+    } catch (NotFoundException e) {
+      // a deleted or never used id
+      return null;
+    }
+  }
+
+  /**
+   * read the id and digest of every document of an index matching the query, page by page
+   * @param index
+   * @param query
+   * @param hits
+   * @throws IOException
+   */
+  private void scroll(String index, JsonObject query, HitConsumer hits) throws IOException {
+    JsonObject body = new JsonObject();
+    body.add("query", query);
+    body.addProperty("size", pageSize);
+    JsonArray source = new JsonArray();
+    source.add(DocumentFactory.digestField());
+    body.add("_source", source);
+    JsonArray sort = new JsonArray();
+    // the cheapest order, the sums do not depend on it
+    sort.add("_doc");
+    body.add("sort", sort);
+    JestResult result = jestClient.execute(new Search.Builder(body.toString()).addIndex(index)
+        .addType(documents.getIndexType()).setParameter("ignore_unavailable", true)
+        .setParameter(Parameters.SCROLL, SCROLL_KEEP_ALIVE).build());
+    String scrollId = null;
+    try {
+      while (true) {
+        if (!result.isSucceeded()) {
+          throw new IOException("ElasticSearch scroll over " + index + " failed, " + result.getErrorMessage());
+        }
+        JsonObject page = result.getJsonObject();
+        JsonElement scroll = page.get("_scroll_id");
+        scrollId = scroll == null || scroll.isJsonNull() ? null : scroll.getAsString();
+        JsonArray pageHits = page.getAsJsonObject("hits").getAsJsonArray("hits");
+        for (JsonElement element : pageHits) {
+          JsonObject hit = element.getAsJsonObject();
+          hits.accept(hit.get("_id").getAsString(), DocumentFactory.digest(hit.getAsJsonObject("_source")));
+        }
+        if (pageHits.size() < pageSize || scrollId == null || stopped) {
+          return;
+        }
+        result = jestClient.execute(new SearchScroll.Builder(scrollId, SCROLL_KEEP_ALIVE).build());
+      }
+    } finally {
+      if (scrollId != null) {
+        try {
+          jestClient.execute(new ClearScroll.Builder().addScrollId(scrollId).build());
+        } catch (IOException e) {
+          // expires after SCROLL_KEEP_ALIVE anyway
+        }
+      }
+    }
+  }
+
+  private synchronized void compared() {
+    comparedRanges.incrementAndGet();
+    long now = System.currentTimeMillis();
+    if (now - lastReportAt >= REPORT_INTERVAL_MILLIS) {
+      report();
+    }
+  }
+
+  private synchronized void report() {
+    lastReportAt = System.currentTimeMillis();
+    Status status = status();
+    logger.info("reconcile of " + documents.getIndexName() + ": " + status.comparedRanges + "/"
+        + status.totalRanges + " ranges, " + status.divergentRanges + " diverged, "
+        + status.resentDocuments + " documents resent, " + status.deletedDocuments + " deleted");
+  }
+
+  /**
+   * the ranges of one kind of entity up to the high id, and the ranges above it that still have
+   * documents in ElasticSearch
+   * @param ranges
+   * @param relationships
+   * @param highId
+   * @param digests
+   */
+  private void addRanges(List<Range> ranges, boolean relationships, long highId, LongMap<Digest> digests) {
+    long index = 0;
+    for (; index * rangeSize < highId; index++) {
+      ranges.add(new Range(relationships, index, index * rangeSize, Math.min(highId, (index + 1) * rangeSize),
+          digests.get(index)));
+    }
+    for (Digest digest : digests.values()) {
+      if (digest.index >= index) {
+        ranges.add(new Range(relationships, digest.index, digest.index * rangeSize,
+            (digest.index + 1) * rangeSize, digest));
+      }
+    }
+  }
+
+  /**
+   * the id after the highest id in use, ids below it may be unused
+   * @param idType
+   * @return
+   */
+  private long highId(IdType idType) {
+    return db.getDependencyResolver().resolveDependency(IdGeneratorFactory.class).get(idType).getHighId();
+  }
+
+  /**
+   * Receives the id and digest of one document
+   */
+  private interface HitConsumer {
+
+    void accept(String id, long digest);
+  }
+
+  /**
+   * The digests of the documents of one range, summed up so the order does not matter
+   */
+  private static class Digest {
+
+    private final long index;
+
+    private long sum;
+
+    private long count;
+
+    Digest(long index) {
+      this.index = index;
+    }
+
+    void add(long digest) {
+      sum += DocumentFactory.mix(digest);
+      count++;
+    }
+
+    boolean matches(Digest other) {
+      return other == null ? count == 0 : sum == other.sum && count == other.count;
+    }
+  }
+
+  /**
+   * ids [start, end) of one kind of entity, with the digest of their documents in ElasticSearch
+   */
+  private static class Range {
+
+    private final boolean relationships;
+
+    private final long index;
+
+    private final long start;
+
+    private final long end;
+
+    // null if ElasticSearch has no document in the range
+    private final Digest digest;
+
+    Range(boolean relationships, long index, long start, long end, Digest digest) {
+      this.relationships = relationships;
+      this.index = index;
+      this.start = start;
+      this.end = end;
+      this.digest = digest;
+    }
+  }
+
+  /**
+   * The progress of a reconciliation, returned by the reconcile procedures
+   */
+  public static class Status {
+
+    public final String state;
+
+    public final long comparedRanges;
+
+    public final long totalRanges;
+
+    // Ranges whose documents differed from the graph
+    public final long divergentRanges;
+
+    public final long failedRanges;
+
+    // Documents found in ElasticSearch
+    public final long documents;
+
+    public final long resentDocuments;
+
+    public final long deletedDocuments;
+
+    public final long elapsedSeconds;
+
+    public Status(String state, long comparedRanges, long totalRanges, long divergentRanges, long failedRanges,
+        long documents, long resentDocuments, long deletedDocuments, long elapsedSeconds) {
+      this.state = state;
+      this.comparedRanges = comparedRanges;
+      this.totalRanges = totalRanges;
+      this.divergentRanges = divergentRanges;
+      this.failedRanges = failedRanges;
+      this.documents = documents;
+      this.resentDocuments = resentDocuments;
+      this.deletedDocuments = deletedDocuments;
+      this.elapsedSeconds = elapsedSeconds;
+    }
+  }
+
+  /**
+   *
+   * @ClassName: Builder
+   * @Description: Builder for Reconciler
+   * @author: bianzexin
+   * @date: Feb 1, 2021
+   *
+   */
+  public static class Builder {
+
+    private GraphDatabaseAPI db;
+
+    private JestClient jestClient;
+
+    private DocumentFactory documents;
+
+    private BulkDispatcher dispatcher;
+
+    private boolean syncNodes;
+
+    private boolean syncRelationships;
+
+    private int workers;
+
+    private long rangeSize;
+
+    private int pageSize;
+
+    private int bulkActions;
+
+    private boolean versioned;
+
+    public Builder() {}
+
+    public Builder db(GraphDatabaseAPI db) {
+      this.db = db;
+      return this;
+    }
+
+    public Builder jestClient(JestClient jestClient) {
+      this.jestClient = jestClient;
+      return this;
+    }
+
+    public Builder documents(DocumentFactory documents) {
+      this.documents = documents;
+      return this;
+    }
+
+    public Builder dispatcher(BulkDispatcher dispatcher) {
+      this.dispatcher = dispatcher;
+      return this;
+    }
+
+    public Builder syncNodes(boolean syncNodes) {
+      this.syncNodes = syncNodes;
+      return this;
+    }
+
+    public Builder syncRelationships(boolean syncRelationships) {
+      this.syncRelationships = syncRelationships;
+      return this;
+    }
+
+    public Builder workers(int workers) {
+      this.workers = workers;
+      return this;
+    }
+
+    public Builder rangeSize(long rangeSize) {
+      this.rangeSize = rangeSize;
+      return this;
+    }
+
+    public Builder pageSize(int pageSize) {
+      this.pageSize = pageSize;
+      return this;
+    }
+
+    public Builder bulkActions(int bulkActions) {
+      this.bulkActions = bulkActions;
+      return this;
+    }
+
+    public Builder versioned(boolean versioned) {
+      this.versioned = versioned;
+      return this;
+    }
+
+    public Reconciler build() {
+      return new Reconciler(this);
+    }
+  }
+}
@@ -0,0 +1,707 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.neo4j.graphdb.Entity;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.internal.id.IdGeneratorFactory;
+import org.neo4j.internal.id.IdType;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.storageengine.api.TransactionIdStore;
+import io.searchbox.client.JestClient;
+import io.searchbox.core.BulkResult;
+import io.searchbox.core.BulkResult.BulkResultItem;
+
+/**
+ *
+ * @ClassName: Reindexer
+ * @Description: 全量同步已有数据, 将node和relationship的id空间切分为多个range, 由线程池并行扫描,
+ *               每个range在独立的读事务中执行, 完成的range记录到checkpoint文件, 中断后可以继续执行
+ * @author: bianzexin
+ * @date: Dec 28, 2020
+ *
+ */
+public class Reindexer implements Runnable {
+
+  private final static Logger logger = Logger.getLogger(Reindexer.class.getName());
+
+  // How often progress is logged while the reindex runs
+  private static final long REPORT_INTERVAL_MILLIS = 10_000L;
+
+  private static final String RANGE_SIZE = "rangeSize";
+
+  private static final String TARGET = "target";
+
+  private static final String NODES = "nodes";
+
+  private static final String RELATIONSHIPS = "relationships";
+
+  public enum State {
+    RUNNING, COMPLETED, FAILED, STOPPED
+  }
+
+  /**
+   * the last step of a reindex, run once every range is done and before the checkpoint is deleted
+   */
+  public interface Completion {
+
+    void completed() throws IOException;
+  }
+
+  private final GraphDatabaseAPI db;
+
+  private final JestClient jestClient;
+
+  private final DocumentFactory documents;
+
+  // Completed ranges of an unfinished run, deleted once every range is done
+  private final File checkpointFile;
+
+  private final boolean syncNodes;
+
+  private final boolean syncRelationships;
+
+  private final int workers;
+
+  private final long rangeSize;
+
+  private final int bulkActions;
+
+  private final long bulkSize;
+
+  private final int maxRetries;
+
+  private final long retryBackoffMillis;
+
+  // Never overwrite documents written by transactions. Versioned documents are written as index actions
+  // instead of create actions, the version keeps newer documents and, for index.gc_deletes, the
+  // tombstones of deleted ones.
+  private final boolean createOnly;
+
+  private final Completion completion;
+
+  // Version index actions with the last transaction committed before their range is read
+  private final boolean versioned;
+
+  // Indexes of completed ranges, written to the checkpoint file
+  private final TreeSet<Long> completedNodeRanges = new TreeSet<>();
+
+  private final TreeSet<Long> completedRelationshipRanges = new TreeSet<>();
+
+  private final AtomicLong documentCount = new AtomicLong();
+
+  private final AtomicLong failedDocuments = new AtomicLong();
+
+  private final AtomicInteger completedRanges = new AtomicInteger();
+
+  private final AtomicInteger failedRanges = new AtomicInteger();
+
+  private volatile State state = State.RUNNING;
+
+  private volatile boolean stopped;
+
+  private volatile int totalRanges;
+
+  // Ranges that were completed by an earlier, interrupted run
+  private volatile int resumedRanges;
+
+  private volatile long startedAt;
+
+  private volatile long finishedAt;
+
+  private long lastReportAt;
+
+  private Thread thread;
+
+  private ExecutorService executor;
+
+  private Reindexer(Builder builder) {
+    this.db = builder.db;
+    this.jestClient = builder.jestClient;
+    this.documents = builder.documents;
+    this.checkpointFile = builder.checkpointFile;
+    this.syncNodes = builder.syncNodes;
+    this.syncRelationships = builder.syncRelationships;
+    this.workers = Math.max(1, builder.workers);
+    this.rangeSize = Math.max(1, builder.rangeSize);
+    this.bulkActions = Math.max(1, builder.bulkActions);
+    this.bulkSize = builder.bulkSize;
+    this.maxRetries = builder.maxRetries;
+    this.retryBackoffMillis = builder.retryBackoffMillis;
+    this.createOnly = builder.createOnly;
+    this.completion = builder.completion;
+    this.versioned = builder.versioned;
+  }
+
+  /**
+   * the index an unfinished reindex was writing to, according to its checkpoint file
+   * @param checkpointFile
+   * @return null if there is no checkpoint
+   * @throws IOException
+   */
+  public static String checkpointTarget(File checkpointFile) throws IOException {
+    if (!checkpointFile.exists()) {
+      return null;
+    }
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(checkpointFile.toPath())) {
+      properties.load(in);
+    }
+    return properties.getProperty(TARGET);
+  }
+
+  /**
+   * start the reindex in the background
+   * @param restart discard the checkpoint of an interrupted run instead of resuming it
+   */
+  public synchronized void start(boolean restart) {
+    if (restart && checkpointFile.delete()) {
+      logger.info("reindex checkpoint discarded, " + checkpointFile);
+    }
+    startedAt = System.currentTimeMillis();
+    lastReportAt = startedAt;
+    thread = new Thread(this, "neo4j-elasticsearch-reindex");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * stop the workers, completed ranges stay checkpointed and are skipped by the next run
+   * @param timeoutMillis
+   */
+  public void stop(long timeoutMillis) {
+    stopped = true;
+    ExecutorService workerPool;
+    synchronized (this) {
+      workerPool = executor;
+    }
+    if (workerPool != null) {
+      workerPool.shutdownNow();
+    }
+    try {
+      if (thread != null) {
+        thread.join(timeoutMillis);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public boolean isRunning() {
+    return state == State.RUNNING;
+  }
+
+  /**
+   * ###########################################
+   * # Implements methods for {@link Runnable} #
+   * ###########################################
+   */
+  @Override
+  public void run() {
+    try {
+      readCheckpoint();
+      List<Range> ranges = new ArrayList<>();
+      if (syncNodes) {
+        addRanges(ranges, NODES, highId(IdType.NODE), completedNodeRanges);
+      }
+      if (syncRelationships) {
+        addRanges(ranges, RELATIONSHIPS, highId(IdType.RELATIONSHIP), completedRelationshipRanges);
+      }
+      resumedRanges = completedNodeRanges.size() + completedRelationshipRanges.size();
+      totalRanges = resumedRanges + ranges.size();
+      logger.info("reindex into " + documents.getIndexName() + " started, " + ranges.size() + " of "
+          + totalRanges + " ranges to scan with " + workers + " workers");
+
+      synchronized (this) {
+        if (stopped) {
+          state = State.STOPPED;
+          return;
+        }
+        executor = Executors.newFixedThreadPool(workers, runnable -> {
+          Thread worker = new Thread(runnable, "neo4j-elasticsearch-reindex-worker");
+          worker.setDaemon(true);
+          return worker;
+        });
+      }
+      for (Range range : ranges) {
+        executor.execute(() -> scan(range));
+      }
+      executor.shutdown();
+      while (!executor.awaitTermination(REPORT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+        report();
+      }
+
+      if (stopped) {
+        state = State.STOPPED;
+      } else if (failedRanges.get() > 0) {
+        state = State.FAILED;
+      } else {
+        if (completion != null) {
+          completion.completed();
+        }
+        state = State.COMPLETED;
+        Files.deleteIfExists(checkpointFile.toPath());
+      }
+    } catch (InterruptedException e) {
+      state = State.STOPPED;
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "reindex into " + documents.getIndexName() + " failed", e);
+      state = State.FAILED;
+    } finally {
+      finishedAt = System.currentTimeMillis();
+      Status status = status();
+      logger.info("reindex into " + documents.getIndexName() + " " + status.state + ", "
+          + status.completedRanges + "/" + status.totalRanges + " ranges, " + status.documents
+          + " documents at " + status.documentsPerSecond + " documents/s, " + status.failedDocuments
+          + " documents failed");
+    }
+  }
+
+  /**
+   * a snapshot of the progress of this reindex
+   * @return
+   */
+  public Status status() {
+    long end = finishedAt == 0 ? System.currentTimeMillis() : finishedAt;
+    long elapsedMillis = Math.max(0, end - startedAt);
+    long documents = documentCount.get();
+    return new Status(state.name(), completedRanges.get() + resumedRanges, totalRanges,
+        failedRanges.get(), documents, failedDocuments.get(), elapsedMillis / 1000,
+        elapsedMillis == 0 ? 0 : documents * 1000 / elapsedMillis);
+  }
+
+  /**
+   * scan one id range in its own read transaction, sending the documents in bulks as they fill up
+   * @param range
+   */
+  private void scan(Range range) {
+    try {
+      List<BulkItem> bulk = new ArrayList<>();
+      long bytes = 0;
+      // the range shows at least this transaction, a later one that changed an entity has a higher version
+      long version = versioned ? lastCommittedTransactionId(db) : 0;
+      try (Transaction tx = db.beginTx()) {
+        for (long id = range.start; id < range.end && !stopped; id++) {
+          Entity entity;
+          try {
+            entity = NODES.equals(range.kind) ? tx.getNodeById(id) : tx.getRelationshipById(id);
+          } catch (NotFoundException e) {
+            // a deleted or never used id
+            continue;
+          }
+          String documentId = documents.id(entity);
+          // ElasticSearch only takes external versions on index actions, a create would bring back a
+          // document whose delete arrived first
+          BulkItem item = createOnly && !versioned ? documents.create(documentId, entity)
+              : documents.index(documentId, entity);
+          item.setVersion(version);
+          bulk.add(item);
+          bytes += item.getBytes();
+          if (bulk.size() >= bulkActions || bytes >= bulkSize) {
+            send(bulk);
+            bulk = new ArrayList<>();
+            bytes = 0;
+          }
+        }
+      }
+      if (stopped) {
+        return;
+      }
+      send(bulk);
+      completed(range);
+    } catch (InterruptedException e) {
+      // stopped, the range is scanned again by the next run
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      failedRanges.incrementAndGet();
+      logger.log(Level.SEVERE, "reindex of " + range.kind + " " + range.start + "-" + range.end + " failed", e);
+    }
+  }
+
+  /**
+   * send one bulk, retrying the actions that ElasticSearch rejected because it was overloaded
+   * @param bulk
+   * @throws IOException if ElasticSearch was unavailable for all attempts
+   * @throws InterruptedException
+   */
+  private void send(List<BulkItem> bulk) throws IOException, InterruptedException {
+    List<BulkItem> pending = bulk;
+    for (int attempt = 0; !pending.isEmpty(); attempt++) {
+      if (attempt > maxRetries) {
+        throw new IOException("ElasticSearch rejected " + pending.size() + " actions " + attempt + " times");
+      }
+      if (attempt > 0) {
+        Thread.sleep(retryBackoffMillis << Math.min(attempt - 1, 10));
+      }
+      BulkResult result;
+      try {
+        result = jestClient.execute(new BulkRequest(pending));
+      } catch (IOException e) {
+        logger.warning("reindex bulk request failed: " + e.getMessage());
+        continue;
+      }
+      List<BulkResultItem> items = result.getItems();
+      if (items.size() != pending.size()) {
+        if (!result.isSucceeded()) {
+          logger.warning("reindex bulk request failed: " + result.getErrorMessage());
+          continue;
+        }
+        documentCount.addAndGet(pending.size());
+        return;
+      }
+      List<BulkItem> rejected = new ArrayList<>();
+      for (int i = 0; i < items.size(); i++) {
+        BulkResultItem item = items.get(i);
+        if (BulkDispatcher.isSuccess(pending.get(i), item)) {
+          // a conflict of a create or versioned action, a transaction wrote a newer document
+          documentCount.incrementAndGet();
+        } else if (item.status == 429 || item.status >= 500) {
+          rejected.add(pending.get(i));
+        } else {
+          failedDocuments.incrementAndGet();
+          logger.severe("reindex of " + item.index + "/" + item.id + " failed, status " + item.status
+              + ": " + item.error);
+        }
+      }
+      pending = rejected;
+    }
+  }
+
+  /**
+   * record a completed range in the checkpoint file
+   * @param range
+   * @throws IOException
+   */
+  private synchronized void completed(Range range) throws IOException {
+    (NODES.equals(range.kind) ? completedNodeRanges : completedRelationshipRanges).add(range.index);
+    completedRanges.incrementAndGet();
+    writeCheckpoint();
+    long now = System.currentTimeMillis();
+    if (now - lastReportAt >= REPORT_INTERVAL_MILLIS) {
+      report();
+    }
+  }
+
+  private synchronized void report() {
+    lastReportAt = System.currentTimeMillis();
+    Status status = status();
+    logger.info("reindex into " + documents.getIndexName() + ": " + status.completedRanges + "/"
+        + status.totalRanges + " ranges, " + status.documents + " documents, "
+        + status.documentsPerSecond + " documents/s");
+  }
+
+  /**
+   * the ranges of one kind of entity that are not completed yet
+   * @param ranges
+   * @param kind
+   * @param highId
+   * @param completed
+   */
+  private void addRanges(List<Range> ranges, String kind, long highId, TreeSet<Long> completed) {
+    for (long index = 0; index * rangeSize < highId; index++) {
+      if (!completed.contains(index)) {
+        ranges.add(new Range(kind, index, index * rangeSize, Math.min(highId, (index + 1) * rangeSize)));
+      }
+    }
+  }
+
+  /**
+   * the id after the highest id in use, ids below it may be unused
+   * @param idType
+   * @return
+   */
+  private long highId(IdType idType) {
+    return db.getDependencyResolver().resolveDependency(IdGeneratorFactory.class).get(idType).getHighId();
+  }
+
+  /**
+   * the id of the last committed transaction, the version of documents read from the graph
+   * outside of a transaction event
+   * @param db
+   * @return
+   */
+  static long lastCommittedTransactionId(GraphDatabaseAPI db) {
+    return db.getDependencyResolver().resolveDependency(TransactionIdStore.class).getLastCommittedTransactionId();
+  }
+
+  private synchronized void readCheckpoint() throws IOException {
+    if (!checkpointFile.exists()) {
+      return;
+    }
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(checkpointFile.toPath())) {
+      properties.load(in);
+    }
+    if (!documents.getIndexName().equals(properties.getProperty(TARGET, documents.getIndexName()))) {
+      logger.info("reindex checkpoint of index " + properties.getProperty(TARGET) + " ignored");
+      return;
+    }
+    if (!String.valueOf(rangeSize).equals(properties.getProperty(RANGE_SIZE))) {
+      // ranges of another size do not line up, start over
+      logger.info("reindex checkpoint with range size " + properties.getProperty(RANGE_SIZE)
+          + " ignored, ranges are " + rangeSize + " ids now");
+      return;
+    }
+    parseRanges(properties.getProperty(NODES, ""), completedNodeRanges);
+    parseRanges(properties.getProperty(RELATIONSHIPS, ""), completedRelationshipRanges);
+    logger.info("resuming reindex, " + completedNodeRanges.size() + " node ranges and "
+        + completedRelationshipRanges.size() + " relationship ranges already completed");
+  }
+
+  private void writeCheckpoint() throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty(TARGET, documents.getIndexName());
+    properties.setProperty(RANGE_SIZE, String.valueOf(rangeSize));
+    properties.setProperty(NODES, formatRanges(completedNodeRanges));
+    properties.setProperty(RELATIONSHIPS, formatRanges(completedRelationshipRanges));
+    File temp = new File(checkpointFile.getPath() + ".tmp");
+    try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+      properties.store(out, "completed reindex ranges");
+    }
+    Files.move(temp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * completed range indexes as runs, e.g. 0-41,43,45-47
+   * @param ranges
+   * @return
+   */
+  static String formatRanges(TreeSet<Long> ranges) {
+    StringBuilder text = new StringBuilder();
+    Long first = null;
+    Long last = null;
+    for (Long index : ranges) {
+      if (last != null && index == last + 1) {
+        last = index;
+        continue;
+      }
+      appendRun(text, first, last);
+      first = index;
+      last = index;
+    }
+    appendRun(text, first, last);
+    return text.toString();
+  }
+
+  private static void appendRun(StringBuilder text, Long first, Long last) {
+    if (first == null) {
+      return;
+    }
+    if (text.length() > 0) {
+      text.append(',');
+    }
+    text.append(first);
+    if (!first.equals(last)) {
+      text.append('-').append(last);
+    }
+  }
+
+  static void parseRanges(String text, TreeSet<Long> ranges) {
+    for (String run : text.split(",")) {
+      if (run.isEmpty()) {
+        continue;
+      }
+      int dash = run.indexOf('-');
+      long first = Long.parseLong(dash < 0 ? run : run.substring(0, dash));
+      long last = dash < 0 ? first : Long.parseLong(run.substring(dash + 1));
+      for (long index = first; index <= last; index++) {
+        ranges.add(index);
+      }
+    }
+  }
+
+  /**
+   * ids [start, end) of one kind of entity
+   */
+  private static class Range {
+
+    private final String kind;
+
+    private final long index;
+
+    private final long start;
+
+    private final long end;
+
+    Range(String kind, long index, long start, long end) {
+      this.kind = kind;
+      this.index = index;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  /**
+   * The progress of a reindex, returned by the reindex procedures
+   */
+  public static class Status {
+
+    public final String state;
+
+    public final long completedRanges;
+
+    public final long totalRanges;
+
+    public final long failedRanges;
+
+    public final long documents;
+
+    public final long failedDocuments;
+
+    public final long elapsedSeconds;
+
+    public final long documentsPerSecond;
+
+    public Status(String state, long completedRanges, long totalRanges, long failedRanges,
+        long documents, long failedDocuments, long elapsedSeconds, long documentsPerSecond) {
+      this.state = state;
+      this.completedRanges = completedRanges;
+      this.totalRanges = totalRanges;
+      this.failedRanges = failedRanges;
+      this.documents = documents;
+      this.failedDocuments = failedDocuments;
+      this.elapsedSeconds = elapsedSeconds;
+      this.documentsPerSecond = documentsPerSecond;
+    }
+  }
+
+  /**
+   *
+   * @ClassName: Builder
+   * @Description: build Reindexer
+   * @author: bianzexin
+   * @date: Dec 28, 2020
+   *
+   */
+  public static class Builder {
+
+    private GraphDatabaseAPI db;
+
+    private JestClient jestClient;
+
+    private DocumentFactory documents;
+
+    private File checkpointFile;
+
+    private boolean syncNodes;
+
+    private boolean syncRelationships;
+
+    private int workers;
+
+    private long rangeSize;
+
+    private int bulkActions;
+
+    private long bulkSize;
+
+    private int maxRetries;
+
+    private long retryBackoffMillis;
+
+    private boolean createOnly;
+
+    private Completion completion;
+
+    private boolean versioned;
+
+    public Builder() {}
+
+    public Builder db(GraphDatabaseAPI db) {
+      this.db = db;
+      return this;
+    }
+
+    public Builder jestClient(JestClient jestClient) {
+      this.jestClient = jestClient;
+      return this;
+    }
+
+    public Builder documents(DocumentFactory documents) {
+      this.documents = documents;
+      return this;
+    }
+
+    public Builder checkpointFile(File checkpointFile) {
+      this.checkpointFile = checkpointFile;
+      return this;
+    }
+
+    public Builder syncNodes(boolean syncNodes) {
+      this.syncNodes = syncNodes;
+      return this;
+    }
+
+    public Builder syncRelationships(boolean syncRelationships) {
+      this.syncRelationships = syncRelationships;
+      return this;
+    }
+
+    public Builder workers(int workers) {
+      this.workers = workers;
+      return this;
+    }
+
+    public Builder rangeSize(long rangeSize) {
+      this.rangeSize = rangeSize;
+      return this;
+    }
+
+    public Builder bulkActions(int bulkActions) {
+      this.bulkActions = bulkActions;
+      return this;
+    }
+
+    public Builder bulkSize(long bulkSize) {
+      this.bulkSize = bulkSize;
+      return this;
+    }
+
+    public Builder maxRetries(int maxRetries) {
+      this.maxRetries = maxRetries;
+      return this;
+    }
+
+    public Builder retryBackoffMillis(long retryBackoffMillis) {
+      this.retryBackoffMillis = retryBackoffMillis;
+      return this;
+    }
+
+    public Builder createOnly(boolean createOnly) {
+      this.createOnly = createOnly;
+      return this;
+    }
+
+    public Builder completion(Completion completion) {
+      this.completion = completion;
+      return this;
+    }
+
+    public Builder versioned(boolean versioned) {
+      this.versioned = versioned;
+      return this;
+    }
+
+    public Reindexer build() {
+      return new Reindexer(this);
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import io.searchbox.action.AbstractAction;
+import io.searchbox.action.GenericResultAbstractAction;
+import io.searchbox.client.config.ElasticsearchVersion;
+
+/**
+ *
+ * @ClassName: RestAction
+ * @Description: 任意路径的ElasticSearch请求, 用于jest没有提供的api, 如原子的alias切换
+ * @author: bianzexin
+ * @date: Jan 4, 2021
+ *
+ */
+public class RestAction extends GenericResultAbstractAction {
+
+  private final String method;
+
+  private final String path;
+
+  private RestAction(Builder builder) {
+    super(builder);
+    this.method = builder.method;
+    this.path = builder.path;
+    this.payload = builder.body;
+  }
+
+  @Override
+  protected String buildURI(ElasticsearchVersion elasticsearchVersion) {
+    return path;
+  }
+
+  @Override
+  public String getRestMethodName() {
+    return method;
+  }
+
+  /**
+   *
+   * @ClassName: Builder
+   * @Description: build RestAction
+   * @author: bianzexin
+   * @date: Jan 4, 2021
+   *
+   */
+  public static class Builder extends AbstractAction.Builder<RestAction, Builder> {
+
+    private final String method;
+
+    private final String path;
+
+    private Object body;
+
+    /**
+     * @param method http method, e.g. POST
+     * @param path path without leading host, e.g. _aliases
+     */
+    public Builder(String method, String path) {
+      this.method = method;
+      this.path = path;
+    }
+
+    /**
+     * request body, a json string or an object serialized with gson
+     * @param body
+     * @return
+     */
+    public Builder body(Object body) {
+      this.body = body;
+      return this;
+    }
+
+    @Override
+    public RestAction build() {
+      return new RestAction(this);
+    }
+  }
+}
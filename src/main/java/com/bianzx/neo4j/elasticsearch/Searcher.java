@@ -0,0 +1,377 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.core.ClearScroll;
+import io.searchbox.core.Search;
+import io.searchbox.core.SearchScroll;
+import io.searchbox.params.Parameters;
+import org.neo4j.graphdb.Entity;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ *
+ * @ClassName: Searcher
+ * @Description: 在ElasticSearch中查询node或relationship, 按页滚动读取命中的document id,
+ *               只有调用方用到下一条时才读取下一页. 单页即可返回的查询结果缓存一小段时间
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public class Searcher {
+
+  // How long ElasticSearch keeps a scroll between two pages
+  private static final String SCROLL_KEEP_ALIVE = "1m";
+
+  // The field only relationship documents have
+  private static final String TYPE_FIELD = "type";
+
+  private final JestClient jestClient;
+
+  private final DocumentFactory documents;
+
+  // Hits read from ElasticSearch in one request
+  private final int pageSize;
+
+  // Results of single page queries by query, null without a cache
+  private final Map<String, Cached> cache;
+
+  private final long cacheTtlNanos;
+
+  private Searcher(Builder builder) {
+    this.jestClient = builder.jestClient;
+    this.documents = builder.documents;
+    this.pageSize = Math.max(1, builder.pageSize);
+    this.cacheTtlNanos = builder.cacheTtlMillis * 1_000_000L;
+    int cacheSize = builder.cacheSize;
+    this.cache = cacheSize <= 0 || builder.cacheTtlMillis <= 0 ? null
+        : new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+            return size() > cacheSize;
+          }
+        };
+  }
+
+  /**
+   * search node or relationship documents, best matches first
+   * @param query an ElasticSearch query clause in json, or a query string
+   * @param limit the maximum number of hits
+   * @param relationships whether to search relationships instead of nodes
+   * @return the hits, read page by page as they are consumed. Close it to release the scroll of
+   *         a search that is not read to the end.
+   */
+  public Hits search(String query, long limit, boolean relationships) {
+    if (limit <= 0) {
+      return new Hits(Collections.emptyList());
+    }
+    String key = relationships + ":" + limit + ":" + query;
+    List<Hit> cached = cached(key);
+    if (cached != null) {
+      return new Hits(cached);
+    }
+    JsonObject body = new JsonObject();
+    body.add("query", query(query, relationships));
+    body.addProperty("size", (int) Math.min(limit, pageSize));
+    // only ids and scores are needed, the entities are read from the graph
+    body.addProperty("_source", false);
+    Search.Builder search = new Search.Builder(body.toString())
+        .addIndices(relationships ? documents.getLayout().relationshipIndices() : documents.getLayout().nodeIndices())
+        .addType(documents.getIndexType()).setParameter("ignore_unavailable", true);
+    if (limit > pageSize) {
+      search.setParameter(Parameters.SCROLL, SCROLL_KEEP_ALIVE);
+    }
+    JsonObject page = execute(search.build());
+    Hits hits = new Hits(page, limit);
+    if (limit <= pageSize && cache != null) {
+      cache(key, hits.page);
+    }
+    return hits;
+  }
+
+  /**
+   * the entities of a page of hits, read in the transaction of the caller in one pass in id order,
+   * so that entities stored close to each other are read together
+   * @param tx
+   * @param hits
+   * @return the entities in the order of the hits, null for those deleted since they were indexed
+   */
+  public List<Entity> entities(Transaction tx, List<Hit> hits) {
+    Integer[] order = new Integer[hits.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    // nodes first, then relationships, each by id
+    Arrays.sort(order, Comparator.<Integer, Boolean>comparing(i -> documents.isRelationship(hits.get(i).id))
+        .thenComparingLong(i -> documents.entityId(hits.get(i).id)));
+    Entity[] entities = new Entity[order.length];
+    for (Integer i : order) {
+      entities[i] = documents.entity(tx, hits.get(i).id);
+    }
+    return Arrays.asList(entities);
+  }
+
+  /**
+   * the query clause, restricted to node or relationship documents which share the fallback index
+   * @param query
+   * @param relationships
+   * @return
+   */
+  private JsonObject query(String query, boolean relationships) {
+    JsonObject clause;
+    String trimmed = query == null ? "" : query.trim();
+    if (trimmed.startsWith("{")) {
+      clause = new JsonParser().parse(trimmed).getAsJsonObject();
+    } else if (trimmed.isEmpty()) {
+      clause = new JsonObject();
+      clause.add("match_all", new JsonObject());
+    } else {
+      JsonObject queryString = new JsonObject();
+      queryString.addProperty("query", trimmed);
+      clause = new JsonObject();
+      clause.add("query_string", queryString);
+    }
+    JsonObject field = new JsonObject();
+    field.addProperty("field", TYPE_FIELD);
+    JsonObject exists = new JsonObject();
+    exists.add("exists", field);
+    JsonObject bool = new JsonObject();
+    bool.add("must", clause);
+    bool.add(relationships ? "filter" : "must_not", exists);
+    JsonObject wrapped = new JsonObject();
+    wrapped.add("bool", bool);
+    return wrapped;
+  }
+
+  private JsonObject execute(Action<? extends JestResult> action) {
+    JestResult result;
+    try {
+      result = jestClient.execute(action);
+    } catch (IOException e) {
+      throw new UncheckedIOException("ElasticSearch search error," + e.getMessage(), e);
+    }
+    if (!result.isSucceeded()) {
+      throw new IllegalStateException("ElasticSearch search error," + result.getErrorMessage());
+    }
+    return result.getJsonObject();
+  }
+
+  private synchronized List<Hit> cached(String key) {
+    if (cache == null) {
+      return null;
+    }
+    Cached cached = cache.get(key);
+    if (cached == null) {
+      return null;
+    }
+    if (System.nanoTime() - cached.cachedAt > cacheTtlNanos) {
+      cache.remove(key);
+      return null;
+    }
+    return cached.hits;
+  }
+
+  private synchronized void cache(String key, List<Hit> hits) {
+    cache.put(key, new Cached(hits, System.nanoTime()));
+  }
+
+  /**
+   * One matching document
+   */
+  public static class Hit {
+
+    // The document id, see DocumentFactory.id
+    public final String id;
+
+    public final double score;
+
+    Hit(String id, double score) {
+      this.id = id;
+      this.score = score;
+    }
+  }
+
+  private static class Cached {
+
+    private final List<Hit> hits;
+
+    private final long cachedAt;
+
+    Cached(List<Hit> hits, long cachedAt) {
+      this.hits = hits;
+      this.cachedAt = cachedAt;
+    }
+  }
+
+  /**
+   * The hits of one search, the next page is read when the current one is used up
+   */
+  public class Hits implements Iterator<Hit>, AutoCloseable {
+
+    private List<Hit> page;
+
+    private int position;
+
+    // Hits still to return, including the current page
+    private long remaining;
+
+    // Null once the last page is read
+    private String scrollId;
+
+    private Hits(List<Hit> hits) {
+      this.page = hits;
+      this.remaining = hits.size();
+    }
+
+    private Hits(JsonObject result, long limit) {
+      this.remaining = limit;
+      read(result);
+    }
+
+    private void read(JsonObject result) {
+      JsonArray hits = result.getAsJsonObject("hits").getAsJsonArray("hits");
+      page = new ArrayList<>(hits.size());
+      position = 0;
+      for (JsonElement element : hits) {
+        JsonObject hit = element.getAsJsonObject();
+        JsonElement score = hit.get("_score");
+        page.add(new Hit(hit.get("_id").getAsString(),
+            score == null || score.isJsonNull() ? 0 : score.getAsDouble()));
+      }
+      JsonElement scroll = result.get("_scroll_id");
+      String previous = scrollId;
+      scrollId = scroll == null || scroll.isJsonNull() ? null : scroll.getAsString();
+      // the last page, or a page beyond which no hit is wanted
+      if (page.size() < pageSize || page.size() >= remaining) {
+        close();
+      } else if (previous != null && !previous.equals(scrollId)) {
+        clear(previous);
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (remaining <= 0) {
+        return false;
+      }
+      if (position < page.size()) {
+        return true;
+      }
+      if (scrollId == null) {
+        return false;
+      }
+      read(execute(new SearchScroll.Builder(scrollId, SCROLL_KEEP_ALIVE).build()));
+      return position < page.size();
+    }
+
+    @Override
+    public Hit next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      remaining--;
+      return page.get(position++);
+    }
+
+    /**
+     * the hits of the current page not returned yet, the next page is read once they are
+     * @return
+     */
+    public List<Hit> nextPage() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      int end = (int) Math.min(page.size(), position + remaining);
+      List<Hit> hits = page.subList(position, end);
+      remaining -= end - position;
+      position = end;
+      return hits;
+    }
+
+    @Override
+    public void close() {
+      if (scrollId != null) {
+        clear(scrollId);
+        scrollId = null;
+      }
+    }
+
+    private void clear(String id) {
+      try {
+        jestClient.execute(new ClearScroll.Builder().addScrollId(id).build());
+      } catch (IOException e) {
+        // expires after SCROLL_KEEP_ALIVE anyway
+      }
+    }
+  }
+
+  /**
+   *
+   * @ClassName: Builder
+   * @Description: Builder for Searcher
+   * @author: bianzexin
+   * @date: Feb 1, 2021
+   *
+   */
+  public static class Builder {
+
+    private JestClient jestClient;
+
+    private DocumentFactory documents;
+
+    private int pageSize;
+
+    private int cacheSize;
+
+    private long cacheTtlMillis;
+
+    public Builder() {}
+
+    public Builder jestClient(JestClient jestClient) {
+      this.jestClient = jestClient;
+      return this;
+    }
+
+    public Builder documents(DocumentFactory documents) {
+      this.documents = documents;
+      return this;
+    }
+
+    public Builder pageSize(int pageSize) {
+      this.pageSize = pageSize;
+      return this;
+    }
+
+    public Builder cacheSize(int cacheSize) {
+      this.cacheSize = cacheSize;
+      return this;
+    }
+
+    public Builder cacheTtlMillis(long cacheTtlMillis) {
+      this.cacheTtlMillis = cacheTtlMillis;
+      return this;
+    }
+
+    public Searcher build() {
+      return new Searcher(this);
+    }
+  }
+}
@@ -0,0 +1,328 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ *
+ * @ClassName: SyncMetrics
+ * @Description: 同步链路的计数器和延迟直方图, 通过JMX和elasticsearch.metrics()存储过程暴露
+ * @author: bianzexin
+ * @date: Jan 25, 2021
+ *
+ */
+public class SyncMetrics implements SyncMetricsMBean {
+
+  private final LongAdder transactions = new LongAdder();
+
+  private final LongAdder documents = new LongAdder();
+
+  private final LongAdder bulkRequests = new LongAdder();
+
+  private final LongAdder failedBulkRequests = new LongAdder();
+
+  private final LongAdder failedItems = new LongAdder();
+
+  private final LongAdder retries = new LongAdder();
+
+  private final LongAdder deadLetters = new LongAdder();
+
+  // Versioned actions ElasticSearch turned down because the document was already newer
+  private final LongAdder staleActions = new LongAdder();
+
+  // Actions replaced by a newer state of their document before they were sent
+  private final LongAdder coalescedActions = new LongAdder();
+
+  // Properties written that the mapping of their index does not know
+  private final LongAdder unmappedProperties = new LongAdder();
+
+  // Time beforeCommit spends collecting and serializing changes
+  private final Histogram beforeCommitMicros = new Histogram();
+
+  private final Histogram documentsPerTransaction = new Histogram();
+
+  private final Histogram bulkActions = new Histogram();
+
+  private final Histogram bulkBytes = new Histogram();
+
+  // ElasticSearch round trip of one bulk request
+  private final Histogram requestMillis = new Histogram();
+
+  // From building the action on commit to ElasticSearch acknowledging it
+  private final Histogram lagMillis = new Histogram();
+
+  // Gauges read from the dispatcher, if there is one
+  private volatile LongSupplier queueDepth = () -> 0;
+
+  private volatile LongSupplier inFlightRequests = () -> 0;
+
+  private volatile LongSupplier droppedActions = () -> 0;
+
+  // Current limits of the bulk controller
+  private volatile LongSupplier bulkActionsLimit = () -> 0;
+
+  private volatile LongSupplier inFlightRequestsLimit = () -> 0;
+
+  /**
+   * a transaction produced actions
+   * @param nanos time spent in beforeCommit
+   * @param actions
+   */
+  public void transaction(long nanos, int actions) {
+    transactions.increment();
+    documents.add(actions);
+    beforeCommitMicros.record(nanos / 1000);
+    documentsPerTransaction.record(actions);
+  }
+
+  /**
+   * a bulk request got a response or failed
+   * @param actions
+   * @param bytes
+   * @param nanos
+   * @param succeeded
+   */
+  public void request(int actions, long bytes, long nanos, boolean succeeded) {
+    bulkRequests.increment();
+    if (!succeeded) {
+      failedBulkRequests.increment();
+    }
+    bulkActions.record(actions);
+    bulkBytes.record(bytes);
+    requestMillis.record(nanos / 1_000_000);
+  }
+
+  /**
+   * ElasticSearch acknowledged an action
+   * @param item
+   * @param now
+   */
+  public void acknowledged(BulkItem item, long now) {
+    lagMillis.record(now - item.getCreatedAt());
+  }
+
+  public void itemFailed() {
+    failedItems.increment();
+  }
+
+  public void retried() {
+    retries.increment();
+  }
+
+  public void deadLettered() {
+    deadLetters.increment();
+  }
+
+  public void staleAction() {
+    staleActions.increment();
+  }
+
+  public void coalescedAction() {
+    coalescedActions.increment();
+  }
+
+  public void unmappedProperty() {
+    unmappedProperties.increment();
+  }
+
+  public void gauges(LongSupplier queueDepth, LongSupplier inFlightRequests, LongSupplier droppedActions) {
+    this.queueDepth = queueDepth;
+    this.inFlightRequests = inFlightRequests;
+    this.droppedActions = droppedActions;
+  }
+
+  public void limits(LongSupplier bulkActionsLimit, LongSupplier inFlightRequestsLimit) {
+    this.bulkActionsLimit = bulkActionsLimit;
+    this.inFlightRequestsLimit = inFlightRequestsLimit;
+  }
+
+  /**
+   * all metrics by name, in a stable order
+   * @return
+   */
+  public Map<String, Number> snapshot() {
+    Map<String, Number> metrics = new LinkedHashMap<>();
+    metrics.put("transactions", getTransactions());
+    metrics.put("documents", getDocuments());
+    metrics.put("bulkRequests", getBulkRequests());
+    metrics.put("failedBulkRequests", getFailedBulkRequests());
+    metrics.put("failedItems", getFailedItems());
+    metrics.put("retries", getRetries());
+    metrics.put("deadLetters", getDeadLetters());
+    metrics.put("staleActions", getStaleActions());
+    metrics.put("coalescedActions", getCoalescedActions());
+    metrics.put("unmappedProperties", getUnmappedProperties());
+    metrics.put("droppedActions", getDroppedActions());
+    metrics.put("queueDepth", getQueueDepth());
+    metrics.put("inFlightRequests", getInFlightRequests());
+    metrics.put("bulkActionsLimit", getBulkActionsLimit());
+    metrics.put("inFlightRequestsLimit", getInFlightRequestsLimit());
+    metrics.put("beforeCommitMicrosMean", getBeforeCommitMicrosMean());
+    metrics.put("beforeCommitMicros99", getBeforeCommitMicros99());
+    metrics.put("beforeCommitMicrosMax", getBeforeCommitMicrosMax());
+    metrics.put("documentsPerTransactionMean", getDocumentsPerTransactionMean());
+    metrics.put("documentsPerTransactionMax", getDocumentsPerTransactionMax());
+    metrics.put("bulkActionsMean", getBulkActionsMean());
+    metrics.put("bulkBytesMean", getBulkBytesMean());
+    metrics.put("requestMillisMean", getRequestMillisMean());
+    metrics.put("requestMillis50", getRequestMillis50());
+    metrics.put("requestMillis99", getRequestMillis99());
+    metrics.put("requestMillisMax", getRequestMillisMax());
+    metrics.put("lagMillisMean", getLagMillisMean());
+    metrics.put("lagMillis99", getLagMillis99());
+    metrics.put("lagMillisMax", getLagMillisMax());
+    return metrics;
+  }
+
+  /**
+   * ###################################################
+   * # Implements methods for {@link SyncMetricsMBean} #
+   * ###################################################
+   */
+  @Override
+  public long getTransactions() {
+    return transactions.sum();
+  }
+
+  @Override
+  public long getDocuments() {
+    return documents.sum();
+  }
+
+  @Override
+  public long getBulkRequests() {
+    return bulkRequests.sum();
+  }
+
+  @Override
+  public long getFailedBulkRequests() {
+    return failedBulkRequests.sum();
+  }
+
+  @Override
+  public long getFailedItems() {
+    return failedItems.sum();
+  }
+
+  @Override
+  public long getRetries() {
+    return retries.sum();
+  }
+
+  @Override
+  public long getDeadLetters() {
+    return deadLetters.sum();
+  }
+
+  @Override
+  public long getStaleActions() {
+    return staleActions.sum();
+  }
+
+  @Override
+  public long getCoalescedActions() {
+    return coalescedActions.sum();
+  }
+
+  @Override
+  public long getUnmappedProperties() {
+    return unmappedProperties.sum();
+  }
+
+  @Override
+  public long getDroppedActions() {
+    return droppedActions.getAsLong();
+  }
+
+  @Override
+  public long getQueueDepth() {
+    return queueDepth.getAsLong();
+  }
+
+  @Override
+  public long getInFlightRequests() {
+    return inFlightRequests.getAsLong();
+  }
+
+  @Override
+  public long getBulkActionsLimit() {
+    return bulkActionsLimit.getAsLong();
+  }
+
+  @Override
+  public long getInFlightRequestsLimit() {
+    return inFlightRequestsLimit.getAsLong();
+  }
+
+  @Override
+  public double getBeforeCommitMicrosMean() {
+    return beforeCommitMicros.getMean();
+  }
+
+  @Override
+  public long getBeforeCommitMicros99() {
+    return beforeCommitMicros.getPercentile(99);
+  }
+
+  @Override
+  public long getBeforeCommitMicrosMax() {
+    return beforeCommitMicros.getMax();
+  }
+
+  @Override
+  public double getDocumentsPerTransactionMean() {
+    return documentsPerTransaction.getMean();
+  }
+
+  @Override
+  public long getDocumentsPerTransactionMax() {
+    return documentsPerTransaction.getMax();
+  }
+
+  @Override
+  public double getBulkActionsMean() {
+    return bulkActions.getMean();
+  }
+
+  @Override
+  public double getBulkBytesMean() {
+    return bulkBytes.getMean();
+  }
+
+  @Override
+  public double getRequestMillisMean() {
+    return requestMillis.getMean();
+  }
+
+  @Override
+  public long getRequestMillis50() {
+    return requestMillis.getPercentile(50);
+  }
+
+  @Override
+  public long getRequestMillis99() {
+    return requestMillis.getPercentile(99);
+  }
+
+  @Override
+  public long getRequestMillisMax() {
+    return requestMillis.getMax();
+  }
+
+  @Override
+  public double getLagMillisMean() {
+    return lagMillis.getMean();
+  }
+
+  @Override
+  public long getLagMillis99() {
+    return lagMillis.getPercentile(99);
+  }
+
+  @Override
+  public long getLagMillisMax() {
+    return lagMillis.getMax();
+  }
+}
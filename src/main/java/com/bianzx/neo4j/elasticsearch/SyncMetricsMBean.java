@@ -0,0 +1,70 @@
+package com.bianzx.neo4j.elasticsearch;
+
+/**
+ *
+ * @ClassName: SyncMetricsMBean
+ * @Description: 同步指标的JMX接口
+ * @author: bianzexin
+ * @date: Jan 25, 2021
+ *
+ */
+public interface SyncMetricsMBean {
+
+  long getTransactions();
+
+  long getDocuments();
+
+  long getBulkRequests();
+
+  long getFailedBulkRequests();
+
+  long getFailedItems();
+
+  long getRetries();
+
+  long getDeadLetters();
+
+  long getStaleActions();
+
+  long getCoalescedActions();
+
+  long getUnmappedProperties();
+
+  long getDroppedActions();
+
+  long getQueueDepth();
+
+  long getInFlightRequests();
+
+  long getBulkActionsLimit();
+
+  long getInFlightRequestsLimit();
+
+  double getBeforeCommitMicrosMean();
+
+  long getBeforeCommitMicros99();
+
+  long getBeforeCommitMicrosMax();
+
+  double getDocumentsPerTransactionMean();
+
+  long getDocumentsPerTransactionMax();
+
+  double getBulkActionsMean();
+
+  double getBulkBytesMean();
+
+  double getRequestMillisMean();
+
+  long getRequestMillis50();
+
+  long getRequestMillis99();
+
+  long getRequestMillisMax();
+
+  double getLagMillisMean();
+
+  long getLagMillis99();
+
+  long getLagMillisMax();
+}
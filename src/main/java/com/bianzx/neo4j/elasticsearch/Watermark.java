@@ -0,0 +1,229 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * @ClassName: Watermark
+ * @Description: 按transaction id跟踪已提交但尚未被ElasticSearch确认的变更,
+ *               一个事务之前(含)的所有事务都已确认或放弃时, 该事务即对搜索可见(refresh之后)
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public class Watermark {
+
+  // Guarded by this, actions not yet done with by transaction id
+  private final TreeMap<Long, Integer> pending = new TreeMap<>();
+
+  // Guarded by this, the indices each pending transaction writes to
+  private final Map<Long, Set<String>> pendingIndices = new HashMap<>();
+
+  // Guarded by this, indices written to since the last refresh
+  private final Set<String> unrefreshed = new HashSet<>();
+
+  // Guarded by this, the newest transaction handed over
+  private long latest;
+
+  // Guarded by this, the ticket of each transaction between beforeCommit and afterCommit. Its id is
+  // not known until afterCommit, a transaction with a lower id than an awaited one may still be here.
+  private final Map<Collection<BulkItem>, Long> committing = new IdentityHashMap<>();
+
+  // Guarded by this, the tickets in committing, oldest first
+  private final TreeSet<Long> committingTickets = new TreeSet<>();
+
+  // Guarded by this, the ticket of the next committing transaction
+  private long nextTicket;
+
+  /**
+   * a transaction with actions is about to commit, it is settled after its actions were handed over
+   * @param items the actions, the same collection is passed to settled
+   */
+  public synchronized void committing(Collection<BulkItem> items) {
+    long ticket = nextTicket++;
+    committing.put(items, ticket);
+    committingTickets.add(ticket);
+  }
+
+  /**
+   * afterCommit is done with the actions of a committing transaction, or the transaction rolled back
+   * @param items
+   */
+  public synchronized void settled(Collection<BulkItem> items) {
+    Long ticket = committing.remove(items);
+    if (ticket != null) {
+      committingTickets.remove(ticket);
+      notifyAll();
+    }
+  }
+
+  /**
+   * a committed transaction handed its actions over for asynchronous delivery
+   * @param items the actions, tagged with their transaction id
+   */
+  public synchronized void committed(Collection<BulkItem> items) {
+    for (BulkItem item : items) {
+      long transactionId = item.getTransactionId();
+      if (transactionId <= 0) {
+        continue;
+      }
+      pending.merge(transactionId, 1, Integer::sum);
+      pendingIndices.computeIfAbsent(transactionId, id -> new HashSet<>()).add(item.getIndex());
+      latest = Math.max(latest, transactionId);
+    }
+  }
+
+  /**
+   * the actions of a committed transaction were delivered before the commit returned, as in sync mode
+   * @param items
+   */
+  public synchronized void delivered(Collection<BulkItem> items) {
+    for (BulkItem item : items) {
+      unrefreshed.add(item.getIndex());
+      latest = Math.max(latest, item.getTransactionId());
+    }
+  }
+
+  /**
+   * the actions were delivered or given up. Actions of transactions that were never handed over in
+   * this run, e.g. replayed from the outbox, are ignored.
+   * @param items
+   */
+  public synchronized void resolved(Collection<BulkItem> items) {
+    boolean advanced = false;
+    for (BulkItem item : items) {
+      advanced |= resolve(item);
+    }
+    if (advanced) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * one action was delivered or given up
+   * @param item
+   */
+  public synchronized void resolved(BulkItem item) {
+    if (resolve(item)) {
+      notifyAll();
+    }
+  }
+
+  private boolean resolve(BulkItem item) {
+    long transactionId = item.getTransactionId();
+    Integer remaining = transactionId <= 0 ? null : pending.get(transactionId);
+    if (remaining == null) {
+      return false;
+    }
+    if (remaining > 1) {
+      pending.put(transactionId, remaining - 1);
+      return false;
+    }
+    pending.remove(transactionId);
+    unrefreshed.addAll(pendingIndices.remove(transactionId));
+    return true;
+  }
+
+  /**
+   * the newest transaction whose actions were handed over, 0 if none was
+   * @return
+   */
+  public synchronized long getLatest() {
+    return latest;
+  }
+
+  /**
+   * whether the actions of the transaction and of all transactions before it are done with, as far
+   * as they were handed over. Call awaitCommitted first for transactions that may still be committing.
+   * @param transactionId
+   * @return
+   */
+  public synchronized boolean isIndexed(long transactionId) {
+    return pending.isEmpty() || pending.firstKey() > transactionId;
+  }
+
+  /**
+   * wait until the transaction is indexed
+   * @param transactionId
+   * @param timeoutMillis
+   * @return whether it is indexed
+   * @throws InterruptedException
+   */
+  public synchronized boolean await(long transactionId, long timeoutMillis) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    long remaining;
+    while (!isIndexed(transactionId) && (remaining = deadline - System.nanoTime()) > 0) {
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return isIndexed(transactionId);
+  }
+
+  /**
+   * wait until the transactions that were committing when called are settled, the ids of all
+   * transactions committed before the call are known then
+   * @param timeoutMillis
+   * @return whether they are settled
+   * @throws InterruptedException
+   */
+  public synchronized boolean awaitCommitted(long timeoutMillis) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    long ticket = nextTicket;
+    long remaining;
+    while (!isSettled(ticket) && (remaining = deadline - System.nanoTime()) > 0) {
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return isSettled(ticket);
+  }
+
+  private boolean isSettled(long ticket) {
+    return committingTickets.isEmpty() || committingTickets.first() >= ticket;
+  }
+
+  /**
+   * the indices written to since the last call
+   * @return
+   */
+  public synchronized Set<String> unrefreshed() {
+    Set<String> indices = new HashSet<>(unrefreshed);
+    unrefreshed.clear();
+    return indices;
+  }
+
+  /**
+   * number of transactions with actions not yet done with
+   * @return
+   */
+  public synchronized int getPendingTransactions() {
+    return pending.size();
+  }
+
+  /**
+   * The outcome of waiting for a transaction, returned by elasticsearch.awaitIndexed()
+   */
+  public static class Status {
+
+    public final long transactionId;
+
+    public final boolean indexed;
+
+    // Transactions still waiting for ElasticSearch
+    public final long pendingTransactions;
+
+    public final long waitedMillis;
+
+    public Status(long transactionId, boolean indexed, long pendingTransactions, long waitedMillis) {
+      this.transactionId = transactionId;
+      this.indexed = indexed;
+      this.pendingTransactions = pendingTransactions;
+      this.waitedMillis = waitedMillis;
+    }
+  }
+}
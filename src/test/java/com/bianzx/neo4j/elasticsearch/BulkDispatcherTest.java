@@ -0,0 +1,307 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.bianzx.neo4j.elasticsearch.benchmark.FakeElasticSearch;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.searchbox.client.JestClient;
+import io.searchbox.core.BulkResult;
+import io.searchbox.core.BulkResult.BulkResultItem;
+
+/**
+ *
+ * @ClassName: BulkDispatcherTest
+ * @Description: BulkDispatcher对FakeElasticSearch发送: 按item判断结果, 失败的item退避重试,
+ *               永久失败或重试用尽的进入dead letter, 请求失败时outbox从checkpoint重发,
+ *               ElasticSearch跟不上时按overflow policy阻塞, 写入spill或丢弃
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public class BulkDispatcherTest {
+
+  private static final long TIMEOUT_MILLIS = 10_000L;
+
+  // Document ids that reached the fake
+  private final Set<String> arrived = ConcurrentHashMap.newKeySet();
+
+  // The same ids in the order they arrived
+  private final List<String> arrivalOrder = Collections.synchronizedList(new ArrayList<>());
+
+  private FakeElasticSearch elasticSearch;
+
+  private JestClient jestClient;
+
+  private File directory;
+
+  private Outbox outbox;
+
+  private DeadLetterStore deadLetterStore;
+
+  private BulkDispatcher dispatcher;
+
+  @Before
+  public void start() throws Throwable {
+    startElasticSearch(0);
+    directory = Files.createTempDirectory("dispatcher").toFile();
+    deadLetterStore = new DeadLetterStore(deadLetterFile());
+  }
+
+  @After
+  public void stop() throws IOException {
+    if (dispatcher != null) {
+      dispatcher.close(TIMEOUT_MILLIS);
+    }
+    if (outbox != null) {
+      outbox.close();
+    }
+    deadLetterStore.close();
+    jestClient.close();
+    elasticSearch.close();
+    try (Stream<Path> files = Files.walk(directory.toPath())) {
+      files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  @Test
+  public void outboxIsResentFromTheCheckpointAfterAnOutage() throws IOException {
+    outbox = new Outbox(new File(directory, "outbox"), 4096);
+    dispatcher = builder().outbox(outbox).build();
+    dispatcher.start();
+    elasticSearch.setAvailable(false);
+    Set<String> ids = add(0, 50);
+    assertFalse(dispatcher.awaitDrained(300));
+
+    elasticSearch.setAvailable(true);
+    assertTrue(dispatcher.awaitDrained(TIMEOUT_MILLIS));
+    assertTrue(arrived.containsAll(ids));
+    assertFalse(outbox.hasUnread());
+
+    // everything was acknowledged, nothing is replayed after a restart
+    dispatcher.close(TIMEOUT_MILLIS);
+    dispatcher = null;
+    outbox.close();
+    outbox = new Outbox(new File(directory, "outbox"), 4096);
+    assertFalse(outbox.hasUnread());
+  }
+
+  @Test
+  public void rejectedItemsAreRetriedUntilAccepted() throws IOException {
+    dispatcher = builder().maxRetries(1000).deadLetters(deadLetterStore).build();
+    dispatcher.start();
+    elasticSearch.fail("3", 429);
+    Set<String> ids = add(0, 10);
+    assertFalse(dispatcher.awaitDrained(300));
+    assertFalse(arrived.contains("3"));
+    assertTrue(arrived.contains("4"));
+
+    elasticSearch.clearFailures();
+    assertTrue(dispatcher.awaitDrained(TIMEOUT_MILLIS));
+    assertTrue(arrived.containsAll(ids));
+    assertEquals(Collections.emptyList(), deadLetters());
+  }
+
+  @Test
+  public void invalidItemsAreDeadLetteredRightAway() throws IOException {
+    dispatcher = builder().deadLetters(deadLetterStore).build();
+    dispatcher.start();
+    elasticSearch.fail("3", 400);
+    Set<String> ids = add(0, 10);
+    assertTrue(dispatcher.awaitDrained(TIMEOUT_MILLIS));
+
+    ids.remove("3");
+    assertTrue(arrived.containsAll(ids));
+    assertFalse(arrived.contains("3"));
+    List<JsonObject> deadLetters = deadLetters();
+    assertEquals(1, deadLetters.size());
+    assertEquals("3", deadLetters.get(0).get("id").getAsString());
+    assertEquals(400, deadLetters.get(0).get("status").getAsInt());
+  }
+
+  @Test
+  public void itemsAreDeadLetteredOnceRetriesRunOut() throws IOException {
+    dispatcher = builder().maxRetries(2).deadLetters(deadLetterStore).build();
+    dispatcher.start();
+    elasticSearch.fail("3", 503);
+    add(0, 10);
+    assertTrue(dispatcher.awaitDrained(TIMEOUT_MILLIS));
+
+    List<JsonObject> deadLetters = deadLetters();
+    assertEquals(1, deadLetters.size());
+    assertEquals("3", deadLetters.get(0).get("id").getAsString());
+    assertEquals(503, deadLetters.get(0).get("status").getAsInt());
+  }
+
+  @Test
+  public void writtenDocumentIsSuccess() {
+    assertTrue(BulkDispatcher.isSuccess(action(BulkItem.INDEX, 0), status(201)));
+    assertTrue(BulkDispatcher.isSuccess(action(BulkItem.UPDATE, 0), status(200)));
+  }
+
+  @Test
+  public void deleteOfMissingDocumentIsSuccess() {
+    assertTrue(BulkDispatcher.isSuccess(action(BulkItem.DELETE, 0), status(404)));
+    assertFalse(BulkDispatcher.isSuccess(action(BulkItem.UPDATE, 0), status(404)));
+  }
+
+  @Test
+  public void conflictOfVersionedActionIsSuccess() {
+    // the document already has the version of a later transaction
+    assertTrue(BulkDispatcher.isSuccess(action(BulkItem.INDEX, 7), status(409)));
+    assertTrue(BulkDispatcher.isSuccess(action(BulkItem.DELETE, 7), status(409)));
+  }
+
+  @Test
+  public void conflictOfCreateIsSuccess() {
+    assertTrue(BulkDispatcher.isSuccess(action(BulkItem.CREATE, 0), status(409)));
+  }
+
+  @Test
+  public void conflictOfUnversionedActionIsFailure() {
+    assertFalse(BulkDispatcher.isSuccess(action(BulkItem.INDEX, 0), status(409)));
+    // updates are never versioned, the document changed under it
+    assertFalse(BulkDispatcher.isSuccess(action(BulkItem.UPDATE, 7), status(409)));
+  }
+
+  @Test
+  public void serverErrorIsFailure() {
+    assertFalse(BulkDispatcher.isSuccess(action(BulkItem.INDEX, 7), status(500)));
+    assertFalse(BulkDispatcher.isSuccess(action(BulkItem.DELETE, 0), status(429)));
+  }
+
+  @Test
+  public void dropPolicyDropsWhatDoesNotFit() throws Throwable {
+    startElasticSearch(100);
+    dispatcher = builder().maxInFlightRequests(1).maxBufferedBytes(400)
+        .overflowPolicy(BulkDispatcher.OverflowPolicy.DROP).build();
+    dispatcher.start();
+    add(0, 50);
+    assertTrue(dispatcher.awaitDrained(TIMEOUT_MILLIS));
+
+    long dropped = dispatcher.getDroppedActions();
+    assertTrue(dropped > 0);
+    assertEquals(50, arrived.size() + dropped);
+  }
+
+  @Test
+  public void spillPolicyKeepsEverythingInOrder() throws Throwable {
+    startElasticSearch(100);
+    outbox = new Outbox(new File(directory, "spill"), 4096);
+    dispatcher = builder().maxInFlightRequests(1).maxBufferedBytes(400).spill(outbox)
+        .overflowPolicy(BulkDispatcher.OverflowPolicy.SPILL).build();
+    dispatcher.start();
+    add(0, 50);
+    assertTrue(dispatcher.awaitDrained(TIMEOUT_MILLIS));
+
+    assertEquals(0, dispatcher.getDroppedActions());
+    assertEquals(ids(0, 50), arrivalOrder);
+  }
+
+  @Test
+  public void blockPolicyHoldsTheCommitsBack() throws Throwable {
+    startElasticSearch(100);
+    dispatcher = builder().maxInFlightRequests(1).maxBufferedBytes(400).build();
+    dispatcher.start();
+    long startedAt = System.nanoTime();
+    add(0, 50);
+    // the adding thread waited for at least one response of the slow fake
+    assertTrue(System.nanoTime() - startedAt >= 100_000_000L);
+    assertTrue(dispatcher.awaitDrained(TIMEOUT_MILLIS));
+
+    assertEquals(0, dispatcher.getDroppedActions());
+    assertEquals(ids(0, 50), arrivalOrder);
+  }
+
+  /**
+   * start the fake, or restart it with another latency
+   * @param latencyMillis
+   * @throws Throwable
+   */
+  private void startElasticSearch(long latencyMillis) throws Throwable {
+    if (elasticSearch != null) {
+      jestClient.close();
+      elasticSearch.close();
+    }
+    elasticSearch = new FakeElasticSearch.Builder().latencyMillis(latencyMillis).arrivals(id -> {
+      arrived.add(id);
+      arrivalOrder.add(id);
+    }).build();
+    jestClient = JestHttpClientFactory.getClient(elasticSearch.url(), false, 4);
+  }
+
+  private static List<String> ids(int from, int count) {
+    List<String> ids = new ArrayList<>();
+    for (int i = from; i < from + count; i++) {
+      ids.add(String.valueOf(i));
+    }
+    return ids;
+  }
+
+  private BulkDispatcher.Builder builder() {
+    return new BulkDispatcher.Builder().jestClient(jestClient).maxActions(10).maxBytes(1 << 20).lingerMillis(1)
+        .maxRetries(3).retryBackoffMillis(10).maxRetryBackoffMillis(50).maxInFlightRequests(4)
+        .maxBufferedBytes(1 << 20).overflowPolicy(BulkDispatcher.OverflowPolicy.BLOCK);
+  }
+
+  /**
+   * add one transaction per document
+   * @return the ids of the documents
+   */
+  private Set<String> add(int from, int count) {
+    Set<String> ids = new HashSet<>();
+    for (int i = from; i < from + count; i++) {
+      String id = String.valueOf(i);
+      dispatcher.add(Collections.singletonList(item(id)));
+      ids.add(id);
+    }
+    return ids;
+  }
+
+  private File deadLetterFile() {
+    return new File(directory, "dead-letters.json");
+  }
+
+  private List<JsonObject> deadLetters() throws IOException {
+    List<JsonObject> lines = new ArrayList<>();
+    if (deadLetterFile().exists()) {
+      for (String line : Files.readAllLines(deadLetterFile().toPath())) {
+        lines.add(new JsonParser().parse(line).getAsJsonObject());
+      }
+    }
+    return lines;
+  }
+
+  private static BulkItem action(String method, long version) {
+    BulkItem item = new BulkItem(method, "people", DocumentFactory.INDEX_TYPE, "1",
+        BulkItem.DELETE.equals(method) ? null : "{}");
+    item.setVersion(version);
+    return item;
+  }
+
+  private static BulkResultItem status(int status) {
+    return new BulkResult(new Gson()).new BulkResultItem("index", "people", DocumentFactory.INDEX_TYPE, "1",
+        status, status >= 300 ? "error" : null, null, null, null);
+  }
+
+  private static BulkItem item(String id) {
+    return new BulkItem(BulkItem.INDEX, "people", DocumentFactory.INDEX_TYPE, id, "{\"id\":\"" + id + "\"}");
+  }
+}
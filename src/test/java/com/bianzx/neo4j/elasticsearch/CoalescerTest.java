@@ -0,0 +1,113 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @ClassName: CoalescerTest
+ * @Description: Coalescer合并同一文档的变更时, 被替换的transaction交给保留的操作, watermark不会提前前进
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public class CoalescerTest {
+
+  private final Watermark watermark = new Watermark();
+
+  private final List<BulkItem> passed = Collections.synchronizedList(new ArrayList<>());
+
+  private Coalescer coalescer;
+
+  @Before
+  public void start() {
+    // the window never ends during a test, close() passes everything on
+    coalescer = new Coalescer.Builder().sink(passed::addAll).watermark(watermark).metrics(new SyncMetrics())
+        .windowMillis(60_000).build();
+    coalescer.start();
+  }
+
+  @After
+  public void close() {
+    coalescer.close(1000);
+  }
+
+  @Test
+  public void newerStateTakesOverTheReplacedTransaction() {
+    BulkItem older = index("1", 5, "{\"v\":1}");
+    BulkItem newer = index("1", 7, "{\"v\":2}");
+    watermark.committed(Arrays.asList(older, newer));
+    coalescer.add(Collections.singletonList(older));
+    coalescer.add(Collections.singletonList(newer));
+
+    assertEquals(1, coalescer.getHeldActions());
+    // 7 no longer has an action of its own, 5 is carried by the state of 7
+    assertEquals(1, watermark.getPendingTransactions());
+    assertFalse(watermark.isIndexed(5));
+    assertFalse(watermark.isIndexed(7));
+
+    coalescer.close(1000);
+    assertEquals(1, passed.size());
+    assertEquals("{\"v\":2}", passed.get(0).getSource());
+    assertEquals(5, passed.get(0).getTransactionId());
+    watermark.resolved(passed);
+    assertTrue(watermark.isIndexed(7));
+  }
+
+  @Test
+  public void olderStateArrivingLateIsDropped() {
+    BulkItem older = index("1", 5, "{\"v\":1}");
+    BulkItem newer = index("1", 7, "{\"v\":2}");
+    watermark.committed(Arrays.asList(older, newer));
+    // e.g. from a concurrent commit
+    coalescer.add(Collections.singletonList(newer));
+    coalescer.add(Collections.singletonList(older));
+
+    assertFalse(watermark.isIndexed(5));
+    coalescer.close(1000);
+    assertEquals(1, passed.size());
+    assertEquals("{\"v\":2}", passed.get(0).getSource());
+    assertEquals(5, passed.get(0).getTransactionId());
+    watermark.resolved(passed);
+    assertTrue(watermark.isIndexed(7));
+  }
+
+  @Test
+  public void partialUpdatesAreKeptInOrder() {
+    BulkItem state = index("1", 5, "{\"v\":1}");
+    BulkItem update = new BulkItem(BulkItem.UPDATE, "people", DocumentFactory.INDEX_TYPE, "1", "{\"doc\":{}}");
+    update.setTransactionId(7);
+    watermark.committed(Arrays.asList(state, update));
+    coalescer.add(Collections.singletonList(state));
+    coalescer.add(Collections.singletonList(update));
+
+    assertEquals(2, coalescer.getHeldActions());
+    coalescer.close(1000);
+    assertEquals(Arrays.asList(state, update), passed);
+    assertEquals(2, watermark.getPendingTransactions());
+  }
+
+  @Test
+  public void documentsAreHeldApart() {
+    BulkItem first = index("1", 5, "{}");
+    BulkItem second = index("2", 6, "{}");
+    coalescer.add(Arrays.asList(first, second));
+    assertEquals(2, coalescer.getHeldActions());
+    coalescer.close(1000);
+    assertEquals(Arrays.asList(first, second), passed);
+  }
+
+  private static BulkItem index(String id, long transactionId, String source) {
+    BulkItem item = new BulkItem(BulkItem.INDEX, "people", DocumentFactory.INDEX_TYPE, id, source);
+    item.setTransactionId(transactionId);
+    return item;
+  }
+}
@@ -0,0 +1,126 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.neo4j.configuration.GraphDatabaseSettings.DEFAULT_DATABASE_NAME;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.dbms.api.DatabaseManagementService;
+import org.neo4j.dbms.api.DatabaseManagementServiceBuilder;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import com.bianzx.neo4j.elasticsearch.benchmark.FakeElasticSearch;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ *
+ * @ClassName: DocumentFactoryTest
+ * @Description: document的digest: 区分属性值的类型, partial update与完整document的digest一致
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public class DocumentFactoryTest {
+
+  private final DocumentFactory documents = new DocumentFactory("people");
+
+  private FakeElasticSearch elasticSearch;
+
+  private Path home;
+
+  private DatabaseManagementService dbms;
+
+  private GraphDatabaseService db;
+
+  @Before
+  public void start() throws IOException {
+    elasticSearch = new FakeElasticSearch.Builder().build();
+    home = Files.createTempDirectory("neo4j-elasticsearch-test");
+    dbms = new DatabaseManagementServiceBuilder(home.toFile())
+        .setConfigRaw(Collections.singletonMap("elasticsearch." + DEFAULT_DATABASE_NAME + ".host", elasticSearch.url()))
+        .build();
+    db = dbms.database(DEFAULT_DATABASE_NAME);
+  }
+
+  @After
+  public void shutdown() throws IOException {
+    dbms.shutdown();
+    elasticSearch.close();
+    try (Stream<Path> files = Files.walk(home)) {
+      files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  @Test
+  public void digestTellsValueKindsApart() {
+    try (Transaction tx = db.beginTx()) {
+      Node node = tx.createNode(Label.label("Person"));
+      node.setProperty("value", 1L);
+      long asLong = documents.digest(node);
+      node.setProperty("value", "1");
+      long asString = documents.digest(node);
+      node.setProperty("value", 1.0d);
+      long asDouble = documents.digest(node);
+      node.setProperty("value", true);
+      long asBoolean = documents.digest(node);
+      node.setProperty("value", new long[] {1L});
+      long asArray = documents.digest(node);
+
+      assertNotEquals(asLong, asString);
+      assertNotEquals(asLong, asDouble);
+      assertNotEquals(asLong, asBoolean);
+      assertNotEquals(asLong, asArray);
+      node.setProperty("value", 1);
+      assertEquals(asLong, documents.digest(node));
+      node.setProperty("value", new int[] {1});
+      assertEquals(asArray, documents.digest(node));
+    }
+  }
+
+  @Test
+  public void digestFollowsArrayElements() {
+    try (Transaction tx = db.beginTx()) {
+      Node node = tx.createNode(Label.label("Person"));
+      node.setProperty("scores", new double[] {1.5, 2.5});
+      long before = documents.digest(node);
+      node.setProperty("scores", new double[] {2.5, 1.5});
+      assertNotEquals(before, documents.digest(node));
+      node.setProperty("scores", new double[] {1.5, 2.5});
+      assertEquals(before, documents.digest(node));
+    }
+  }
+
+  @Test
+  public void partialUpdateCarriesTheDigestOfTheWholeDocument() {
+    try (Transaction tx = db.beginTx()) {
+      Node node = tx.createNode(Label.label("Person"));
+      node.setProperty("name", "ada");
+      node.setProperty("born", 1815L);
+      node.setProperty("tags", new String[] {"math", "poetry"});
+      String id = documents.id(node);
+
+      BulkItem index = documents.index(id, node);
+      BulkItem update = documents.update(id, node, Collections.singletonMap("name", "ada"), null);
+
+      long digest = DocumentFactory.digest(source(index));
+      assertNotEquals(0L, digest);
+      assertEquals(digest, DocumentFactory.digest(source(update).getAsJsonObject("doc")));
+      assertEquals(digest, documents.digest(node));
+    }
+  }
+
+  private static JsonObject source(BulkItem item) {
+    return new JsonParser().parse(item.getSource()).getAsJsonObject();
+  }
+}
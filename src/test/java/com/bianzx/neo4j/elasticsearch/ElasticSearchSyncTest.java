@@ -0,0 +1,180 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.configuration.GraphDatabaseSettings.DEFAULT_DATABASE_NAME;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.dbms.api.DatabaseManagementService;
+import org.neo4j.dbms.api.DatabaseManagementServiceBuilder;
+import org.neo4j.exceptions.KernelException;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.api.procedure.GlobalProcedures;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.bianzx.neo4j.elasticsearch.benchmark.FakeElasticSearch;
+
+/**
+ *
+ * @ClassName: ElasticSearchSyncTest
+ * @Description: 嵌入式Neo4j加载插件, 同步到本地的FakeElasticSearch, 提交的node都要到达ElasticSearch
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public class ElasticSearchSyncTest {
+
+  private static final String PREFIX = "elasticsearch." + DEFAULT_DATABASE_NAME + ".";
+
+  private static final String DEAD_LETTER_FILE = "elasticsearch-deadletter.log";
+
+  private static final long ARRIVAL_TIMEOUT_MILLIS = 30_000L;
+
+  // Document ids that reached the fake
+  private final Set<String> arrived = ConcurrentHashMap.newKeySet();
+
+  private FakeElasticSearch elasticSearch;
+
+  private Path home;
+
+  private DatabaseManagementService dbms;
+
+  @Before
+  public void startElasticSearch() throws IOException {
+    elasticSearch = new FakeElasticSearch.Builder().arrivals(arrived::add).build();
+    home = Files.createTempDirectory("neo4j-elasticsearch-test");
+  }
+
+  @After
+  public void shutdown() throws IOException {
+    if (dbms != null) {
+      dbms.shutdown();
+    }
+    elasticSearch.close();
+    try (Stream<Path> files = Files.walk(home)) {
+      files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  @Test
+  public void asyncCommitsArrive() throws InterruptedException {
+    GraphDatabaseService db = start(false);
+    Set<String> ids = createNodes(db, 3, 50);
+    awaitArrival(ids);
+    assertEquals(0, elasticSearch.getFailedItems());
+  }
+
+  @Test
+  public void syncCommitsArriveBeforeTheCommitReturns() {
+    GraphDatabaseService db = start(true);
+    Set<String> ids = createNodes(db, 1, 20);
+    assertTrue("missing " + missing(ids), arrived.containsAll(ids));
+  }
+
+  @Test
+  public void changesDuringAnOutageArriveAfterIt() throws InterruptedException {
+    GraphDatabaseService db = start(false);
+    elasticSearch.setAvailable(false);
+    Set<String> ids = createNodes(db, 2, 20);
+    Thread.sleep(500);
+    elasticSearch.setAvailable(true);
+    awaitArrival(ids);
+  }
+
+  @Test
+  public void awaitIndexedReturnsOnceEarlierCommitsArrived() throws KernelException {
+    GraphDatabaseService db = start(false);
+    ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(GlobalProcedures.class)
+        .registerProcedure(ElasticSearchProcedures.class);
+    Set<String> ids = createNodes(db, 5, 20);
+    Map<String, Object> status = db.executeTransactionally("CALL elasticsearch.awaitIndexed()",
+        new HashMap<>(), result -> result.next());
+    assertEquals(true, status.get("indexed"));
+    assertTrue("missing " + missing(ids), arrived.containsAll(ids));
+  }
+
+  @Test
+  public void syncItemsElasticSearchWasTooBusyForAreRetried() throws InterruptedException {
+    GraphDatabaseService db = start(true);
+    // the first node of a new database
+    elasticSearch.fail("0", 429);
+    Set<String> ids = createNodes(db, 1, 10);
+    assertFalse(arrived.contains("0"));
+    elasticSearch.clearFailures();
+    awaitArrival(ids);
+  }
+
+  @Test
+  public void invalidSyncItemsAreDeadLettered() throws IOException {
+    GraphDatabaseService db = start(true);
+    elasticSearch.fail("0", 400);
+    Set<String> ids = createNodes(db, 1, 10);
+    ids.remove("0");
+    assertTrue("missing " + missing(ids), arrived.containsAll(ids));
+    File deadLetterFile = new File(((GraphDatabaseAPI) db).databaseLayout().databaseDirectory(), DEAD_LETTER_FILE);
+    List<String> deadLetters = Files.readAllLines(deadLetterFile.toPath());
+    assertEquals(1, deadLetters.size());
+    JsonObject deadLetter = new JsonParser().parse(deadLetters.get(0)).getAsJsonObject();
+    assertEquals("0", deadLetter.get("id").getAsString());
+    assertEquals(400, deadLetter.get("status").getAsInt());
+  }
+
+  private GraphDatabaseService start(boolean sync) {
+    Map<String, String> settings = new HashMap<>();
+    settings.put(PREFIX + "host", elasticSearch.url());
+    settings.put(PREFIX + "executeAsync", String.valueOf(!sync));
+    dbms = new DatabaseManagementServiceBuilder(home.toFile()).setConfigRaw(settings).build();
+    return dbms.database(DEFAULT_DATABASE_NAME);
+  }
+
+  /**
+   * @return the document ids of the created nodes
+   */
+  private static Set<String> createNodes(GraphDatabaseService db, int transactions, int nodesPerTransaction) {
+    Set<String> ids = new HashSet<>();
+    for (int i = 0; i < transactions; i++) {
+      try (Transaction tx = db.beginTx()) {
+        for (int j = 0; j < nodesPerTransaction; j++) {
+          Node node = tx.createNode(Label.label("Person"));
+          node.setProperty("name", "person " + i + "-" + j);
+          ids.add(String.valueOf(node.getId()));
+        }
+        tx.commit();
+      }
+    }
+    return ids;
+  }
+
+  private void awaitArrival(Set<String> ids) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ARRIVAL_TIMEOUT_MILLIS);
+    while (!arrived.containsAll(ids) && System.nanoTime() < deadline) {
+      Thread.sleep(50);
+    }
+    assertTrue("missing " + missing(ids), arrived.containsAll(ids));
+  }
+
+  private Set<String> missing(Set<String> ids) {
+    Set<String> missing = new HashSet<>(ids);
+    missing.removeAll(arrived);
+    return missing;
+  }
+}
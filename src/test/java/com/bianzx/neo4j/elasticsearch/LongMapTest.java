@@ -0,0 +1,64 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ *
+ * @ClassName: LongMapTest
+ * @Description: LongMap的查找, 扩容和插入顺序
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public class LongMapTest {
+
+  @Test
+  public void missingKeyIsNull() {
+    LongMap<String> map = new LongMap<>();
+    assertTrue(map.isEmpty());
+    assertNull(map.get(0));
+    assertNull(map.get(42));
+  }
+
+  @Test
+  public void keysSurviveRehashing() {
+    LongMap<Long> map = new LongMap<>(4);
+    for (long key = 0; key < 10_000; key++) {
+      map.putNew(key, key * 10);
+    }
+    map.putNew(-1, -10L);
+    map.putNew(Long.MAX_VALUE, 1L);
+    assertEquals(10_002, map.size());
+    for (long key = 0; key < 10_000; key++) {
+      assertEquals(Long.valueOf(key * 10), map.get(key));
+    }
+    assertEquals(Long.valueOf(-10), map.get(-1));
+    assertEquals(Long.valueOf(1), map.get(Long.MAX_VALUE));
+    assertNull(map.get(10_000));
+  }
+
+  @Test
+  public void collidingKeysAreKeptApart() {
+    // multiples of the capacity end up in the same slot without spreading
+    LongMap<String> map = new LongMap<>();
+    for (long key = 0; key < 64; key++) {
+      map.putNew(key << 32, "v" + key);
+    }
+    for (long key = 0; key < 64; key++) {
+      assertEquals("v" + key, map.get(key << 32));
+    }
+  }
+
+  @Test
+  public void valuesKeepInsertionOrder() {
+    LongMap<String> map = new LongMap<>();
+    map.putNew(30, "c");
+    map.putNew(10, "a");
+    map.putNew(20, "b");
+    assertEquals(Arrays.asList("c", "a", "b"), map.values());
+  }
+}
@@ -0,0 +1,173 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @ClassName: OutboxTest
+ * @Description: Outbox重启后的恢复: 丢弃崩溃时写了一半的record, 从checkpoint重新读取未确认的record
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public class OutboxTest {
+
+  private static final int SEGMENT_SIZE = 4096;
+
+  private File directory;
+
+  private Outbox outbox;
+
+  @Before
+  public void open() throws IOException {
+    directory = Files.createTempDirectory("outbox").toFile();
+    outbox = new Outbox(directory, SEGMENT_SIZE);
+  }
+
+  @After
+  public void delete() throws IOException {
+    outbox.close();
+    try (Stream<Path> files = Files.walk(directory.toPath())) {
+      files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  @Test
+  public void recordsAreReadBackAfterReopening() throws IOException {
+    outbox.append(Collections.singletonList(item("1", 3)));
+    outbox.append(Collections.singletonList(item("2", 4)));
+    reopen();
+
+    List<BulkItem> batch = new ArrayList<>();
+    outbox.read(batch, 100, Long.MAX_VALUE);
+    assertEquals(2, batch.size());
+    assertEquals("1", batch.get(0).getId());
+    assertEquals("{\"n\":\"1\"}", batch.get(0).getSource());
+    assertEquals(3, batch.get(0).getTransactionId());
+    assertEquals(4, batch.get(1).getTransactionId());
+    assertFalse(outbox.hasUnread());
+  }
+
+  @Test
+  public void tornRecordIsDroppedOnRecovery() throws IOException {
+    long first = outbox.append(Collections.singletonList(item("1", 3)));
+    long second = outbox.append(Collections.singletonList(item("2", 4)));
+    outbox.close();
+    // a crash in the middle of the second record, its payload no longer matches the checksum
+    try (RandomAccessFile segment = new RandomAccessFile(new File(directory, "outbox.0000000000"), "rw")) {
+      segment.seek(first + 8);
+      segment.write(segment.read() ^ 0xff);
+    }
+    outbox = new Outbox(directory, SEGMENT_SIZE);
+
+    List<BulkItem> batch = new ArrayList<>();
+    assertEquals(first, outbox.read(batch, 100, Long.MAX_VALUE));
+    assertEquals(1, batch.size());
+    assertEquals("1", batch.get(0).getId());
+
+    // appends continue where the torn record started, a record of the same size ends where it did
+    assertEquals(second, outbox.append(Collections.singletonList(item("3", 5))));
+    batch.clear();
+    outbox.read(batch, 100, Long.MAX_VALUE);
+    assertEquals(1, batch.size());
+    assertEquals("3", batch.get(0).getId());
+  }
+
+  @Test
+  public void readRewindsToTheCheckpoint() throws IOException {
+    long first = outbox.append(Collections.singletonList(item("1", 3)));
+    outbox.append(Collections.singletonList(item("2", 4)));
+
+    List<BulkItem> batch = new ArrayList<>();
+    // a non-empty batch takes no record beyond maxActions
+    assertEquals(first, outbox.read(batch, 1, Long.MAX_VALUE));
+    assertEquals(1, batch.size());
+    assertTrue(outbox.hasUnread());
+
+    // the request failed, everything after the checkpoint is read again
+    outbox.seek(outbox.checkpoint());
+    batch.clear();
+    outbox.read(batch, 100, Long.MAX_VALUE);
+    assertEquals(2, batch.size());
+    assertEquals("1", batch.get(0).getId());
+  }
+
+  @Test
+  public void reopeningReplaysFromTheCheckpoint() throws IOException {
+    long first = outbox.append(Collections.singletonList(item("1", 3)));
+    outbox.append(Collections.singletonList(item("2", 4)));
+    outbox.checkpoint(first);
+    reopen();
+
+    assertEquals(first, outbox.checkpoint());
+    List<BulkItem> batch = new ArrayList<>();
+    outbox.read(batch, 100, Long.MAX_VALUE);
+    assertEquals(1, batch.size());
+    assertEquals("2", batch.get(0).getId());
+  }
+
+  @Test
+  public void checkpointOnlyMovesForward() throws IOException {
+    // records up to the third segment
+    long earlier = 0;
+    long later = 0;
+    for (int i = 0; segment(later) < 2; i++) {
+      later = outbox.append(Collections.singletonList(item(String.valueOf(i), i + 1)));
+      if (earlier == 0 && segment(later) == 1) {
+        earlier = later;
+      }
+    }
+    // the requests of two batches in flight are acknowledged in the wrong order
+    outbox.checkpoint(later);
+    outbox.checkpoint(earlier);
+    assertEquals(later, outbox.checkpoint());
+    assertFalse(new File(directory, "outbox.0000000000").exists());
+    assertFalse(new File(directory, "outbox.0000000001").exists());
+    assertTrue(new File(directory, "outbox.0000000002").exists());
+
+    // a rewind reads from the checkpoint, whose segment is still there
+    outbox.append(Collections.singletonList(item("next", 1000)));
+    outbox.seek(outbox.checkpoint());
+    List<BulkItem> batch = new ArrayList<>();
+    outbox.read(batch, 100, Long.MAX_VALUE);
+    assertEquals(1, batch.size());
+    assertEquals("next", batch.get(0).getId());
+
+    reopen();
+    assertEquals(later, outbox.checkpoint());
+    batch.clear();
+    outbox.read(batch, 100, Long.MAX_VALUE);
+    assertEquals(1, batch.size());
+    assertEquals("next", batch.get(0).getId());
+  }
+
+  private static long segment(long position) {
+    return position >>> 32;
+  }
+
+  private void reopen() throws IOException {
+    outbox.close();
+    outbox = new Outbox(directory, SEGMENT_SIZE);
+  }
+
+  private static BulkItem item(String id, long transactionId) {
+    BulkItem item = new BulkItem(BulkItem.INDEX, "people", DocumentFactory.INDEX_TYPE, id, "{\"n\":\"" + id + "\"}");
+    item.setTransactionId(transactionId);
+    return item;
+  }
+}
@@ -0,0 +1,222 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.configuration.GraphDatabaseSettings.DEFAULT_DATABASE_NAME;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.dbms.api.DatabaseManagementService;
+import org.neo4j.dbms.api.DatabaseManagementServiceBuilder;
+import org.neo4j.exceptions.KernelException;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.api.procedure.GlobalProcedures;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import com.bianzx.neo4j.elasticsearch.benchmark.FakeElasticSearch;
+
+/**
+ *
+ * @ClassName: ReindexerTest
+ * @Description: checkpoint中已完成range的读写格式, 以及嵌入式Neo4j对FakeElasticSearch的reindex:
+ *               从checkpoint继续时跳过已完成的range, 非versioned的action冲突时算作失败
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public class ReindexerTest {
+
+  private static final String PREFIX = "elasticsearch." + DEFAULT_DATABASE_NAME + ".";
+
+  private static final String CHECKPOINT_FILE = "elasticsearch-reindex.checkpoint";
+
+  private static final long REINDEX_TIMEOUT_MILLIS = 30_000L;
+
+  // Document ids that reached the fake
+  private final Set<String> arrived = ConcurrentHashMap.newKeySet();
+
+  private FakeElasticSearch elasticSearch;
+
+  private Path home;
+
+  private DatabaseManagementService dbms;
+
+  @Before
+  public void startElasticSearch() throws IOException {
+    elasticSearch = new FakeElasticSearch.Builder().arrivals(arrived::add).build();
+    home = Files.createTempDirectory("neo4j-elasticsearch-test");
+  }
+
+  @After
+  public void shutdown() throws IOException {
+    if (dbms != null) {
+      dbms.shutdown();
+    }
+    elasticSearch.close();
+    try (Stream<Path> files = Files.walk(home)) {
+      files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  @Test
+  public void consecutiveRangesAreWrittenAsRuns() {
+    TreeSet<Long> ranges = new TreeSet<>();
+    for (long index = 0; index <= 41; index++) {
+      ranges.add(index);
+    }
+    ranges.addAll(Arrays.asList(43L, 45L, 46L, 47L));
+    assertEquals("0-41,43,45-47", Reindexer.formatRanges(ranges));
+  }
+
+  @Test
+  public void noRangesAreWrittenEmpty() {
+    assertEquals("", Reindexer.formatRanges(new TreeSet<>()));
+  }
+
+  @Test
+  public void runsAreReadBack() {
+    TreeSet<Long> ranges = new TreeSet<>();
+    Reindexer.parseRanges("0-2,5,7-8", ranges);
+    assertEquals(new TreeSet<>(Arrays.asList(0L, 1L, 2L, 5L, 7L, 8L)), ranges);
+  }
+
+  @Test
+  public void emptyTextReadsNothing() {
+    TreeSet<Long> ranges = new TreeSet<>();
+    Reindexer.parseRanges("", ranges);
+    assertTrue(ranges.isEmpty());
+  }
+
+  @Test
+  public void formatAndParseRoundTrip() {
+    TreeSet<Long> ranges = new TreeSet<>(Arrays.asList(3L, 4L, 9L, 100L, 101L, 102L));
+    TreeSet<Long> read = new TreeSet<>();
+    Reindexer.parseRanges(Reindexer.formatRanges(ranges), read);
+    assertEquals(ranges, read);
+  }
+
+  @Test
+  public void resumedReindexSkipsTheCheckpointedRanges() throws Exception {
+    GraphDatabaseAPI db = start(false);
+    List<Long> ids = createNodes(db, 30);
+    arrived.clear();
+    // an interrupted run completed the first range, ids 0-9
+    TreeSet<Long> completed = new TreeSet<>(Arrays.asList(0L));
+    File checkpointFile = new File(db.databaseLayout().databaseDirectory(), CHECKPOINT_FILE);
+    writeCheckpoint(checkpointFile, completed);
+
+    Map<String, Object> status = reindex(db);
+
+    assertEquals("COMPLETED", status.get("state"));
+    assertEquals(3L, status.get("completedRanges"));
+    for (long id : ids) {
+      assertEquals("document " + id, id >= 10, arrived.contains(String.valueOf(id)));
+    }
+    assertFalse(checkpointFile.exists());
+  }
+
+  @Test
+  public void conflictOfAnUnversionedIndexActionFails() throws Exception {
+    GraphDatabaseAPI db = start(false);
+    List<Long> ids = createNodes(db, 5);
+    elasticSearch.fail(String.valueOf(ids.get(2)), 409);
+
+    Map<String, Object> status = reindex(db);
+
+    assertEquals(1L, status.get("failedDocuments"));
+    assertEquals(4L, status.get("documents"));
+  }
+
+  @Test
+  public void conflictOfAVersionedIndexActionSucceeds() throws Exception {
+    GraphDatabaseAPI db = start(true);
+    List<Long> ids = createNodes(db, 5);
+    elasticSearch.fail(String.valueOf(ids.get(2)), 409);
+
+    Map<String, Object> status = reindex(db);
+
+    assertEquals(0L, status.get("failedDocuments"));
+    assertEquals(5L, status.get("documents"));
+  }
+
+  /**
+   * a database that syncs at commit, reindexes in ranges of 10 ids and has the procedures registered
+   * @param externalVersioning
+   * @return
+   * @throws KernelException
+   */
+  private GraphDatabaseAPI start(boolean externalVersioning) throws KernelException {
+    Map<String, String> settings = new HashMap<>();
+    settings.put(PREFIX + "host", elasticSearch.url());
+    settings.put(PREFIX + "executeAsync", "false");
+    settings.put(PREFIX + "externalVersioning", String.valueOf(externalVersioning));
+    settings.put(PREFIX + "reindexRangeSize", "10");
+    dbms = new DatabaseManagementServiceBuilder(home.toFile()).setConfigRaw(settings).build();
+    GraphDatabaseAPI db = (GraphDatabaseAPI) dbms.database(DEFAULT_DATABASE_NAME);
+    db.getDependencyResolver().resolveDependency(GlobalProcedures.class)
+        .registerProcedure(ElasticSearchProcedures.class);
+    return db;
+  }
+
+  private static List<Long> createNodes(GraphDatabaseAPI db, int count) {
+    List<Long> ids = new ArrayList<>();
+    try (Transaction tx = db.beginTx()) {
+      for (int i = 0; i < count; i++) {
+        Node node = tx.createNode(Label.label("Person"));
+        node.setProperty("name", "person " + i);
+        ids.add(node.getId());
+      }
+      tx.commit();
+    }
+    return ids;
+  }
+
+  private static void writeCheckpoint(File checkpointFile, TreeSet<Long> completedNodeRanges) throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty("target", "index_default");
+    properties.setProperty("rangeSize", "10");
+    properties.setProperty("nodes", Reindexer.formatRanges(completedNodeRanges));
+    properties.setProperty("relationships", "");
+    try (OutputStream out = Files.newOutputStream(checkpointFile.toPath())) {
+      properties.store(out, null);
+    }
+  }
+
+  /**
+   * start a reindex and wait for it to finish
+   * @param db
+   * @return the final status
+   * @throws InterruptedException
+   */
+  private static Map<String, Object> reindex(GraphDatabaseAPI db) throws InterruptedException {
+    db.executeTransactionally("CALL elasticsearch.reindex()", new HashMap<>(), result -> result.next());
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REINDEX_TIMEOUT_MILLIS);
+    while (true) {
+      Map<String, Object> status = db.executeTransactionally("CALL elasticsearch.reindexStatus()",
+          new HashMap<>(), result -> result.next());
+      if (!"RUNNING".equals(status.get("state")) || System.nanoTime() > deadline) {
+        return status;
+      }
+      Thread.sleep(50);
+    }
+  }
+}
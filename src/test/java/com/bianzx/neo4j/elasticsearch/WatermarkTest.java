@@ -0,0 +1,119 @@
+package com.bianzx.neo4j.elasticsearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ *
+ * @ClassName: WatermarkTest
+ * @Description: Watermark按transaction id判断变更是否已经写入ElasticSearch
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public class WatermarkTest {
+
+  private final Watermark watermark = new Watermark();
+
+  @Test
+  public void everythingIsIndexedWithoutPendingTransactions() {
+    assertTrue(watermark.isIndexed(1));
+    assertTrue(watermark.isIndexed(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void transactionIsIndexedOnceAllOfItsActionsAre() {
+    BulkItem first = item("1", 3);
+    BulkItem second = item("2", 3);
+    watermark.committed(Arrays.asList(first, second));
+    assertTrue(watermark.isIndexed(2));
+    assertFalse(watermark.isIndexed(3));
+
+    watermark.resolved(first);
+    assertFalse(watermark.isIndexed(3));
+    watermark.resolved(second);
+    assertTrue(watermark.isIndexed(3));
+    assertEquals(0, watermark.getPendingTransactions());
+  }
+
+  @Test
+  public void laterTransactionWaitsForEarlierOnes() {
+    BulkItem earlier = item("1", 3);
+    BulkItem later = item("2", 5);
+    watermark.committed(Arrays.asList(earlier, later));
+    watermark.resolved(later);
+    // 5 is done, but 3 before it is not
+    assertFalse(watermark.isIndexed(5));
+    watermark.resolved(earlier);
+    assertTrue(watermark.isIndexed(5));
+    assertEquals(5, watermark.getLatest());
+  }
+
+  @Test
+  public void untrackedActionsAreIgnored() {
+    watermark.committed(Collections.singletonList(item("1", 0)));
+    assertTrue(watermark.isIndexed(1));
+    watermark.committed(Collections.singletonList(item("1", 4)));
+    // e.g. replayed from the outbox, never handed over in this run
+    watermark.resolved(item("2", 2));
+    assertFalse(watermark.isIndexed(4));
+  }
+
+  @Test
+  public void resolvedTransactionsMarkTheirIndicesUnrefreshed() {
+    BulkItem item = item("1", 3);
+    watermark.committed(Collections.singletonList(item));
+    assertTrue(watermark.unrefreshed().isEmpty());
+    watermark.resolved(item);
+    assertEquals(Collections.singleton("people"), watermark.unrefreshed());
+    assertTrue(watermark.unrefreshed().isEmpty());
+  }
+
+  @Test
+  public void transactionsStillCommittingAreWaitedFor() throws Exception {
+    // tx 3 committed but has not reached afterCommit, tx 4 is already handed over and delivered
+    List<BulkItem> earlier = new ArrayList<>(Collections.singletonList(item("1", 0)));
+    watermark.committing(earlier);
+    List<BulkItem> later = Collections.singletonList(item("2", 4));
+    watermark.committing(later);
+    watermark.committed(later);
+    watermark.settled(later);
+    watermark.resolved(later);
+    assertTrue(watermark.isIndexed(4));
+    assertFalse(watermark.awaitCommitted(50));
+
+    Thread afterCommit = new Thread(() -> {
+      earlier.get(0).setTransactionId(3);
+      watermark.committed(earlier);
+      watermark.settled(earlier);
+    });
+    afterCommit.start();
+    assertTrue(watermark.awaitCommitted(10_000));
+    afterCommit.join();
+    assertFalse(watermark.isIndexed(4));
+    watermark.resolved(earlier);
+    assertTrue(watermark.isIndexed(4));
+  }
+
+  @Test
+  public void transactionsCommittingAfterTheCallAreNotWaitedFor() throws InterruptedException {
+    assertTrue(watermark.awaitCommitted(0));
+    List<BulkItem> rolledBack = Collections.singletonList(item("1", 0));
+    watermark.committing(rolledBack);
+    assertFalse(watermark.awaitCommitted(0));
+    watermark.settled(rolledBack);
+    assertTrue(watermark.awaitCommitted(0));
+  }
+
+  private static BulkItem item(String id, long transactionId) {
+    BulkItem item = new BulkItem(BulkItem.INDEX, "people", DocumentFactory.INDEX_TYPE, id, "{}");
+    item.setTransactionId(transactionId);
+    return item;
+  }
+}
@@ -0,0 +1,327 @@
+package com.bianzx.neo4j.elasticsearch.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ *
+ * @ClassName: FakeElasticSearch
+ * @Description: 本地的ElasticSearch替身, 实现_bulk和index的exists/create, 可配置延迟, 错误率和429拒绝率,
+ *               用于不依赖真实集群的测试, benchmark和压测
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public class FakeElasticSearch implements AutoCloseable {
+
+  private static final byte[] ACKNOWLEDGED = "{\"acknowledged\":true}".getBytes(StandardCharsets.UTF_8);
+
+  private static final byte[] REJECTED = ("{\"error\":{\"type\":\"es_rejected_execution_exception\","
+      + "\"reason\":\"rejected by the fake\"},\"status\":429}").getBytes(StandardCharsets.UTF_8);
+
+  private static final byte[] UNAVAILABLE = ("{\"error\":{\"type\":\"cluster_block_exception\","
+      + "\"reason\":\"unavailable\"},\"status\":503}").getBytes(StandardCharsets.UTF_8);
+
+  private final HttpServer server;
+
+  private final ExecutorService executor;
+
+  private final long latencyMillis;
+
+  // Fraction of bulk items answered with a 500
+  private final double errorRate;
+
+  // Fraction of bulk requests rejected as a whole with a 429
+  private final double rejectionRate;
+
+  // Receives the id of every document that was accepted
+  private final Consumer<String> arrivals;
+
+  // Answers everything with a 503 while false, to simulate an outage
+  private volatile boolean available = true;
+
+  private final Set<String> indices = ConcurrentHashMap.newKeySet();
+
+  // Documents whose items are answered with an error status until they are cleared
+  private final Map<String, Integer> failing = new ConcurrentHashMap<>();
+
+  private final LongAdder bulkRequests = new LongAdder();
+
+  private final LongAdder rejectedRequests = new LongAdder();
+
+  private final LongAdder documents = new LongAdder();
+
+  private final LongAdder failedItems = new LongAdder();
+
+  private FakeElasticSearch(Builder builder) throws IOException {
+    this.latencyMillis = builder.latencyMillis;
+    this.errorRate = builder.errorRate;
+    this.rejectionRate = builder.rejectionRate;
+    this.arrivals = builder.arrivals;
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    executor = Executors.newFixedThreadPool(builder.threads);
+    server.setExecutor(executor);
+    server.createContext("/", this::handle);
+    server.start();
+  }
+
+  /**
+   * the url to point the jest client at
+   * @return
+   */
+  public String url() {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  public void setAvailable(boolean available) {
+    this.available = available;
+  }
+
+  /**
+   * answer every item of the document with the status, e.g. 429 or 400, until cleared
+   * @param id
+   * @param status
+   */
+  public void fail(String id, int status) {
+    failing.put(id, status);
+  }
+
+  public void clearFailures() {
+    failing.clear();
+  }
+
+  public long getBulkRequests() {
+    return bulkRequests.sum();
+  }
+
+  public long getRejectedRequests() {
+    return rejectedRequests.sum();
+  }
+
+  public long getDocuments() {
+    return documents.sum();
+  }
+
+  public long getFailedItems() {
+    return failedItems.sum();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      byte[] body = read(exchange.getRequestBody());
+      if (latencyMillis > 0) {
+        Thread.sleep(latencyMillis);
+      }
+      String method = exchange.getRequestMethod();
+      String path = exchange.getRequestURI().getPath();
+      if (!available) {
+        respond(exchange, 503, UNAVAILABLE);
+      } else if (path.endsWith("/_bulk")) {
+        bulk(exchange, new String(body, StandardCharsets.UTF_8));
+      } else if ("HEAD".equals(method)) {
+        // index exists
+        boolean exists = indices.contains(index(path));
+        exchange.sendResponseHeaders(exists ? 200 : 404, -1);
+        exchange.close();
+      } else if ("PUT".equals(method) && path.indexOf('/', 1) < 0) {
+        // create index
+        indices.add(index(path));
+        respond(exchange, 200, ACKNOWLEDGED);
+      } else {
+        respond(exchange, 200, ACKNOWLEDGED);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      exchange.close();
+    }
+  }
+
+  /**
+   * answer every item of a bulk request, in request order
+   * @param exchange
+   * @param body
+   * @throws IOException
+   */
+  private void bulk(HttpExchange exchange, String body) throws IOException {
+    bulkRequests.increment();
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    if (rejectionRate > 0 && random.nextDouble() < rejectionRate) {
+      rejectedRequests.increment();
+      respond(exchange, 429, REJECTED);
+      return;
+    }
+    StringBuilder response = new StringBuilder(body.length() / 4 + 64);
+    response.append("{\"took\":").append(latencyMillis).append(",\"errors\":");
+    int errorsAt = response.length();
+    response.append("false,\"items\":[");
+    boolean errors = false;
+    boolean first = true;
+    int start = 0;
+    while (start < body.length()) {
+      int end = body.indexOf('\n', start);
+      if (end < 0) {
+        end = body.length();
+      }
+      if (end == start) {
+        start = end + 1;
+        continue;
+      }
+      // metadata line, {"<method>":{"_index":"..","_type":"..","_id":".."}}
+      String method = between(body, start + 2, '"', end);
+      String index = field(body, "\"_index\":\"", start, end);
+      String id = field(body, "\"_id\":\"", start, end);
+      start = end + 1;
+      if (!"delete".equals(method)) {
+        // skip the source line
+        int source = body.indexOf('\n', start);
+        start = source < 0 ? body.length() : source + 1;
+      }
+      if (!first) {
+        response.append(',');
+      }
+      first = false;
+      response.append("{\"").append(method).append("\":{\"_index\":\"").append(index)
+          .append("\",\"_type\":\"_doc\",\"_id\":\"").append(id).append("\",\"status\":");
+      Integer status = failing.get(id);
+      if (status != null) {
+        errors = true;
+        failedItems.increment();
+        response.append(status).append(",\"error\":{\"type\":\"").append(errorType(status))
+            .append("\",\"reason\":\"failed by the fake\"}}}");
+      } else if (errorRate > 0 && random.nextDouble() < errorRate) {
+        errors = true;
+        failedItems.increment();
+        response.append("500,\"error\":{\"type\":\"internal_server_error\",\"reason\":\"failed by the fake\"}}}");
+      } else {
+        documents.increment();
+        if (arrivals != null) {
+          arrivals.accept(id);
+        }
+        response.append("delete".equals(method) ? 200 : 201).append("}}");
+      }
+    }
+    response.append("]}");
+    if (errors) {
+      response.replace(errorsAt, errorsAt + "false".length(), "true");
+    }
+    respond(exchange, 200, response.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String errorType(int status) {
+    if (status == 429) {
+      return "es_rejected_execution_exception";
+    }
+    return status >= 500 ? "internal_server_error" : "mapper_parsing_exception";
+  }
+
+  private static String index(String path) {
+    int end = path.indexOf('/', 1);
+    return end < 0 ? path.substring(1) : path.substring(1, end);
+  }
+
+  private static String field(String body, String prefix, int from, int end) {
+    int at = body.indexOf(prefix, from);
+    if (at < 0 || at >= end) {
+      return "";
+    }
+    return between(body, at + prefix.length(), '"', end);
+  }
+
+  private static String between(String body, int from, char terminator, int end) {
+    int to = body.indexOf(terminator, from);
+    return body.substring(from, to < 0 || to > end ? end : to);
+  }
+
+  private static byte[] read(InputStream in) throws IOException {
+    try (InputStream body = in) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = body.read(buffer)) >= 0) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    }
+  }
+
+  private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   *
+   * @ClassName: Builder
+   * @Description: Builder for FakeElasticSearch
+   * @author: bianzexin
+   * @date: Feb 1, 2021
+   *
+   */
+  public static class Builder {
+
+    private long latencyMillis;
+
+    private double errorRate;
+
+    private double rejectionRate;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private Consumer<String> arrivals;
+
+    public Builder() {}
+
+    public Builder latencyMillis(long latencyMillis) {
+      this.latencyMillis = latencyMillis;
+      return this;
+    }
+
+    public Builder errorRate(double errorRate) {
+      this.errorRate = errorRate;
+      return this;
+    }
+
+    public Builder rejectionRate(double rejectionRate) {
+      this.rejectionRate = rejectionRate;
+      return this;
+    }
+
+    public Builder threads(int threads) {
+      this.threads = threads;
+      return this;
+    }
+
+    public Builder arrivals(Consumer<String> arrivals) {
+      this.arrivals = arrivals;
+      return this;
+    }
+
+    public FakeElasticSearch build() throws IOException {
+      return new FakeElasticSearch(this);
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package com.bianzx.neo4j.elasticsearch.benchmark;
+
+import static org.neo4j.configuration.GraphDatabaseSettings.DEFAULT_DATABASE_NAME;
+
+import com.bianzx.neo4j.elasticsearch.Histogram;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import org.neo4j.dbms.api.DatabaseManagementService;
+import org.neo4j.dbms.api.DatabaseManagementServiceBuilder;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ *
+ * @ClassName: LoadTest
+ * @Description: 端到端压测, 在嵌入式Neo4j上持续提交事务, 同步到本地的FakeElasticSearch,
+ *               统计每秒提交的事务数, 每秒bulk请求数, 以及从提交到文档到达的p50/p99延迟.
+ *               手动运行时只打印结果, SyncLoadTest在-DloadTest=true时运行它并检查结果
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public class LoadTest {
+
+  private static final Label LABEL = Label.label("LoadTest");
+
+  private static final String PREFIX = "elasticsearch." + DEFAULT_DATABASE_NAME + ".";
+
+  // Node id of every created node that has not arrived yet, to the time its commit started
+  private final Map<String, Long> pending = new ConcurrentHashMap<>();
+
+  // Milliseconds from the start of the commit to ElasticSearch accepting the document
+  private final Histogram freshness = new Histogram();
+
+  private final LongAdder transactions = new LongAdder();
+
+  private final LongAdder failedTransactions = new LongAdder();
+
+  private final Map<String, String> options;
+
+  private LoadTest(Map<String, String> options) {
+    this.options = options;
+  }
+
+  /**
+   * mvn -Pbenchmark test-compile exec:exec -Dbenchmark.main=com.bianzx.neo4j.elasticsearch.benchmark.LoadTest
+   * -Dbenchmark.args="--mode async --threads 8 --seconds 60 --latencyMillis 20 --rejectionRate 0.01"
+   * @param args --name value pairs, --config key=value passes a setting of the plugin
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<>();
+    Map<String, String> config = new HashMap<>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      String name = args[i].replaceFirst("^--", "");
+      if ("config".equals(name)) {
+        String[] setting = args[i + 1].split("=", 2);
+        config.put(PREFIX + setting[0], setting[1]);
+      } else {
+        options.put(name, args[i + 1]);
+      }
+    }
+    new LoadTest(options).run(config);
+  }
+
+  /**
+   * run once and report the outcome
+   * @param options --name value pairs without the dashes
+   * @param config settings of the plugin, without the prefix
+   * @return
+   * @throws Exception
+   */
+  static Result run(Map<String, String> options, Map<String, String> config) throws Exception {
+    Map<String, String> settings = new HashMap<>();
+    for (Map.Entry<String, String> setting : config.entrySet()) {
+      settings.put(PREFIX + setting.getKey(), setting.getValue());
+    }
+    return new LoadTest(options).run(settings);
+  }
+
+  private Result run(Map<String, String> config) throws Exception {
+    String mode = option("mode", "async");
+    int threads = Integer.parseInt(option("threads", "4"));
+    int seconds = Integer.parseInt(option("seconds", "30"));
+    int nodesPerTransaction = Integer.parseInt(option("nodesPerTransaction", "10"));
+    int properties = Integer.parseInt(option("properties", "8"));
+    int drainSeconds = Integer.parseInt(option("drainSeconds", "60"));
+    // ElasticSearch answers 503 for outageSeconds from outageAt seconds into the run
+    int outageAt = Integer.parseInt(option("outageAt", "-1"));
+    int outageSeconds = Integer.parseInt(option("outageSeconds", "0"));
+
+    FakeElasticSearch elasticSearch = new FakeElasticSearch.Builder()
+        .latencyMillis(Long.parseLong(option("latencyMillis", "0")))
+        .errorRate(Double.parseDouble(option("errorRate", "0")))
+        .rejectionRate(Double.parseDouble(option("rejectionRate", "0")))
+        .arrivals(this::arrived).build();
+    Path home = Files.createTempDirectory("neo4j-elasticsearch-load");
+    Map<String, String> settings = new HashMap<>();
+    settings.put(PREFIX + "host", elasticSearch.url());
+    settings.put(PREFIX + "executeAsync", String.valueOf(!"sync".equals(mode)));
+    settings.putAll(config);
+    DatabaseManagementService dbms =
+        new DatabaseManagementServiceBuilder(home.toFile()).setConfigRaw(settings).build();
+    ExecutorService workers = Executors.newFixedThreadPool(threads);
+    try {
+      GraphDatabaseService db = dbms.database(DEFAULT_DATABASE_NAME);
+      System.out.println(String.format("%s mode, %d threads, %d nodes per transaction, %ds", mode, threads,
+          nodesPerTransaction, seconds));
+
+      long startedAt = System.nanoTime();
+      long deadline = startedAt + TimeUnit.SECONDS.toNanos(seconds);
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        futures.add(workers.submit(() -> write(db, deadline, nodesPerTransaction, properties)));
+      }
+      if (outageAt >= 0) {
+        Thread.sleep(TimeUnit.SECONDS.toMillis(outageAt));
+        elasticSearch.setAvailable(false);
+        System.out.println("ElasticSearch down");
+        Thread.sleep(TimeUnit.SECONDS.toMillis(outageSeconds));
+        elasticSearch.setAvailable(true);
+        System.out.println("ElasticSearch up");
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+      double elapsed = (System.nanoTime() - startedAt) / 1e9;
+      long bulkRequests = elasticSearch.getBulkRequests();
+
+      // wait for the changes still queued in the plugin
+      long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(drainSeconds);
+      while (!pending.isEmpty() && System.nanoTime() < drainDeadline) {
+        Thread.sleep(100);
+      }
+      double drained = (System.nanoTime() - startedAt) / 1e9 - elapsed;
+
+      System.out.println(String.format("transactions:       %d committed, %d failed, %.1f tx/s",
+          transactions.sum(), failedTransactions.sum(), transactions.sum() / elapsed));
+      System.out.println(String.format("bulk requests:      %d while writing, %.1f req/s, %d in total, %d rejected",
+          bulkRequests, bulkRequests / elapsed, elasticSearch.getBulkRequests(), elasticSearch.getRejectedRequests()));
+      System.out.println(String.format("documents:          %d arrived, %d failed items, %d missing, drained in %.1fs",
+          elasticSearch.getDocuments(), elasticSearch.getFailedItems(), pending.size(), drained));
+      System.out.println(String.format("commit to arrival:  p50 %dms, p99 %dms, max %dms, mean %.1fms",
+          freshness.getPercentile(50), freshness.getPercentile(99), freshness.getMax(), freshness.getMean()));
+      return new Result(transactions.sum(), failedTransactions.sum(), transactions.sum() / elapsed,
+          pending.size(), freshness.getPercentile(99));
+    } finally {
+      workers.shutdownNow();
+      dbms.shutdown();
+      elasticSearch.close();
+      delete(home);
+    }
+  }
+
+  /**
+   * create nodes in transactions of the given size until the deadline
+   * @param db
+   * @param deadline
+   * @param nodesPerTransaction
+   * @param properties
+   */
+  private void write(GraphDatabaseService db, long deadline, int nodesPerTransaction, int properties) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    String[] ids = new String[nodesPerTransaction];
+    while (System.nanoTime() < deadline) {
+      Arrays.fill(ids, null);
+      try (Transaction tx = db.beginTx()) {
+        for (int i = 0; i < nodesPerTransaction; i++) {
+          Node node = tx.createNode(LABEL);
+          for (Map.Entry<String, Object> property : SyntheticGraph.properties(random.nextInt(), properties)
+              .entrySet()) {
+            node.setProperty(property.getKey(), property.getValue());
+          }
+          ids[i] = String.valueOf(node.getId());
+        }
+        // registered before the commit, a sync mode commit delivers before it returns
+        long commitAt = System.currentTimeMillis();
+        for (String id : ids) {
+          pending.put(id, commitAt);
+        }
+        tx.commit();
+        transactions.increment();
+      } catch (RuntimeException e) {
+        failedTransactions.increment();
+        for (String id : ids) {
+          if (id != null) {
+            pending.remove(id);
+          }
+        }
+      }
+    }
+  }
+
+  private void arrived(String id) {
+    Long commitAt = pending.remove(id);
+    if (commitAt != null) {
+      freshness.record(Math.max(0, System.currentTimeMillis() - commitAt));
+    }
+  }
+
+  private String option(String name, String defaultValue) {
+    return options.getOrDefault(name, defaultValue);
+  }
+
+  /**
+   * The outcome of one run
+   */
+  static class Result {
+
+    final long transactions;
+
+    final long failedTransactions;
+
+    final double transactionsPerSecond;
+
+    // Documents of committed transactions that never arrived
+    final int missing;
+
+    // Milliseconds from commit to arrival
+    final long p99Millis;
+
+    Result(long transactions, long failedTransactions, double transactionsPerSecond, int missing,
+        long p99Millis) {
+      this.transactions = transactions;
+      this.failedTransactions = failedTransactions;
+      this.transactionsPerSecond = transactionsPerSecond;
+      this.missing = missing;
+      this.p99Millis = p99Millis;
+    }
+  }
+
+  private static void delete(Path home) throws IOException {
+    try (Stream<Path> paths = Files.walk(home)) {
+      paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package com.bianzx.neo4j.elasticsearch.benchmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @ClassName: SyncLoadTest
+ * @Description: 以断言方式运行LoadTest, 检查没有丢失的文档, 吞吐和提交到到达的p99延迟. 运行时间较长,
+ *               只有mvn test -DloadTest=true时才运行, -DloadTest.seconds, -DloadTest.minTps和
+ *               -DloadTest.maxP99Millis调整运行时间和阈值
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public class SyncLoadTest {
+
+  private static final String ENABLED = "loadTest";
+
+  private static final String SECONDS = System.getProperty("loadTest.seconds", "10");
+
+  private static final double MIN_TRANSACTIONS_PER_SECOND =
+      Double.parseDouble(System.getProperty("loadTest.minTps", "20"));
+
+  private static final long MAX_P99_MILLIS = Long.getLong("loadTest.maxP99Millis", 5000L);
+
+  @Before
+  public void enabled() {
+    Assume.assumeTrue("run with -D" + ENABLED + "=true", Boolean.getBoolean(ENABLED));
+  }
+
+  @Test
+  public void asyncModeKeepsUp() throws Exception {
+    LoadTest.Result result = LoadTest.run(options("async"), new HashMap<>());
+    assertDelivered(result);
+    assertFast(result);
+  }
+
+  @Test
+  public void syncModeKeepsUp() throws Exception {
+    LoadTest.Result result = LoadTest.run(options("sync"), new HashMap<>());
+    assertDelivered(result);
+    assertFast(result);
+  }
+
+  @Test
+  public void outboxDeliversAfterAnOutage() throws Exception {
+    Map<String, String> options = options("async");
+    options.put("outageAt", "2");
+    options.put("outageSeconds", "3");
+    Map<String, String> config = new HashMap<>();
+    config.put("outbox", "true");
+    // freshness includes the outage, only loss is checked
+    assertDelivered(LoadTest.run(options, config));
+  }
+
+  private static Map<String, String> options(String mode) {
+    Map<String, String> options = new HashMap<>();
+    options.put("mode", mode);
+    options.put("seconds", SECONDS);
+    options.put("drainSeconds", "30");
+    return options;
+  }
+
+  private static void assertDelivered(LoadTest.Result result) {
+    assertTrue("nothing was committed", result.transactions > 0);
+    assertEquals("failed transactions", 0, result.failedTransactions);
+    assertEquals("documents that never arrived", 0, result.missing);
+  }
+
+  private static void assertFast(LoadTest.Result result) {
+    assertTrue(result.transactionsPerSecond + " tx/s", result.transactionsPerSecond >= MIN_TRANSACTIONS_PER_SECOND);
+    assertTrue("p99 " + result.p99Millis + "ms", result.p99Millis <= MAX_P99_MILLIS);
+  }
+}
@@ -0,0 +1,315 @@
+package com.bianzx.neo4j.elasticsearch.benchmark;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+
+/**
+ *
+ * @ClassName: SyntheticGraph
+ * @Description: 不依赖数据库的node, relationship和TransactionData, 用于benchmark提交路径
+ * @author: bianzexin
+ * @date: Feb 1, 2021
+ *
+ */
+public final class SyntheticGraph {
+
+  /**
+   * The transaction shapes the commit path is measured with
+   */
+  public enum Shape {
+    // many nodes created with a few properties each
+    SMALL_CREATES,
+    // existing nodes with many properties changed
+    WIDE_UPDATES,
+    // many nodes deleted
+    MASS_DELETES,
+    // relationships created between existing nodes
+    RELATIONSHIPS
+  }
+
+  private static final Label[] LABELS = {Label.label("Person"), Label.label("Customer")};
+
+  private static final RelationshipType KNOWS = RelationshipType.withName("KNOWS");
+
+  private SyntheticGraph() {}
+
+  /**
+   * a node backed by plain fields, only the methods the sync reads are supported
+   * @param id
+   * @param properties
+   * @return
+   */
+  public static Node node(long id, Map<String, Object> properties) {
+    return (Node) Proxy.newProxyInstance(SyntheticGraph.class.getClassLoader(), new Class<?>[] {Node.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getId":
+              return id;
+            case "getAllProperties":
+              return properties;
+            case "getLabels":
+              return Collections.unmodifiableList(Arrays.asList(LABELS));
+            case "hashCode":
+              return Long.hashCode(id);
+            case "equals":
+              return proxy == args[0];
+            case "toString":
+              return "Node[" + id + "]";
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  /**
+   * a relationship backed by plain fields, only the methods the sync reads are supported
+   * @param id
+   * @param startNodeId
+   * @param endNodeId
+   * @param properties
+   * @return
+   */
+  public static Relationship relationship(long id, long startNodeId, long endNodeId,
+      Map<String, Object> properties) {
+    return (Relationship) Proxy.newProxyInstance(SyntheticGraph.class.getClassLoader(),
+        new Class<?>[] {Relationship.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getId":
+              return id;
+            case "getAllProperties":
+              return properties;
+            case "getType":
+              return KNOWS;
+            case "getStartNodeId":
+              return startNodeId;
+            case "getEndNodeId":
+              return endNodeId;
+            case "hashCode":
+              return Long.hashCode(id);
+            case "equals":
+              return proxy == args[0];
+            case "toString":
+              return "Relationship[" + id + "]";
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  /**
+   * properties of mixed types, as a typical entity has
+   * @param id
+   * @param count
+   * @return
+   */
+  public static Map<String, Object> properties(long id, int count) {
+    Map<String, Object> properties = new LinkedHashMap<>();
+    for (int i = 0; i < count; i++) {
+      switch (i % 4) {
+        case 0:
+          properties.put("name" + i, "value-" + id + "-" + i);
+          break;
+        case 1:
+          properties.put("count" + i, id * i);
+          break;
+        case 2:
+          properties.put("score" + i, id / (i + 1.0));
+          break;
+        default:
+          properties.put("tags" + i, new String[] {"a" + id, "b" + i});
+      }
+    }
+    return properties;
+  }
+
+  /**
+   * a transaction of the given shape
+   * @param shape
+   * @param entities number of entities the transaction touches
+   * @param propertiesPerEntity
+   * @return
+   */
+  public static TransactionData transaction(Shape shape, int entities, int propertiesPerEntity) {
+    Data data = new Data();
+    for (long id = 0; id < entities; id++) {
+      Map<String, Object> properties = properties(id, propertiesPerEntity);
+      switch (shape) {
+        case SMALL_CREATES: {
+          Node node = node(id, properties);
+          data.createdNodes.add(node);
+          for (Label label : LABELS) {
+            data.assignedLabels.add(labelEntry(node, label));
+          }
+          for (Map.Entry<String, Object> property : properties.entrySet()) {
+            data.assignedNodeProperties.add(propertyEntry(node, property.getKey(), property.getValue()));
+          }
+          break;
+        }
+        case WIDE_UPDATES: {
+          Node node = node(id, properties);
+          for (Map.Entry<String, Object> property : properties.entrySet()) {
+            data.assignedNodeProperties.add(propertyEntry(node, property.getKey(), property.getValue()));
+          }
+          break;
+        }
+        case MASS_DELETES: {
+          Node node = node(id, properties);
+          data.deletedNodes.add(node);
+          for (Map.Entry<String, Object> property : properties.entrySet()) {
+            data.removedNodeProperties.add(propertyEntry(node, property.getKey(), null));
+          }
+          break;
+        }
+        default: {
+          Relationship relationship = relationship(id, id, id + 1, properties);
+          data.createdRelationships.add(relationship);
+          for (Map.Entry<String, Object> property : properties.entrySet()) {
+            data.assignedRelationshipProperties.add(
+                propertyEntry(relationship, property.getKey(), property.getValue()));
+          }
+        }
+      }
+    }
+    return data;
+  }
+
+  private static LabelEntry labelEntry(Node node, Label label) {
+    return new LabelEntry() {
+      @Override
+      public Label label() {
+        return label;
+      }
+
+      @Override
+      public Node node() {
+        return node;
+      }
+    };
+  }
+
+  private static <T> PropertyEntry<T> propertyEntry(T entity, String key, Object value) {
+    return new PropertyEntry<T>() {
+      @Override
+      public T entity() {
+        return entity;
+      }
+
+      @Override
+      public String key() {
+        return key;
+      }
+
+      @Override
+      public Object previouslyCommittedValue() {
+        return null;
+      }
+
+      @Override
+      public Object value() {
+        return value;
+      }
+    };
+  }
+
+  /**
+   * TransactionData over prepared lists
+   */
+  private static class Data implements TransactionData {
+
+    private final List<Node> createdNodes = new ArrayList<>();
+
+    private final List<Node> deletedNodes = new ArrayList<>();
+
+    private final List<PropertyEntry<Node>> assignedNodeProperties = new ArrayList<>();
+
+    private final List<PropertyEntry<Node>> removedNodeProperties = new ArrayList<>();
+
+    private final List<LabelEntry> assignedLabels = new ArrayList<>();
+
+    private final List<Relationship> createdRelationships = new ArrayList<>();
+
+    private final List<PropertyEntry<Relationship>> assignedRelationshipProperties = new ArrayList<>();
+
+    @Override
+    public Iterable<Node> createdNodes() {
+      return createdNodes;
+    }
+
+    @Override
+    public Iterable<Node> deletedNodes() {
+      return deletedNodes;
+    }
+
+    @Override
+    public boolean isDeleted(Node node) {
+      return deletedNodes.contains(node);
+    }
+
+    @Override
+    public Iterable<PropertyEntry<Node>> assignedNodeProperties() {
+      return assignedNodeProperties;
+    }
+
+    @Override
+    public Iterable<PropertyEntry<Node>> removedNodeProperties() {
+      return removedNodeProperties;
+    }
+
+    @Override
+    public Iterable<LabelEntry> assignedLabels() {
+      return assignedLabels;
+    }
+
+    @Override
+    public Iterable<LabelEntry> removedLabels() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public Iterable<Relationship> createdRelationships() {
+      return createdRelationships;
+    }
+
+    @Override
+    public Iterable<Relationship> deletedRelationships() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isDeleted(Relationship relationship) {
+      return false;
+    }
+
+    @Override
+    public Iterable<PropertyEntry<Relationship>> assignedRelationshipProperties() {
+      return assignedRelationshipProperties;
+    }
+
+    @Override
+    public Iterable<PropertyEntry<Relationship>> removedRelationshipProperties() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public String username() {
+      return "benchmark";
+    }
+
+    @Override
+    public Map<String, Object> metaData() {
+      return Collections.emptyMap();
+    }
+  }
+}